@@ -0,0 +1,38 @@
+package Benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+//Temporary directories and files for the benchmarks, removed again when a benchmark is torn down
+public class BenchmarkFiles {
+    public static File CreateTempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    //Creates a file of random data, random so that nothing along the way can make it smaller
+    public static File CreateRandomFile(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[1024 * 1024];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for(long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    //Deletes a file or a directory and everything in it
+    public static void Delete(File file) {
+        File[] contents = file.listFiles();
+        if(contents != null) {
+            for(File content : contents) {
+                Delete(content);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,20 @@
+package Benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+//Counts the file data a benchmark moves, JMH reports it per second as the "bytes" metric next to the operations. A
+//benchmark that takes this as a parameter adds the size of whatever each operation sent or received
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class DataCounter {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void Reset() {
+        bytes = 0;
+    }
+}
@@ -0,0 +1,418 @@
+package Benchmarks;
+
+import IOThreads.DownloadJournal;
+import SocketThreads.ClientHandler;
+import SocketThreads.SearchHandle;
+import SocketThreads.SearchResults;
+import SocketThreads.Server;
+import SocketThreads.ServerOptions;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Runs a whole network of peers in this process on loopback ports to see how searches flood it and how downloads
+ * perform as it grows. The nodes are joined into a chain (each node connects to the one before it), a star (every node
+ * connects to the first) or a random graph (each node connects to a random earlier node, then random links are added
+ * until the nodes have the average degree asked for), all of them permanent connections.
+ *
+ * Every node shares a few files of its own, and every shared item is held by a number of random nodes. The workload
+ * is a series of searches for shared items, each one from a random node, one at a time so that the frames dispatched
+ * by all the nodes in the meantime can be put down to it. After some of the searches the searching node also downloads
+ * the item from the first node that answered.
+ *
+ * Usage: java -cp <classes> Benchmarks.MeshSimulation [--nodes=N] [--topology=chain|star|random] [--degree=N]
+ *        [--searches=N] [--downloads=N] [--replicas=N] [--file-size=BYTES] [--search-window=MS] [--seed=N]
+ *        [--engine=thread|nio] [--threads=platform|virtual] [--output=FILE]
+ *
+ * Reported: the frames dispatched and the duplicate requests suppressed per search, how many of the nodes holding an
+ * item answered, percentiles of the time to the first and to the last answer, the download throughput, and the
+ * platform threads and heap used per node. The same figures are written to mesh-results.json unless --output is given.
+ */
+public class MeshSimulation {
+    private int nodeCount = 100;
+    private String topology = "random";
+    private int degree = 3;
+    private int searchCount = 200;
+    private int downloadCount = 20;
+    private int replicas = 3;
+    private long fileSize = 1024 * 1024;
+    private long searchWindowMillis = 1000;
+    private long seed = 1;
+    private String output = "mesh-results.json";
+    private final ServerOptions nodeOptions = new ServerOptions();
+
+    private final ArrayList<Server> nodes = new ArrayList<>();
+    private final ArrayList<Integer> ports = new ArrayList<>();
+    private final ArrayList<File> nodeDirectories = new ArrayList<>();
+    //The nodes holding each shared item
+    private final ArrayList<List<Integer>> holders = new ArrayList<>();
+    private final LinkedHashMap<String, Object> results = new LinkedHashMap<>();
+    //The download each node is waiting for, completed by its progress listener
+    private final ConcurrentHashMap<Integer, CompletableFuture<Void>> pendingDownloads = new ConcurrentHashMap<>();
+    private File directory;
+    private Random random;
+
+    public static void main(String[] args) throws Exception {
+        MeshSimulation simulation = new MeshSimulation();
+        ArrayList<String> nodeArgs = new ArrayList<>();
+        for(String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if(arg.startsWith("--nodes=")) {
+                simulation.nodeCount = Integer.parseInt(value);
+            } else if(arg.startsWith("--topology=")) {
+                simulation.topology = value;
+            } else if(arg.startsWith("--degree=")) {
+                simulation.degree = Integer.parseInt(value);
+            } else if(arg.startsWith("--searches=")) {
+                simulation.searchCount = Integer.parseInt(value);
+            } else if(arg.startsWith("--downloads=")) {
+                simulation.downloadCount = Integer.parseInt(value);
+            } else if(arg.startsWith("--replicas=")) {
+                simulation.replicas = Integer.parseInt(value);
+            } else if(arg.startsWith("--file-size=")) {
+                simulation.fileSize = Long.parseLong(value);
+            } else if(arg.startsWith("--search-window=")) {
+                simulation.searchWindowMillis = Long.parseLong(value);
+            } else if(arg.startsWith("--seed=")) {
+                simulation.seed = Long.parseLong(value);
+            } else if(arg.startsWith("--output=")) {
+                simulation.output = value;
+            } else if(arg.startsWith("--engine=") || arg.startsWith("--threads=")) {
+                nodeArgs.add(arg);
+            } else {
+                System.out.println("Unknown argument " + arg);
+                System.exit(1);
+            }
+        }
+        if(!simulation.topology.matches("chain|star|random") || simulation.nodeCount < 2) {
+            System.out.println("--topology must be chain, star or random and --nodes at least 2");
+            System.exit(1);
+        }
+        ServerOptions parsed = ServerOptions.Parse(nodeArgs);
+        simulation.nodeOptions.engine = parsed.engine;
+        simulation.nodeOptions.threads = parsed.threads;
+        simulation.Run();
+        //The nodes leave threads behind
+        System.exit(0);
+    }
+
+    private void Run() throws Exception {
+        random = new Random(seed);
+        directory = BenchmarkFiles.CreateTempDirectory("mesh-simulation");
+        PrintStream console = System.out;
+        console.printf("%d nodes in a %s topology, %d searches and %d downloads\n", nodeCount, topology, searchCount, downloadCount);
+        //What the nodes print is discarded
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            long heapBefore = UsedHeap();
+            int threadsBefore = threadBean.getThreadCount();
+            long start = System.nanoTime();
+            CreateNodes();
+            int links = Connect();
+            //Lets the handshakes and the forwarding notices settle before anything is measured
+            Thread.sleep(1000);
+            results.put("setupSeconds", (System.nanoTime() - start) / 1e9);
+            results.put("links", links);
+            results.put("platformThreadsPerNode", (threadBean.getThreadCount() - threadsBefore) / (double) nodeCount);
+            results.put("heapMiBPerNode", (UsedHeap() - heapBefore) / (1024.0 * 1024.0) / nodeCount);
+            RunWorkload();
+        } finally {
+            for(Server node : nodes) {
+                try {
+                    node.CloseServer();
+                } catch (IOException ignored) {
+
+                }
+            }
+            System.setOut(console);
+            BenchmarkFiles.Delete(directory);
+        }
+        Report(console);
+    }
+
+    //Starts every node with directories of its own and shares the files, each item is given to replicas random nodes
+    private void CreateNodes() throws IOException {
+        int itemCount = Math.max(1, nodeCount);
+        for(int i = 0; i < nodeCount; i++) {
+            File nodeDirectory = new File(directory, "node-" + i);
+            new File(nodeDirectory, "uploads").mkdirs();
+            new File(nodeDirectory, "downloads").mkdirs();
+            nodeDirectories.add(nodeDirectory);
+            for(int j = 0; j < 3; ++j) {
+                new File(nodeDirectory, "uploads/own-" + i + "-" + j + ".dat").createNewFile();
+            }
+        }
+        for(int item = 0; item < itemCount; item++) {
+            ArrayList<Integer> itemHolders = new ArrayList<>();
+            while(itemHolders.size() < Math.min(replicas, nodeCount)) {
+                int holder = random.nextInt(nodeCount);
+                if(!itemHolders.contains(holder)) {
+                    itemHolders.add(holder);
+                    BenchmarkFiles.CreateRandomFile(new File(nodeDirectories.get(holder), "uploads/item-" + item + ".dat"), fileSize);
+                }
+            }
+            holders.add(itemHolders);
+        }
+        for(int i = 0; i < nodeCount; i++) {
+            ServerOptions options = new ServerOptions();
+            options.engine = nodeOptions.engine;
+            options.threads = nodeOptions.threads;
+            options.uploadsDirectory = new File(nodeDirectories.get(i), "uploads").getPath();
+            options.downloadsDirectory = new File(nodeDirectories.get(i), "downloads").getPath();
+            //Nodes are started unconnected and joined into the topology afterwards
+            int port = FreePort();
+            Server node = new Server(port, options);
+            if(node.GetClientHandler() == null) {
+                throw new IOException("Could not start node " + i);
+            }
+            node.start();
+            int index = i;
+            node.GetClientHandler().SetDownloadProgressListener((fileName, downloadedBytes, size) -> {
+                CompletableFuture<Void> pending = pendingDownloads.get(index);
+                if(pending != null && downloadedBytes >= size) {
+                    pending.complete(null);
+                }
+            });
+            nodes.add(node);
+            ports.add(port);
+        }
+    }
+
+    //Joins the nodes into the topology with permanent connections, returns the number of links made
+    private int Connect() throws IOException {
+        HashSet<Long> links = new HashSet<>();
+        for(int i = 1; i < nodeCount; i++) {
+            int target = topology.equals("chain") ? i - 1 : topology.equals("star") ? 0 : random.nextInt(i);
+            Link(i, target, true, links);
+        }
+        if(topology.equals("random")) {
+            //Every link adds to the degree of two nodes
+            long wanted = (long) nodeCount * degree / 2;
+            int attempts = 0;
+            while(links.size() < wanted && attempts++ < wanted * 20) {
+                Link(random.nextInt(nodeCount), random.nextInt(nodeCount), false, links);
+            }
+        }
+        return links.size();
+    }
+
+    private void Link(int from, int to, boolean primary, HashSet<Long> links) throws IOException {
+        if(from == to || !links.add((long) Math.min(from, to) * nodeCount + Math.max(from, to))) {
+            return;
+        }
+        ClientHandler handler = nodes.get(from).GetClientHandler();
+        handler.ConnectToClient(ClientHandler.OpenSocket("127.0.0.1", ports.get(to)), primary, true);
+    }
+
+    //Runs the searches one at a time, downloading after every so many of them
+    private void RunWorkload() throws Exception {
+        long[] firstLatencies = new long[searchCount];
+        long[] lastLatencies = new long[searchCount];
+        int answered = 0;
+        long frames = 0;
+        long duplicates = 0;
+        double reach = 0;
+        int downloadEvery = downloadCount == 0 ? Integer.MAX_VALUE : Math.max(1, searchCount / downloadCount);
+        int downloads = 0;
+        int failedDownloads = 0;
+        long downloadedBytes = 0;
+        long downloadNanos = 0;
+        for(int s = 0; s < searchCount; s++) {
+            int searcher = random.nextInt(nodeCount);
+            int item = random.nextInt(holders.size());
+            long framesBefore = DispatchedFrames();
+            long duplicatesBefore = SuppressedDuplicates();
+            long[] arrivals = new long[] { 0, 0 };
+            HashSet<Object> responders = new HashSet<>();
+            long start = System.nanoTime();
+            SearchHandle search = nodes.get(searcher).GetClientHandler().Search("item-" + item + ".dat");
+            search.OnResult(result -> {
+                synchronized(arrivals) {
+                    long now = System.nanoTime() - start;
+                    if(arrivals[0] == 0) {
+                        arrivals[0] = now;
+                    }
+                    arrivals[1] = now;
+                    responders.add(result.clientId);
+                }
+            });
+            //Answers are collected for the search window, by then the flood has died down
+            Thread.sleep(searchWindowMillis);
+            synchronized(arrivals) {
+                firstLatencies[answered] = arrivals[0];
+                lastLatencies[answered] = arrivals[1];
+                if(arrivals[0] > 0) {
+                    answered++;
+                }
+                int localHolder = holders.get(item).contains(searcher) ? 1 : 0;
+                int remoteHolders = holders.get(item).size() - localHolder;
+                reach += remoteHolders == 0 ? 1 : responders.size() / (double) remoteHolders;
+            }
+            frames += DispatchedFrames() - framesBefore;
+            duplicates += SuppressedDuplicates() - duplicatesBefore;
+
+            if(s % downloadEvery == downloadEvery - 1 && downloads + failedDownloads < downloadCount) {
+                ArrayList<SearchResults> found = search.GetResults();
+                if(found.isEmpty()) {
+                    failedDownloads++;
+                    continue;
+                }
+                long downloadStart = System.nanoTime();
+                if(Download(searcher)) {
+                    downloads++;
+                    downloadedBytes += fileSize;
+                    downloadNanos += System.nanoTime() - downloadStart;
+                } else {
+                    failedDownloads++;
+                }
+            }
+        }
+        long[] first = Arrays.copyOf(firstLatencies, answered);
+        long[] last = Arrays.copyOf(lastLatencies, answered);
+        Arrays.sort(first);
+        Arrays.sort(last);
+        results.put("searches", searchCount);
+        results.put("searchesAnswered", answered);
+        results.put("framesPerSearch", frames / (double) searchCount);
+        results.put("duplicatesSuppressedPerSearch", duplicates / (double) searchCount);
+        results.put("holdersReached", reach / searchCount);
+        results.put("firstAnswerMillisP50", Percentile(first, 50));
+        results.put("firstAnswerMillisP90", Percentile(first, 90));
+        results.put("firstAnswerMillisP99", Percentile(first, 99));
+        results.put("lastAnswerMillisP50", Percentile(last, 50));
+        results.put("lastAnswerMillisP90", Percentile(last, 90));
+        results.put("lastAnswerMillisP99", Percentile(last, 99));
+        results.put("downloads", downloads);
+        results.put("failedDownloads", failedDownloads);
+        results.put("downloadMiBPerSecond", downloadNanos == 0 ? 0 : downloadedBytes / (1024.0 * 1024.0) / (downloadNanos / 1e9));
+    }
+
+    //Downloads the first file found by a node's last search and waits for it to be complete on disk
+    private boolean Download(int node) throws InterruptedException {
+        CompletableFuture<Void> pending = new CompletableFuture<>();
+        pendingDownloads.put(node, pending);
+        try {
+            nodes.get(node).GetClientHandler().StartFileDownload(0, 0);
+            pending.get(60, TimeUnit.SECONDS);
+            File downloads = new File(nodeDirectories.get(node), "downloads");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while(!DownloadJournal.FindAll(downloads).isEmpty()) {
+                if(System.nanoTime() > deadline) {
+                    return false;
+                }
+                Thread.sleep(1);
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            pendingDownloads.remove(node);
+        }
+    }
+
+    private long DispatchedFrames() {
+        long frames = 0;
+        for(Server node : nodes) {
+            frames += node.GetClientHandler().GetDispatchStats().GetDispatchedCount();
+        }
+        return frames;
+    }
+
+    private long SuppressedDuplicates() {
+        long duplicates = 0;
+        for(Server node : nodes) {
+            duplicates += node.GetClientHandler().GetDispatchStats().GetSuppressedDuplicateCount();
+        }
+        return duplicates;
+    }
+
+    private void Report(PrintStream console) throws IOException {
+        LinkedHashMap<String, Object> configuration = new LinkedHashMap<>();
+        configuration.put("nodes", nodeCount);
+        configuration.put("topology", topology);
+        configuration.put("degree", degree);
+        configuration.put("replicas", replicas);
+        configuration.put("fileSize", fileSize);
+        configuration.put("searchWindowMillis", searchWindowMillis);
+        configuration.put("engine", nodeOptions.engine.name().toLowerCase());
+        configuration.put("threads", nodeOptions.threads.name().toLowerCase());
+        configuration.put("seed", seed);
+        for(Map.Entry<String, Object> result : results.entrySet()) {
+            Object value = result.getValue();
+            console.printf("%-32s %s\n", result.getKey(), value instanceof Double ? String.format("%.3f", (Double) value) : value);
+        }
+        try (Writer writer = new FileWriter(output)) {
+            writer.write("{\n    \"configuration\" : ");
+            WriteObject(writer, configuration);
+            writer.write(",\n    \"results\" : ");
+            WriteObject(writer, results);
+            writer.write("\n}\n");
+        }
+        console.println("Results written to " + output);
+    }
+
+    private static void WriteObject(Writer writer, Map<String, Object> values) throws IOException {
+        writer.write("{");
+        int written = 0;
+        for(Map.Entry<String, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            writer.write((written++ == 0 ? "\n" : ",\n") + "        " + Quote(entry.getKey()) + " : "
+                    + (value instanceof String ? Quote((String) value) : String.valueOf(value)));
+        }
+        writer.write("\n    }");
+    }
+
+    private static String Quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for(char c : value.toCharArray()) {
+            if(c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if(c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    //The value below which the given percentage of the sorted nanosecond values fall, in milliseconds
+    private static double Percentile(long[] sorted, int percentage) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentage / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static int FreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static long UsedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
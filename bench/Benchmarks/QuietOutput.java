@@ -0,0 +1,24 @@
+package Benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+//Hides what the hosts started by a benchmark print while it runs, which would otherwise be mixed into the results.
+//JMH writes its own output through the stream it was started with, so that is not affected
+public class QuietOutput {
+    private static PrintStream console = null;
+
+    public static synchronized void Start() {
+        if(console == null) {
+            console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+    }
+
+    public static synchronized void Stop() {
+        if(console != null) {
+            System.setOut(console);
+            console = null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package Benchmarks;
+
+import IOThreads.FileListUpdater;
+import IOThreads.ManifestCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Benchmarks of FileListUpdater.SearchForFile, which answers every search that reaches this host, over uploads
+ * directories of different sizes. About one file in a hundred has "report" in its name. Terms of three or more
+ * characters are looked up through the trigram index and shorter ones scan every file. The score is searches per
+ * second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchIndexBenchmarks {
+    private static final String[] WORDS = { "photo", "invoice", "notes", "backup", "draft", "music", "video", "scan", "archive", "budget" };
+
+    @Param({ "10000", "50000" })
+    public int files;
+
+    @Param({ "report", "ab" })
+    public String term;
+
+    private File uploads;
+    private FileListUpdater index;
+    private final ArrayList<String> matches = new ArrayList<>();
+
+    @Setup
+    public void CreateIndex() throws IOException {
+        QuietOutput.Start();
+        uploads = BenchmarkFiles.CreateTempDirectory("index-bench");
+        Random random = new Random(files);
+        //The files are spread over directories of a thousand files each like a real shared folder
+        for(int i = 0; i < files; i++) {
+            File directory = new File(uploads, "folder-" + (i / 1000));
+            directory.mkdir();
+            String name = WORDS[random.nextInt(WORDS.length)] + "-" + i + (random.nextInt(100) == 0 ? "-report" : "") + ".dat";
+            new File(directory, name).createNewFile();
+        }
+        index = new FileListUpdater(uploads, new ManifestCache());
+    }
+
+    @TearDown
+    public void DeleteIndex() {
+        index.Close();
+        BenchmarkFiles.Delete(uploads);
+        QuietOutput.Stop();
+    }
+
+    @Benchmark
+    public int Search() {
+        matches.clear();
+        index.SearchForFile(term, matches);
+        return matches.size();
+    }
+}
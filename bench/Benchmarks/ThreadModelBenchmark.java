@@ -0,0 +1,166 @@
+package Benchmarks;
+
+import SocketThreads.PeerThreads;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Compares platform threads with virtual threads for the thread engine's design of one blocking reader per connection.
+ * A loopback server accepts the given number of connections and gives each one a reader, like a ClientRequest, that
+ * answers every frame with a frame of the same size. Each connection is driven by a thread of the same kind that sends
+ * a number of request frames and waits for every answer.
+ *
+ * Usage: java -cp <classes> Benchmarks.ThreadModelBenchmark [--connections=N] [--round-trips=N] [--frame-size=N]
+ *        [--threads=platform|virtual|both]
+ *
+ * Reported for each mode: the time for every connection to finish its round trips, the round trips per second, the
+ * peak number of platform threads, and the heap in use while every connection was open.
+ */
+public class ThreadModelBenchmark {
+    private static int connections = 1000;
+    private static int roundTrips = 200;
+    private static int frameSize = 512;
+
+    public static void main(String[] args) throws Exception {
+        String threads = "both";
+        for(String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if(arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(value);
+            } else if(arg.startsWith("--round-trips=")) {
+                roundTrips = Integer.parseInt(value);
+            } else if(arg.startsWith("--frame-size=")) {
+                frameSize = Integer.parseInt(value);
+            } else if(arg.startsWith("--threads=")) {
+                threads = value;
+            } else {
+                System.out.println("Unknown argument " + arg);
+                System.exit(1);
+            }
+        }
+        System.out.printf("%d connections, %d round trips each, %d byte frames\n", connections, roundTrips, frameSize);
+        if(!threads.equals("virtual")) {
+            Run(false);
+        }
+        if(!threads.equals("platform")) {
+            if(PeerThreads.IsVirtualSupported()) {
+                Run(true);
+            } else {
+                System.out.println("virtual:  skipped, virtual threads need Java 21 or newer");
+            }
+        }
+    }
+
+    private static void Run(boolean virtual) throws Exception {
+        PeerThreads peerThreads = new PeerThreads(virtual);
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        System.gc();
+        threadBean.resetPeakThreadCount();
+        long heapBefore = UsedHeap();
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), connections);
+        ServerSocket serverSocket = serverChannel.socket();
+        int port = serverSocket.getLocalPort();
+        //Accepts every connection and starts a reader for it, like Server.run and Client.StartThreads
+        peerThreads.Start("bench-accept", () -> {
+            for(int i = 0; i < connections; i++) {
+                try {
+                    Socket accepted = serverSocket.accept();
+                    peerThreads.Start("bench-reader", () -> Echo(accepted));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+
+        //Every driver connects and then waits so that all of the connections are open at the same time before the
+        //heap is measured and the round trips start
+        CountDownLatch connected = new CountDownLatch(connections);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(connections);
+        AtomicLong failures = new AtomicLong();
+        ArrayList<Socket> sockets = new ArrayList<>();
+        for(int i = 0; i < connections; i++) {
+            Socket socket = SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).socket();
+            sockets.add(socket);
+            peerThreads.Start("bench-driver", () -> {
+                try {
+                    connected.countDown();
+                    go.await();
+                    Drive(socket);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        connected.await();
+        long heapConnected = UsedHeap();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for(Socket socket : sockets) {
+            socket.close();
+        }
+        serverSocket.close();
+        System.out.printf("%-9s %8.3f s  %10.0f round trips/s  %6d peak platform threads  %8.1f MiB heap while connected  %d failures\n",
+                virtual ? "virtual:" : "platform:", seconds, (double) connections * roundTrips / seconds,
+                threadBean.getPeakThreadCount(), (heapConnected - heapBefore) / (1024.0 * 1024.0), failures.get());
+    }
+
+    //Sends a frame and waits for the answer the given number of times
+    private static void Drive(Socket socket) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream dataIn = new DataInputStream(socket.getInputStream());
+        byte[] message = new byte[frameSize];
+        for(int i = 0; i < roundTrips; i++) {
+            dataOut.writeByte(-4);
+            dataOut.writeInt(message.length);
+            dataOut.write(message);
+            dataOut.flush();
+            dataIn.readByte();
+            dataIn.readFully(message, 0, dataIn.readInt());
+        }
+    }
+
+    //Reads frames the way ClientRequest does and answers each one with the same payload
+    private static void Echo(Socket socket) {
+        try {
+            DataInputStream dataIn = new DataInputStream(socket.getInputStream());
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while(true) {
+                dataIn.readByte();
+                byte[] message = new byte[dataIn.readInt()];
+                dataIn.readFully(message);
+                dataOut.writeByte(-5);
+                dataOut.writeInt(message.length);
+                dataOut.write(message);
+                dataOut.flush();
+            }
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    private static long UsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
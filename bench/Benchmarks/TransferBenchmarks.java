@@ -0,0 +1,123 @@
+package Benchmarks;
+
+import IOThreads.DownloadJournal;
+import SocketThreads.ClientHandler;
+import SocketThreads.SearchHandle;
+import SocketThreads.Server;
+import SocketThreads.ServerOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * End to end throughput of a single peer download between two Servers in this process over loopback, from the file
+ * request to the file being complete on disk and its journal removed. The downloading host joins the seeding host's
+ * network, finds the file with a search once, and then downloads it once per operation, deleting it again afterwards.
+ * The score is downloads per second and the bytes metric is the throughput of the downloaded data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferBenchmarks {
+    //How long a single download may take before the benchmark fails
+    private static final long DOWNLOAD_TIMEOUT_SECONDS = 60;
+
+    @Param({ "thread", "nio" })
+    public String engine;
+
+    @Param({ "67108864" })
+    public long fileSize;
+
+    private File directory;
+    private File downloads;
+    private Server seeder;
+    private Server downloader;
+    private ClientHandler downloaderHandler;
+    private volatile CompletableFuture<Void> downloaded = null;
+
+    @Setup
+    public void StartHosts() throws Exception {
+        QuietOutput.Start();
+        directory = BenchmarkFiles.CreateTempDirectory("transfer-bench");
+        File seederUploads = new File(directory, "seeder/uploads");
+        downloads = new File(directory, "downloader/downloads");
+        seederUploads.mkdirs();
+        downloads.mkdirs();
+        new File(directory, "seeder/downloads").mkdirs();
+        new File(directory, "downloader/uploads").mkdirs();
+        BenchmarkFiles.CreateRandomFile(new File(seederUploads, "payload.bin"), fileSize);
+
+        int seederPort = FreePort();
+        int downloaderPort = FreePort();
+        seeder = new Server(seederPort, Options(engine, new File(directory, "seeder")));
+        seeder.start();
+        downloader = new Server(downloaderPort, "127.0.0.1", seederPort, Options(engine, new File(directory, "downloader")));
+        downloader.start();
+        downloaderHandler = downloader.GetClientHandler();
+        if(seeder.GetClientHandler() == null || downloaderHandler == null) {
+            throw new IOException("Could not start the hosts");
+        }
+        downloaderHandler.SetDownloadProgressListener((fileName, downloadedBytes, size) -> {
+            CompletableFuture<Void> current = downloaded;
+            if(current != null && downloadedBytes >= size) {
+                current.complete(null);
+            }
+        });
+        //The file is downloaded from the first result of this search every time
+        SearchHandle search = downloaderHandler.Search("payload");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(search.GetResults().isEmpty()) {
+            if(System.nanoTime() > deadline) {
+                throw new IOException("The seeding host was not found");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Benchmark
+    public void Download(DataCounter counter) throws Exception {
+        CompletableFuture<Void> current = new CompletableFuture<>();
+        downloaded = current;
+        downloaderHandler.StartFileDownload(0, 0);
+        current.get(DOWNLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        //The download is over once its journal is gone, the file is closed by then
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DOWNLOAD_TIMEOUT_SECONDS);
+        while(!DownloadJournal.FindAll(downloads).isEmpty()) {
+            if(System.nanoTime() > deadline) {
+                throw new IOException("The download did not finish");
+            }
+            Thread.sleep(1);
+        }
+        new File(downloads, "payload.bin").delete();
+        counter.bytes += fileSize;
+    }
+
+    @TearDown
+    public void StopHosts() throws IOException {
+        downloader.CloseServer();
+        seeder.CloseServer();
+        BenchmarkFiles.Delete(directory);
+        QuietOutput.Stop();
+    }
+
+    private static ServerOptions Options(String engine, File nodeDirectory) {
+        ServerOptions options = new ServerOptions();
+        options.engine = engine.equals("nio") ? ServerOptions.Engine.NIO : ServerOptions.Engine.THREAD;
+        options.uploadsDirectory = new File(nodeDirectory, "uploads").getPath();
+        options.downloadsDirectory = new File(nodeDirectory, "downloads").getPath();
+        return options;
+    }
+
+    private static int FreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
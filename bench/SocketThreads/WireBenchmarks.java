@@ -0,0 +1,379 @@
+package SocketThreads;
+
+import Benchmarks.BenchmarkFiles;
+import Benchmarks.DataCounter;
+import Benchmarks.QuietOutput;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Benchmarks of the code every frame passes through on its way to and from a peer: the connection writer behind
+ * Client.Send, SendFileChunk and SendFileRegion, the ClientRequest reader and the selector engine that decode frames,
+ * and the encoding, deduplication and routing of searches (-4) and their replies (-5). They are in the SocketThreads
+ * package so that they can reach the package private classes they measure.
+ *
+ * The framing and decoding benchmarks run over a loopback connection to a host in this process. The framing ones send
+ * through a Client and a thread on the other end throws the data away, the decoding ones write encoded frames into
+ * the connection as fast as the host reads them. Since the socket buffers hold only a small part of what is sent in an
+ * iteration, the rate the data is written at is the rate it is decoded at. The score of every benchmark is frames or
+ * operations per second, and the ones that carry file data also report its throughput as the bytes metric.
+ */
+public class WireBenchmarks {
+    private static final int MiB = 1024 * 1024;
+    //The frames Client.Send is called with in one operation, fewer than the connection writer queues
+    private static final int SEND_BATCH = 512;
+
+    //How every benchmark here is run, JMH takes these from the superclass of a benchmark but not from the class it is
+    //nested in
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public abstract static class WireBenchmark {
+
+    }
+
+    //A host in this process with a loopback connection to it, the benchmark holds the connecting end
+    private static class Loopback implements AutoCloseable {
+        final File directory;
+        final ServerSocketChannel listener;
+        final ClientHandler handler;
+        final SelectorEngine selectorEngine;
+        final SocketChannel connecting;
+        final SocketChannel accepted;
+
+        Loopback(boolean nio) throws IOException {
+            QuietOutput.Start();
+            directory = BenchmarkFiles.CreateTempDirectory("wire-bench");
+            new File(directory, "uploads").mkdir();
+            new File(directory, "downloads").mkdir();
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            int port = listener.socket().getLocalPort();
+            handler = new ClientHandler(UUID.randomUUID(), listener.socket(), "127.0.0.1", port, new File(directory, "uploads"), new File(directory, "downloads"));
+            if(nio) {
+                selectorEngine = new SelectorEngine(1, handler.GetBufferPool());
+                handler.SetSelectorEngine(selectorEngine);
+            } else {
+                selectorEngine = null;
+            }
+            handler.start();
+            connecting = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            accepted = listener.accept();
+        }
+
+        //Reads and throws away everything arriving on the accepted end until the connection is closed
+        void DiscardReceived() {
+            Thread discarder = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(MiB);
+                try {
+                    while(accepted.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                } catch (IOException ignored) {
+
+                }
+            }, "bench-discard");
+            discarder.setDaemon(true);
+            discarder.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            connecting.close();
+            accepted.close();
+            handler.Shutdown();
+            listener.close();
+            if(selectorEngine != null) {
+                selectorEngine.Close();
+            }
+            BenchmarkFiles.Delete(directory);
+            QuietOutput.Stop();
+        }
+    }
+
+    //Client.Send of small frames, which are coalesced by the connection writer
+    @State(Scope.Benchmark)
+    public static class Send extends WireBenchmark {
+        @Param({ "64", "1024" })
+        public int frameSize;
+
+        private Loopback loopback;
+        private Client client;
+        private byte[] message;
+        private final byte[] requestId = UUIDUtils.AsBytes(UUID.randomUUID());
+
+        @Setup
+        public void Connect() throws IOException {
+            loopback = new Loopback(false);
+            client = new Client(loopback.connecting.socket(), loopback.handler, false);
+            message = new byte[frameSize];
+            loopback.DiscardReceived();
+        }
+
+        @TearDown
+        public void Disconnect() throws IOException {
+            client.Close();
+            loopback.close();
+        }
+
+        @Benchmark
+        @OperationsPerInvocation(SEND_BATCH)
+        public void SendFrames() throws IOException {
+            for(int i = 0; i < SEND_BATCH; i++) {
+                client.Send((byte) -5, message);
+            }
+            //An empty chunk is written once every frame before it is, so the batch is on the wire before the next one
+            //and the connection is not failed for letting the queue fill up
+            client.SendFileChunk(requestId, message, 0);
+        }
+    }
+
+    //Client.SendFileChunk, the copying path used when zero copy is off
+    @State(Scope.Benchmark)
+    public static class SendFileChunk extends WireBenchmark {
+        @Param({ "8175", "65536" })
+        public int chunkSize;
+
+        private Loopback loopback;
+        private Client client;
+        private final byte[] requestId = UUIDUtils.AsBytes(UUID.randomUUID());
+        private byte[] chunk;
+
+        @Setup
+        public void Connect() throws IOException {
+            loopback = new Loopback(false);
+            client = new Client(loopback.connecting.socket(), loopback.handler, false);
+            chunk = new byte[chunkSize];
+            loopback.DiscardReceived();
+        }
+
+        @TearDown
+        public void Disconnect() throws IOException {
+            client.Close();
+            loopback.close();
+        }
+
+        @Benchmark
+        public void SendChunk(DataCounter counter) throws IOException {
+            client.SendFileChunk(requestId, chunk, chunk.length);
+            counter.bytes += chunk.length;
+        }
+    }
+
+    //Client.SendFileRegion, frames sent from a file with transferTo in the sizes the transfer scheduler uses
+    @State(Scope.Benchmark)
+    public static class SendFileRegion extends WireBenchmark {
+        private static final long FILE_SIZE = 64L * MiB;
+
+        @Param({ "" + TransferScheduler.INITIAL_FRAME_SIZE, "" + TransferScheduler.MAX_FRAME_SIZE })
+        public int regionSize;
+
+        private Loopback loopback;
+        private Client client;
+        private final byte[] requestId = UUIDUtils.AsBytes(UUID.randomUUID());
+        private FileChannel file;
+        private long position = 0;
+
+        @Setup
+        public void Connect() throws IOException {
+            loopback = new Loopback(false);
+            client = new Client(loopback.connecting.socket(), loopback.handler, false);
+            File source = BenchmarkFiles.CreateRandomFile(new File(loopback.directory, "region.bin"), FILE_SIZE);
+            file = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            loopback.DiscardReceived();
+        }
+
+        @TearDown
+        public void Disconnect() throws IOException {
+            client.Close();
+            file.close();
+            loopback.close();
+        }
+
+        @Benchmark
+        public void SendRegion(DataCounter counter) throws IOException {
+            client.SendFileRegion(requestId, file, position, regionSize);
+            position = (position + regionSize) % (FILE_SIZE - regionSize);
+            counter.bytes += regionSize;
+        }
+    }
+
+    //Frames read and decoded by the host's reader for the accepted end, a ClientRequest thread or a selector event loop.
+    //About a MiB of frames is written in every operation. File chunks carry a request ID no download knows so they are
+    //dropped once decoded, and control frames are in a search reply version no host reads so the dispatcher drops them
+    public abstract static class Decode extends WireBenchmark {
+        static final int BATCH_BYTES = MiB;
+        private Loopback loopback;
+        private ByteBuffer batch;
+        //The file data carried by a batch
+        private long batchData;
+
+        void Connect(boolean nio, byte indicator, int frameSize) throws IOException {
+            loopback = new Loopback(nio);
+            Client reader = new Client(loopback.accepted.socket(), loopback.handler, false);
+            reader.clientId = UUID.randomUUID();
+            reader.StartThreads();
+            int batchFrames = Math.max(1, BATCH_BYTES / (frameSize + 5));
+            batch = ByteBuffer.allocateDirect(batchFrames * (frameSize + 5));
+            byte[] message = new byte[frameSize];
+            //A request ID in the first 16 bytes of a chunk, a version byte of 0 in a control frame
+            System.arraycopy(UUIDUtils.AsBytes(UUID.randomUUID()), 0, message, 0, Math.min(16, frameSize));
+            if(indicator != (byte) 11) {
+                message[0] = 0;
+            }
+            for(int i = 0; i < batchFrames; i++) {
+                batch.put(indicator);
+                batch.putInt(frameSize);
+                batch.put(message);
+            }
+            batch.flip();
+            batchData = indicator == (byte) 11 ? (long) batchFrames * (frameSize - 16) : 0;
+        }
+
+        //Writes the batch and returns the file data it carried
+        long WriteBatch() throws IOException {
+            batch.rewind();
+            while(batch.hasRemaining()) {
+                loopback.connecting.write(batch);
+            }
+            return batchData;
+        }
+
+        @TearDown
+        public void Disconnect() throws IOException {
+            loopback.close();
+        }
+    }
+
+    //11 frames, counted by the file data they carry
+    @State(Scope.Benchmark)
+    public static class DecodeFileChunk extends Decode {
+        @Param({ "thread", "nio" })
+        public String engine;
+
+        @Param({ "8175", "" + TransferScheduler.INITIAL_FRAME_SIZE, "" + TransferScheduler.MAX_FRAME_SIZE })
+        public int chunkSize;
+
+        @Setup
+        public void Connect() throws IOException {
+            Connect(engine.equals("nio"), (byte) 11, chunkSize);
+        }
+
+        @Benchmark
+        public void DecodeChunks(DataCounter counter) throws IOException {
+            counter.bytes += WriteBatch();
+        }
+    }
+
+    //Small control frames, counted one by one
+    @State(Scope.Benchmark)
+    public static class DecodeControl extends Decode {
+        @Param({ "thread", "nio" })
+        public String engine;
+
+        @Setup
+        public void Connect() throws IOException {
+            Connect(engine.equals("nio"), (byte) -5, 64);
+        }
+
+        @Benchmark
+        @OperationsPerInvocation(BATCH_BYTES / (64 + 5))
+        public void DecodeFrames() throws IOException {
+            WriteBatch();
+        }
+    }
+
+    //Building a new search request, done for every search this host starts
+    @State(Scope.Benchmark)
+    public static class EncodeRequest extends WireBenchmark {
+        private final UUID queryId = UUID.randomUUID();
+
+        @Benchmark
+        public byte[] Encode() {
+            return SearchCodec.NewRequest(queryId, "quarterly report");
+        }
+    }
+
+    //What the dispatcher does with a search request before it is forwarded: the version check, recording the query in
+    //the seen query cache and raising the hop count. There are more distinct queries than the cache holds so every
+    //one is new to it, like the searches arriving at a busy host
+    @State(Scope.Benchmark)
+    public static class Route extends WireBenchmark {
+        private static final int QUERIES = 65536;
+        private final byte[][] requests = new byte[QUERIES][];
+        private final SeenQueryCache seenQueries = new SeenQueryCache(16384, 120_000);
+        private int next = 0;
+
+        @Setup
+        public void CreateRequests() {
+            for(int i = 0; i < QUERIES; i++) {
+                requests[i] = SearchCodec.NewRequest(UUID.randomUUID(), "quarterly report");
+            }
+        }
+
+        @Benchmark
+        public boolean RouteRequest() throws IOException {
+            byte[] request = requests[next];
+            next = (next + 1) % QUERIES;
+            if(!SearchCodec.IsSupported(request) || !seenQueries.MarkSeen(SearchCodec.QueryId(request), null)) {
+                return false;
+            }
+            SearchCodec.SearchTerm(request);
+            SearchCodec.AddHop(request);
+            return true;
+        }
+    }
+
+    private static SearchResults Hits(int hits) {
+        String[] files = new String[hits];
+        long[] fileSizes = new long[hits];
+        byte[][] fileRoots = new byte[hits][];
+        for(int i = 0; i < hits; i++) {
+            files[i] = "reports/2024/quarterly report " + i + ".pdf";
+            fileSizes[i] = 1_000_000L + i;
+            fileRoots[i] = new byte[32];
+        }
+        return new SearchResults("127.0.0.1", 8556, UUID.randomUUID(), files, fileSizes, fileRoots);
+    }
+
+    //Encoding the reply to a search, done by every host with matching files, and decoding it once it reaches the host
+    //that started the search
+    @State(Scope.Benchmark)
+    public static class Reply extends WireBenchmark {
+        @Param({ "1", "20" })
+        public int hits;
+
+        private final SearchCodec searchCodec = new SearchCodec();
+        private final byte[] request = SearchCodec.NewRequest(UUID.randomUUID(), "quarterly report");
+        private SearchResults results;
+        private byte[] reply;
+
+        @Setup
+        public void CreateReply() {
+            results = Hits(hits);
+            reply = searchCodec.EncodeReply(request, results);
+        }
+
+        @Benchmark
+        public byte[] EncodeReply() {
+            return searchCodec.EncodeReply(request, results);
+        }
+
+        @Benchmark
+        public SearchResults DecodeReply() throws IOException {
+            return SearchCodec.DecodeReply(reply);
+        }
+    }
+}
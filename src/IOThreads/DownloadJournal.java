@@ -0,0 +1,226 @@
+package IOThreads;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+//A sidecar file kept next to a partial download. It records the name of the file on the serving peers, the size of the
+//file, the peers it was being downloaded from, and which byte ranges have been written and flushed to disk, so that a
+//download can continue where it stopped after a dropped connection or a restart of this host
+public class DownloadJournal {
+    private static final String SUFFIX = ".journal";
+
+    //A peer that the download was using, the ID may be out of date if that peer has restarted since
+    public static class Source {
+        public final UUID clientId;
+        public final String address;
+        public final int port;
+
+        public Source(UUID clientId, String address, int port) {
+            this.clientId = clientId;
+            this.address = address;
+            this.port = port;
+        }
+    }
+
+    private final File target;
+    private final File journalFile;
+    private final String remoteFileName;
+    private long fileSize = -1;
+    private final ArrayList<Source> sources = new ArrayList<>();
+    //Written ranges as start -> end (exclusive), ranges never overlap or touch since they are merged when added
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    private DownloadJournal(File target, String remoteFileName) {
+        this.target = target;
+        this.journalFile = new File(target.getPath() + SUFFIX);
+        this.remoteFileName = remoteFileName;
+    }
+
+    //Creates a new empty journal for a download that is about to start
+    public static DownloadJournal Create(File target, String remoteFileName) throws IOException {
+        DownloadJournal journal = new DownloadJournal(target, remoteFileName);
+        journal.Save();
+        return journal;
+    }
+
+    //Looks through the downloads directory for an unfinished download of the named file
+    public static DownloadJournal Find(File downloadsDirectory, String remoteFileName) {
+        for(DownloadJournal journal : FindAll(downloadsDirectory)) {
+            if(journal.remoteFileName.equals(remoteFileName)) {
+                return journal;
+            }
+        }
+        return null;
+    }
+
+    //Loads every journal in the downloads directory whose partial file still exists
+    public static ArrayList<DownloadJournal> FindAll(File downloadsDirectory) {
+        ArrayList<DownloadJournal> journals = new ArrayList<>();
+        File[] contents = downloadsDirectory.listFiles();
+        if(contents != null) {
+            for(File file : contents) {
+                if(file.isFile() && file.getName().endsWith(SUFFIX)) {
+                    try {
+                        DownloadJournal journal = Load(file);
+                        if(journal.target.exists()) {
+                            journals.add(journal);
+                        }
+                    } catch (IOException ignored) {
+
+                    }
+                }
+            }
+        }
+        return journals;
+    }
+
+    private static DownloadJournal Load(File journalFile) throws IOException {
+        String targetPath = journalFile.getPath().substring(0, journalFile.getPath().length() - SUFFIX.length());
+        DownloadJournal journal = null;
+        try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                int separator = line.indexOf('=');
+                if(separator < 0) {
+                    continue;
+                }
+                String key = line.substring(0, separator);
+                String value = line.substring(separator + 1);
+                //The file name always comes first since it is needed to create the journal
+                if(key.equals("file")) {
+                    journal = new DownloadJournal(new File(targetPath), value);
+                } else if(journal == null) {
+                    throw new IOException("Journal " + journalFile + " does not start with a file name");
+                } else if(key.equals("size")) {
+                    journal.fileSize = Long.parseLong(value);
+                } else if(key.equals("source")) {
+                    //source=<peer id> <address>:<port>
+                    String[] idAndAddress = value.split(" ");
+                    int portSeparator = idAndAddress[1].lastIndexOf(':');
+                    journal.sources.add(new Source(UUID.fromString(idAndAddress[0]), idAndAddress[1].substring(0, portSeparator), Integer.parseInt(idAndAddress[1].substring(portSeparator + 1))));
+                } else if(key.equals("range")) {
+                    //range=<start>-<end>
+                    String[] startAndEnd = value.split("-");
+                    journal.MarkWritten(Long.parseLong(startAndEnd[0]), Long.parseLong(startAndEnd[1]));
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Journal " + journalFile + " is malformed", e);
+        }
+        if(journal == null) {
+            throw new IOException("Journal " + journalFile + " is empty");
+        }
+        return journal;
+    }
+
+    //Writes the journal to a temporary file and moves it over the old one so a crash never leaves half a journal
+    public synchronized void Save() throws IOException {
+        StringBuilder contents = new StringBuilder();
+        contents.append("file=").append(remoteFileName).append('\n');
+        contents.append("size=").append(fileSize).append('\n');
+        for(Source source : sources) {
+            contents.append("source=").append(source.clientId).append(' ').append(source.address).append(':').append(source.port).append('\n');
+        }
+        for(Map.Entry<Long, Long> range : ranges.entrySet()) {
+            contents.append("range=").append(range.getKey()).append('-').append(range.getValue()).append('\n');
+        }
+        File temporary = new File(journalFile.getPath() + ".tmp");
+        Files.write(temporary.toPath(), contents.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(temporary.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //Removes the journal once the download is complete
+    public synchronized void Delete() {
+        journalFile.delete();
+    }
+
+    //Records the size of the file on the serving peer. If the journal already had a different size then the file has
+    //changed since the download started, so everything written so far is forgotten and false is returned
+    public synchronized boolean SetFileSize(long size) {
+        if(fileSize >= 0 && fileSize != size) {
+            fileSize = size;
+            ranges.clear();
+            return false;
+        }
+        fileSize = size;
+        return true;
+    }
+
+    public synchronized void SetSources(List<Source> newSources) {
+        sources.clear();
+        sources.addAll(newSources);
+    }
+
+    //Adds the range [start, end) to the written ranges, merging it with any ranges it overlaps or touches
+    public synchronized void MarkWritten(long start, long end) {
+        if(end <= start) {
+            return;
+        }
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if(before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+        while(after != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            ranges.remove(after.getKey());
+            after = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    //Removes the range [start, end) from the written ranges, used when data on disk turns out to be corrupt
+    public synchronized void MarkMissing(long start, long end) {
+        if(end <= start) {
+            return;
+        }
+        Map.Entry<Long, Long> range = ranges.lowerEntry(end);
+        while(range != null && range.getValue() > start) {
+            ranges.remove(range.getKey());
+            if(range.getKey() < start) {
+                ranges.put(range.getKey(), start);
+            }
+            if(range.getValue() > end) {
+                ranges.put(end, range.getValue());
+            }
+            range = ranges.lowerEntry(range.getKey());
+        }
+    }
+
+    //Whether every byte of [start, end) has been written
+    public synchronized boolean IsWritten(long start, long end) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(start);
+        return range != null && range.getValue() >= end;
+    }
+
+    //The end of the range written from the start of the file, this is where a single peer download continues from
+    public synchronized long GetContiguousEnd() {
+        Long end = ranges.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    public synchronized long GetFileSize() {
+        return fileSize;
+    }
+
+    public synchronized List<Source> GetSources() {
+        return new ArrayList<>(sources);
+    }
+
+    public String GetRemoteFileName() {
+        return remoteFileName;
+    }
+
+    public File GetTarget() {
+        return target;
+    }
+}
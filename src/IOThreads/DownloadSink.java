@@ -0,0 +1,291 @@
+package IOThreads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/*
+ * Writes the data of a download to its file off the thread that receives it. Chunks are copied into a staging buffer
+ * that ends on a BUFFER_SIZE boundary of the file, so every full buffer is one aligned positional write of a whole
+ * piece. Full buffers are written by the I/O thread, and the receiving thread carries on reading from the network. At
+ * most MAX_PENDING_BUFFERS are waiting to be written, after that the receiving thread waits, which pushes back on the
+ * sending peer when the disk is slower than the network. A receiving thread that must not wait takes what fits instead
+ * and hands over the rest once a buffer is free.
+ *
+ * Every operation that touches the file runs on the I/O thread in the order it was made, so a flush, a truncation or
+ * closing the file always comes after the writes that were made before it. The staging state is guarded by a lock
+ * that is never held while waiting for a buffer, so a flush, truncation or close is not held up by a full disk queue
+ * and a virtual thread waiting for the disk does not pin its carrier. The written listener is called on the I/O
+ * thread with the end of the data written so far, everything before that position is in the file from then on.
+ */
+public class DownloadSink {
+    //The size of a staging buffer, the same as a manifest piece so each write completes a piece that can be checked
+    public static final int BUFFER_SIZE = FileManifest.PIECE_SIZE;
+    private static final int MAX_PENDING_BUFFERS = 4;
+
+    private final FileChannel channel;
+    private final Executor ioThread;
+    //Buffers that have been written and can be filled again
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final Semaphore pendingBuffers = new Semaphore(MAX_PENDING_BUFFERS);
+    //Guards the staging buffer and orders the operations handed to the I/O thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile LongConsumer writtenListener = null;
+    //The buffer being filled and the position in the file that it starts at
+    private ByteBuffer staging = null;
+    private long stagingStart;
+    //The end of the data written to the file so far
+    private volatile long writtenEnd;
+    //The error that the I/O thread hit, every later operation fails with it
+    private volatile IOException failure = null;
+
+    //The download continues from writtenEnd, which is the end of the data already in the file
+    public DownloadSink(FileChannel channel, Executor ioThread, long writtenEnd) {
+        this.channel = channel;
+        this.ioThread = ioThread;
+        this.writtenEnd = writtenEnd;
+    }
+
+    public void SetWrittenListener(LongConsumer writtenListener) {
+        this.writtenListener = writtenListener;
+    }
+
+    public long GetWrittenEnd() {
+        return writtenEnd;
+    }
+
+    //Extends the file to its full size up front so that the writes never have to grow it
+    public void SetFileSize(long fileSize) {
+        lock.lock();
+        try {
+            Run(() -> {
+                //Writing the last byte extends the file, data already written there is never overwritten since the
+                //size would already be reached
+                if(fileSize > 0 && channel.size() < fileSize) {
+                    channel.write(ByteBuffer.allocate(1), fileSize - 1);
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Copies data that belongs at position in the file into the staging buffers, the data is not kept. Unless wait is set
+    //this stops once every buffer is waiting to be written and returns false, the data's position is then past the
+    //part that was copied
+    public boolean Write(long position, ByteBuffer data, boolean wait) throws IOException {
+        //A buffer waited for outside the lock, handed back if it is not used
+        boolean permit = false;
+        lock.lock();
+        try {
+            if(failure != null) {
+                throw failure;
+            }
+            while(data.hasRemaining()) {
+                if(staging != null && stagingStart + staging.position() != position) {
+                    SubmitStaging();
+                }
+                if(staging == null) {
+                    if(!permit && !pendingBuffers.tryAcquire()) {
+                        if(!wait) {
+                            return false;
+                        }
+                        lock.unlock();
+                        try {
+                            AwaitBuffer();
+                        } finally {
+                            lock.lock();
+                        }
+                        permit = true;
+                        if(failure != null) {
+                            throw failure;
+                        }
+                        //The staging buffer may have been changed while the lock was not held
+                        continue;
+                    }
+                    permit = false;
+                    staging = FreeBuffer();
+                    stagingStart = position;
+                    staging.limit(BUFFER_SIZE - (int) (position % BUFFER_SIZE));
+                }
+                int count = Math.min(data.remaining(), staging.remaining());
+                ByteBuffer part = data.duplicate();
+                part.limit(part.position() + count);
+                staging.put(part);
+                data.position(data.position() + count);
+                position += count;
+                if(!staging.hasRemaining()) {
+                    SubmitStaging();
+                }
+            }
+            return true;
+        } finally {
+            if(permit) {
+                pendingBuffers.release();
+            }
+            lock.unlock();
+        }
+    }
+
+    //Writes out everything staged so far, the future completes once it is in the file
+    public CompletableFuture<Void> Flush() {
+        lock.lock();
+        try {
+            if(staging != null) {
+                SubmitStaging();
+            }
+            return Run(() -> {});
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Drops everything staged and cuts the file to a size, the download continues from there
+    public void Truncate(long size) {
+        lock.lock();
+        try {
+            if(staging != null) {
+                freeBuffers.offer(staging);
+                pendingBuffers.release();
+                staging = null;
+            }
+            Run(() -> {
+                channel.truncate(size);
+                writtenEnd = size;
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Writes out everything staged and closes the file, forcing it to the disk first if force is set
+    public CompletableFuture<Void> Close(boolean force) {
+        lock.lock();
+        try {
+            if(staging != null) {
+                SubmitStaging();
+            }
+        } finally {
+            lock.unlock();
+        }
+        //The file is closed even if a write failed, the future still fails with that error
+        try {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    try {
+                        if(force && failure == null) {
+                            channel.force(false);
+                        }
+                    } finally {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                if(failure != null) {
+                    throw new CompletionException(failure);
+                }
+            }, ioThread);
+        } catch (RejectedExecutionException e) {
+            //The I/O thread has been stopped since this host is shutting down
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            return CompletableFuture.failedFuture(Stopped(e));
+        }
+    }
+
+    //Waits until one of the buffers waiting to be written has been written, called without holding the lock
+    private void AwaitBuffer() throws IOException {
+        try {
+            pendingBuffers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to write", e);
+        }
+    }
+
+    //A staging buffer for a permit that has been taken
+    private ByteBuffer FreeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if(buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    //Hands the staging buffer to the I/O thread
+    private void SubmitStaging() {
+        ByteBuffer buffer = staging;
+        long position = stagingStart;
+        staging = null;
+        buffer.flip();
+        try {
+            ioThread.execute(() -> {
+                try {
+                    if(failure == null) {
+                        long end = position + buffer.remaining();
+                        long writePosition = position;
+                        while(buffer.hasRemaining()) {
+                            writePosition += channel.write(buffer, writePosition);
+                        }
+                        writtenEnd = end;
+                        LongConsumer listener = writtenListener;
+                        if(listener != null) {
+                            listener.accept(end);
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    freeBuffers.offer(buffer);
+                    pendingBuffers.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            failure = Stopped(e);
+            freeBuffers.offer(buffer);
+            pendingBuffers.release();
+        }
+    }
+
+    private interface FileTask {
+        void Run() throws IOException;
+    }
+
+    //Runs a task on the I/O thread after everything submitted before it, the future fails if any write failed
+    private CompletableFuture<Void> Run(FileTask task) {
+        try {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    if(failure != null) {
+                        throw failure;
+                    }
+                    task.Run();
+                } catch (IOException e) {
+                    if(failure == null) {
+                        failure = e;
+                    }
+                    throw new CompletionException(e);
+                }
+            }, ioThread);
+        } catch (RejectedExecutionException e) {
+            failure = Stopped(e);
+            return CompletableFuture.failedFuture(failure);
+        }
+    }
+
+    private static IOException Stopped(RejectedExecutionException e) {
+        return new IOException("The download writer has stopped", e);
+    }
+}
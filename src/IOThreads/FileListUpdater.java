@@ -2,37 +2,415 @@ package IOThreads;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-//The class meant for checking the client's file list for relevant content
-public class FileListUpdater {
-
-    public static ArrayList<String> SearchForFile(String searchTerm) {
-        ArrayList<String> fileNames = new ArrayList<>();
-        //Checks to see if the uploads directory exists and if it does not then throw an error
-        try {
-            String currentPath = new java.io.File(".").getCanonicalPath().replace("\\", "/");
-            File directory = new File(currentPath + "/uploads");
-            if(!directory.exists()) {
-                throw new IOException();
-            }
-            //Search the uploads directory
-            File[] contents = directory.listFiles();
-            if(contents != null) {
-                for(File file : contents) {
-                    //If the file is indeed a file and not a directory then search its lower case name with the lower case
-                    //search term and if it contains the name then add it to the list
-                    if(file.isFile()) {
-                        if(file.getName().toLowerCase(Locale.ENGLISH).contains(searchTerm.toLowerCase())) {
-                            fileNames.add(file.getName());
-                        }
+/*
+ * The class meant for checking the client's file list for relevant content. The uploads directory and every directory
+ * below it is indexed once at startup and the index is then kept up to date by this thread, which listens to a
+ * WatchService for files being created, deleted and modified, so searches never touch the disk. The manifests of new and
+ * changed files are built once a file has not changed for SETTLE_MILLIS, so a file that is still being copied in is
+ * hashed once it is complete rather than on every write, which would hold up the piece checks of downloads that run
+ * on the same hashing threads.
+ *
+ * Substring searches go through a trigram index. Every lower case file name is broken into all of its three character
+ * sequences and each sequence maps to the list of files containing it. A search looks up the trigrams of the search
+ * term, takes the shortest of their lists as candidates, and only checks those candidates with String.contains. Search
+ * terms shorter than three characters fall back to checking every name, which is still done in memory.
+ */
+public class FileListUpdater extends Thread {
+    private static final long SETTLE_MILLIS = 2000;
+
+    //A shared file, the path is relative to the uploads directory and always uses "/" as the separator
+    private static class IndexedFile {
+        final String relativePath;
+        final String lowerName;
+        final File file;
+
+        IndexedFile(String relativePath, File file) {
+            this.relativePath = relativePath;
+            this.lowerName = relativePath.toLowerCase(Locale.ENGLISH);
+            this.file = file;
+        }
+    }
+
+    //A growable list of the IDs of the files containing a trigram
+    private static class PostingList {
+        int[] ids = new int[4];
+        int size = 0;
+
+        void Add(int id) {
+            if(size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    private final Path uploadsPath;
+    private final ManifestCache manifestCache;
+    //Files by ID, a removed file leaves a null slot which is reused by the next file
+    private final ArrayList<IndexedFile> files = new ArrayList<>();
+    private final ArrayList<Integer> freeIds = new ArrayList<>();
+    private final HashMap<String, Integer> idsByPath = new HashMap<>();
+    private final TrigramTable trigrams = new TrigramTable();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<WatchKey, Path> watchedDirectories = new HashMap<>();
+    //Files waiting to be hashed and when each last changed, only used by this thread once it has started
+    private final HashMap<Path, Long> pendingHashes = new HashMap<>();
+    private WatchService watchService;
+
+    public FileListUpdater(File uploadsDirectory, ManifestCache manifestCache) {
+        this.uploadsPath = uploadsDirectory.toPath().toAbsolutePath().normalize();
+        this.manifestCache = manifestCache;
+        setName("uploads-index");
+        setDaemon(true);
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            System.out.println("Could not watch the uploads directory, new files will not be searchable until restart");
+        }
+        if(!uploadsDirectory.exists()) {
+            System.out.println("The uploads directory does not exist, no files will be shared");
+        }
+        IndexDirectory(uploadsPath);
+    }
+
+    //Adds every file in the search results that contains the search term to matches, the matches list is supplied by
+    //the caller so that it can be reused between searches
+    public void SearchForFile(String searchTerm, List<String> matches) {
+        String term = searchTerm.toLowerCase(Locale.ENGLISH);
+        lock.readLock().lock();
+        try {
+            if(term.length() < 3) {
+                for(IndexedFile file : files) {
+                    if(file != null && file.lowerName.contains(term)) {
+                        matches.add(file.relativePath);
                     }
                 }
+                return;
+            }
+            //Use the rarest trigram of the search term as the candidate list
+            PostingList candidates = null;
+            for(int i = 0; i + 3 <= term.length(); i++) {
+                PostingList postings = trigrams.Get(TrigramKey(term, i));
+                if(postings == null) {
+                    return;
+                }
+                if(candidates == null || postings.size < candidates.size) {
+                    candidates = postings;
+                }
+            }
+            for(int i = 0; i < candidates.size; i++) {
+                IndexedFile file = files.get(candidates.ids[i]);
+                if(file != null && file.lowerName.contains(term)) {
+                    matches.add(file.relativePath);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Returns the shared file for a path from a file request, or null if it is not a shared file. Only files inside the
+    //uploads directory are ever returned, so a request cannot reach anything else on this host
+    public File Resolve(String relativePath) {
+        lock.readLock().lock();
+        try {
+            Integer id = idsByPath.get(relativePath);
+            if(id != null) {
+                return files.get(id).file;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        //The file may have been created so recently that the watcher has not seen it yet
+        Path path = uploadsPath.resolve(relativePath).normalize();
+        if(path.startsWith(uploadsPath) && Files.isRegularFile(path)) {
+            AddFile(path);
+            return path.toFile();
+        }
+        return null;
+    }
+
+    //Stops watching the uploads directory, which ends this thread
+    public void Close() {
+        try {
+            if(watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    //The watcher loop that keeps the index in step with the uploads directory
+    public void run() {
+        if(watchService == null) {
+            return;
+        }
+        while(true) {
+            WatchKey key;
+            try {
+                if(pendingHashes.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    key = watchService.poll(NextHashDelayMillis(), TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            if(key != null) {
+                HandleEvents(key);
+            }
+            HashSettledFiles();
+        }
+    }
+
+    private void HandleEvents(WatchKey key) {
+        Path directory = watchedDirectories.get(key);
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                //Events were lost so the whole directory is indexed again
+                IndexDirectory(uploadsPath);
+                continue;
+            }
+            if(directory == null) {
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                if(Files.isDirectory(path)) {
+                    IndexDirectory(path);
+                } else {
+                    AddFile(path);
+                    QueueHash(path);
+                }
+            } else if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                RemovePath(path);
+                pendingHashes.keySet().removeIf(pending -> pending.startsWith(path));
+            } else if(event.kind() == StandardWatchEventKinds.ENTRY_MODIFY && Files.isRegularFile(path)) {
+                //The name is unchanged but the manifest has to be built again for the new contents
+                QueueHash(path);
+            }
+        }
+        if(!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    //Hashes a file once it stops changing, every change starts the wait again
+    private void QueueHash(Path path) {
+        pendingHashes.put(path, System.nanoTime());
+    }
+
+    //How long until the next file waiting to be hashed has settled
+    private long NextHashDelayMillis() {
+        long now = System.nanoTime();
+        long delay = SETTLE_MILLIS;
+        for(long changed : pendingHashes.values()) {
+            delay = Math.min(delay, SETTLE_MILLIS - TimeUnit.NANOSECONDS.toMillis(now - changed));
+        }
+        return Math.max(1, delay);
+    }
+
+    //Starts hashing every file that has not changed for SETTLE_MILLIS so its manifest is ready before anyone requests it
+    private void HashSettledFiles() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Long>> iterator = pendingHashes.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Path, Long> pending = iterator.next();
+            if(TimeUnit.NANOSECONDS.toMillis(now - pending.getValue()) < SETTLE_MILLIS) {
+                continue;
             }
+            iterator.remove();
+            if(Files.isRegularFile(pending.getKey())) {
+                manifestCache.Get(pending.getKey().toFile());
+            }
+        }
+    }
+
+    //Watches a directory and every directory below it and adds all of their files
+    private void IndexDirectory(Path directory) {
+        if(!Files.isDirectory(directory)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    Watch(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if(attributes.isRegularFile()) {
+                        AddFile(file);
+                        QueueHash(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
         } catch (IOException ignored) {
 
         }
-        return fileNames;
+    }
+
+    private void Watch(Path directory) {
+        if(watchService == null) {
+            return;
+        }
+        try {
+            WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, directory);
+        } catch (IOException | ClosedWatchServiceException ignored) {
+
+        }
+    }
+
+    private void AddFile(Path path) {
+        String relativePath = uploadsPath.relativize(path.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+        IndexedFile indexedFile = new IndexedFile(relativePath, path.toFile());
+        lock.writeLock().lock();
+        try {
+            if(idsByPath.containsKey(relativePath)) {
+                return;
+            }
+            int id;
+            if(freeIds.isEmpty()) {
+                id = files.size();
+                files.add(indexedFile);
+            } else {
+                id = freeIds.remove(freeIds.size() - 1);
+                files.set(id, indexedFile);
+            }
+            idsByPath.put(relativePath, id);
+            for(int i = 0; i + 3 <= indexedFile.lowerName.length(); i++) {
+                //A name containing the same trigram twice is only listed once, which is the case exactly when this
+                //file was the last one added to the list
+                PostingList postings = trigrams.GetOrCreate(TrigramKey(indexedFile.lowerName, i));
+                if(postings.size == 0 || postings.ids[postings.size - 1] != id) {
+                    postings.Add(id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //Removes a file, or every file below a directory, from the index
+    private void RemovePath(Path path) {
+        String relativePath = uploadsPath.relativize(path.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+        String directoryPrefix = relativePath + "/";
+        lock.writeLock().lock();
+        try {
+            for(int id = 0; id < files.size(); id++) {
+                IndexedFile file = files.get(id);
+                if(file != null && (file.relativePath.equals(relativePath) || file.relativePath.startsWith(directoryPrefix))) {
+                    files.set(id, null);
+                    idsByPath.remove(file.relativePath);
+                    manifestCache.Forget(file.file);
+                    RemoveFromPostings(file, id);
+                    freeIds.add(id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void RemoveFromPostings(IndexedFile file, int id) {
+        for(int i = 0; i + 3 <= file.lowerName.length(); i++) {
+            PostingList postings = trigrams.Get(TrigramKey(file.lowerName, i));
+            if(postings == null) {
+                continue;
+            }
+            int kept = 0;
+            for(int j = 0; j < postings.size; j++) {
+                if(postings.ids[j] != id) {
+                    postings.ids[kept++] = postings.ids[j];
+                }
+            }
+            postings.size = kept;
+        }
+    }
+
+    //Packs three characters into one long so trigram lookups do not need to create strings
+    private static long TrigramKey(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+    //An open addressing hash table from trigram keys to posting lists, used instead of a HashMap so that looking up a
+    //trigram does not box the key
+    private static class TrigramTable {
+        private long[] keys = new long[1024];
+        private PostingList[] values = new PostingList[1024];
+        private int size = 0;
+
+        PostingList Get(long key) {
+            int mask = keys.length - 1;
+            for(int slot = Slot(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+                if(keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        PostingList GetOrCreate(long key) {
+            PostingList postings = Get(key);
+            if(postings != null) {
+                return postings;
+            }
+            if((size + 1) * 2 > keys.length) {
+                Grow();
+            }
+            postings = new PostingList();
+            Put(key, postings);
+            size++;
+            return postings;
+        }
+
+        private void Put(long key, PostingList postings) {
+            int mask = keys.length - 1;
+            int slot = Slot(key, mask);
+            while(values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = postings;
+        }
+
+        private void Grow() {
+            long[] oldKeys = keys;
+            PostingList[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new PostingList[oldValues.length * 2];
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldValues[i] != null) {
+                    Put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int Slot(long key, int mask) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32)) & mask;
+        }
     }
 }
@@ -0,0 +1,143 @@
+package IOThreads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+//The SHA-256 hashes of every fixed size piece of a file along with the root of a Merkle tree built over them. The
+//serving peer sends this with the 9 response so that the downloader can check every piece as it arrives and fetch only
+//the pieces that are corrupt again
+public class FileManifest {
+    public static final int PIECE_SIZE = 1024 * 1024;
+    private static final int HASH_SIZE = 32;
+    //Piece hashes are read back from disk on the hashing threads into one reusable buffer per thread
+    private static final ThreadLocal<ByteBuffer> pieceBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(PIECE_SIZE));
+
+    private final long fileSize;
+    private final int pieceSize;
+    private final byte[][] pieceHashes;
+    private final byte[] root;
+
+    private FileManifest(long fileSize, int pieceSize, byte[][] pieceHashes) {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.pieceHashes = pieceHashes;
+        this.root = MerkleRoot(pieceHashes);
+    }
+
+    //Hashes a file piece by piece, reading each piece once into a reused buffer
+    public static FileManifest Build(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int pieceCount = (int) ((size + PIECE_SIZE - 1) / PIECE_SIZE);
+        byte[][] pieceHashes = new byte[pieceCount][];
+        for(int i = 0; i < pieceCount; i++) {
+            pieceHashes[i] = HashPiece(channel, (long) i * PIECE_SIZE, (int) Math.min(PIECE_SIZE, size - (long) i * PIECE_SIZE));
+        }
+        return new FileManifest(size, PIECE_SIZE, pieceHashes);
+    }
+
+    //Reads a manifest that was sent by a peer, the root is recomputed from the piece hashes and must match the root
+    //that was sent so that a damaged manifest is not trusted
+    public static FileManifest Decode(long fileSize, ByteBuffer encoded) throws IOException {
+        try {
+            int pieceSize = encoded.getInt();
+            int pieceCount = encoded.getInt();
+            if(pieceSize <= 0 || pieceCount != (int) ((fileSize + pieceSize - 1) / pieceSize)) {
+                throw new IOException("Manifest does not describe a file of " + fileSize + " bytes");
+            }
+            byte[] sentRoot = new byte[HASH_SIZE];
+            encoded.get(sentRoot);
+            byte[][] pieceHashes = new byte[pieceCount][HASH_SIZE];
+            for(byte[] pieceHash : pieceHashes) {
+                encoded.get(pieceHash);
+            }
+            FileManifest manifest = new FileManifest(fileSize, pieceSize, pieceHashes);
+            if(!MessageDigest.isEqual(sentRoot, manifest.root)) {
+                throw new IOException("Manifest root does not match its piece hashes");
+            }
+            return manifest;
+        } catch (RuntimeException e) {
+            throw new IOException("Manifest is truncated", e);
+        }
+    }
+
+    //piece size (4 bytes), piece count (4 bytes), Merkle root (32 bytes), then the hash of every piece (32 bytes each)
+    public byte[] Encode() {
+        ByteBuffer encoded = ByteBuffer.allocate(8 + HASH_SIZE * (pieceHashes.length + 1));
+        encoded.putInt(pieceSize);
+        encoded.putInt(pieceHashes.length);
+        encoded.put(root);
+        for(byte[] pieceHash : pieceHashes) {
+            encoded.put(pieceHash);
+        }
+        return encoded.array();
+    }
+
+    //Reads a piece back from a downloaded file and checks it against its hash
+    public boolean VerifyPiece(FileChannel channel, int pieceIndex) throws IOException {
+        long offset = (long) pieceIndex * pieceSize;
+        return MessageDigest.isEqual(pieceHashes[pieceIndex], HashPiece(channel, offset, (int) Math.min(pieceSize, fileSize - offset)));
+    }
+
+    private static byte[] HashPiece(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = pieceBuffers.get();
+        buffer.clear();
+        buffer.limit(length);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("File ended before the piece at " + offset);
+            }
+        }
+        buffer.flip();
+        MessageDigest digest = NewDigest();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    //Each level of the tree hashes neighbouring pairs together, a node without a neighbour moves up unchanged
+    private static byte[] MerkleRoot(byte[][] pieceHashes) {
+        if(pieceHashes.length == 0) {
+            return NewDigest().digest();
+        }
+        byte[][] level = pieceHashes;
+        while(level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for(int i = 0; i < level.length; i += 2) {
+                if(i + 1 < level.length) {
+                    MessageDigest digest = NewDigest();
+                    digest.update(level[i]);
+                    digest.update(level[i + 1]);
+                    next[i / 2] = digest.digest();
+                } else {
+                    next[i / 2] = level[i];
+                }
+            }
+            level = next;
+        }
+        return level[0];
+    }
+
+    private static MessageDigest NewDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int GetPieceSize() {
+        return pieceSize;
+    }
+
+    public int GetPieceCount() {
+        return pieceHashes.length;
+    }
+
+    public byte[] GetRoot() {
+        return Arrays.copyOf(root, root.length);
+    }
+}
@@ -0,0 +1,104 @@
+package IOThreads;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+
+//Builds the manifests of shared files on a small pool of hashing threads and keeps them until the file changes, so
+//neither the network threads nor repeated requests for the same file pay for hashing. The same pool checks the pieces
+//of downloads against the manifests sent by serving peers
+public class ManifestCache {
+    //A manifest along with the size and modification time of the file it was built from
+    private static class CachedManifest {
+        final long length;
+        final long lastModified;
+        final CompletableFuture<FileManifest> manifest;
+        //Set once the file changed again before this manifest was built, the hashing is then skipped
+        volatile boolean superseded = false;
+
+        CachedManifest(long length, long lastModified, CompletableFuture<FileManifest> manifest) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.manifest = manifest;
+        }
+    }
+
+    private final ConcurrentHashMap<String, CachedManifest> manifests = new ConcurrentHashMap<>();
+    private final ExecutorService hashPool;
+
+    public ManifestCache() {
+        hashPool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+            Thread thread = new Thread(runnable, "manifest-hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //Returns the manifest of a file, hashing it in the background if it is not cached or the file has changed. A
+    //manifest still waiting to be built for an older version of the file is not built any more, whoever is waiting for
+    //it gets the manifest of the new version instead
+    public CompletableFuture<FileManifest> Get(File file) {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        CachedManifest[] created = new CachedManifest[1];
+        CachedManifest result = manifests.compute(path, (key, cached) -> {
+            if(cached != null && cached.length == length && cached.lastModified == lastModified && !cached.manifest.isCompletedExceptionally()) {
+                return cached;
+            }
+            CachedManifest fresh = new CachedManifest(length, lastModified, new CompletableFuture<>());
+            if(cached != null && !cached.manifest.isDone()) {
+                cached.superseded = true;
+                fresh.manifest.whenComplete((manifest, error) -> {
+                    if(error == null) {
+                        cached.manifest.complete(manifest);
+                    } else {
+                        cached.manifest.completeExceptionally(error);
+                    }
+                });
+            }
+            created[0] = fresh;
+            return fresh;
+        });
+        if(created[0] != null) {
+            Build(file, created[0]);
+        }
+        return result.manifest;
+    }
+
+    //Hashes a file on the hashing threads unless it has changed again by the time a thread is free
+    private void Build(File file, CachedManifest cached) {
+        try {
+            hashPool.execute(() -> {
+                if(cached.superseded) {
+                    return;
+                }
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    cached.manifest.complete(FileManifest.Build(channel));
+                } catch (IOException | RuntimeException e) {
+                    cached.manifest.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cached.manifest.completeExceptionally(e);
+        }
+    }
+
+    //Drops the manifest of a file that is no longer shared
+    public void Forget(File file) {
+        manifests.remove(file.getAbsolutePath());
+    }
+
+    //Checks a downloaded piece against the manifest on the hashing threads
+    public CompletableFuture<Boolean> VerifyPiece(FileChannel channel, FileManifest manifest, int pieceIndex) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return manifest.VerifyPiece(channel, pieceIndex);
+            } catch (IOException e) {
+                return false;
+            }
+        }, hashPool);
+    }
+}
@@ -1,9 +1,13 @@
+import SocketThreads.BandwidthShaper;
 import SocketThreads.ClientHandler;
+import SocketThreads.SearchHandle;
 import SocketThreads.SearchResults;
 import SocketThreads.Server;
+import SocketThreads.ServerOptions;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Scanner;
 
@@ -13,8 +17,8 @@ import java.util.Scanner;
  * This system can theoretically accept and infinite number of connections.
  * A peer connects to another peer initially and other peers can then connect to that peer, these are referred to as
  * "Permanent Connections" in this system. When a node requests data from a peer that is not its permanent peer it
- * then connects to that peer with a "Data Transfer Connection" which is destroyed upon file transfer completion
- * or failure.
+ * then connects to that peer with a "Data Transfer Connection". The connection is kept open after the transfer so
+ * later requests to the same peer reuse it, and it is closed once it has been idle for 30 seconds.
  * When running this program please have two folders in the working directory. One labeled as "downloads" and one labeled
  * as "uploads". The "uploads" folder contains data that you would like to be searchable by other peers. The "downloads"
  * folder will contain files downloaded from other peers.
@@ -31,20 +35,64 @@ import java.util.Scanner;
  *                connect to. This is shown as something like 8556
  *                If args.length() == 1: This peer is the initial peer in the system and is therefore awaiting connections
  *                to itself.
+ * @param --engine=thread|nio Optional, anywhere in the arguments. Whether every connected peer is read by its own
+ *                thread (the default) or by a few event loops waiting on Selectors
+ * @param --event-loops=N Optional, the number of event loops used by the nio engine
+ * @param --threads=platform|virtual Optional, whether the accept loop, the peer readers and the upload workers run on
+ *                platform threads (the default) or on virtual threads, which needs Java 21 or newer
+ * @param --sync-downloads Optional, forces every finished download to the disk before it is reported as finished
+ * @param --uploads=DIR Optional, the directory of the files shared with other peers instead of "uploads"
+ * @param --downloads=DIR Optional, the directory downloads are saved to instead of "downloads"
+ * @param --metrics-file=FILE Optional, a file that a JSON snapshot of this peer's metrics is written to, the metrics
+ *                are also exported over JMX as SocketThreads:type=NodeMetrics
+ * @param --metrics-interval=SECONDS Optional, how often the metrics snapshot is written, every 10 seconds by default
+ * @param --socket-buffer=BYTES Optional, the send and receive buffer size of peer sockets instead of the operating
+ *                system's automatic tuning
+ * @param --compression=on|off Optional, whether file data is compressed for peers that can take it, which is on by
+ *                default and only used for files that compress
+ * @param --upload-limit=KIB Optional, the most file data sent to all peers together in KiB per second, no limit by
+ *                default. Searches and other control messages are never held back by any of the limits
+ * @param --download-limit=KIB Optional, the most file data taken from all peers together in KiB per second
+ * @param --peer-limit=KIB Optional, the most file data sent or taken over a single peer connection in KiB per second
+ * @param --transfer-limit=KIB Optional, the most data of a single file sent in KiB per second. Every limit can also be
+ *                changed while running with "limit: {upload|download|peer|transfer} {KiB per second}"
+ * @param --upload-slots=N Optional, the number of files sent to other peers at once, 8 by default. Further requests
+ *                wait in a queue and the requesters are told their place in it, which "uploads" shows and
+ *                "uploads: {slots}" changes the number of slots while running
+ * @param --upload-order=fifo|smallest Optional, whether queued requests are served in the order they arrived (the
+ *                default) or the smallest first
  */
 public class MultithreadedFileTransfer {
     public static void main(String[] args) {
         Server mainServer = null;
         ClientHandler clientHandler = null;
+        //Separates the --name=value options from the port and address arguments
+        ArrayList<String> optionArgs = new ArrayList<>();
+        ArrayList<String> positionalArgs = new ArrayList<>();
+        for(String arg : args) {
+            if(arg.startsWith("--")) {
+                optionArgs.add(arg);
+            } else {
+                positionalArgs.add(arg);
+            }
+        }
+        ServerOptions options = null;
+        try {
+            options = ServerOptions.Parse(optionArgs);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        args = positionalArgs.toArray(new String[0]);
         //Checks whether the client is initially connecting to others or only accepting incoming connections
         if(args.length == 1) {
             //Only accepting incoming connections
-            mainServer = new Server(Integer.parseInt(args[0]));
+            mainServer = new Server(Integer.parseInt(args[0]), options);
             mainServer.start();
             clientHandler = mainServer.GetClientHandler();
         } else if(args.length == 3) {
             //Initally connecting to another client
-            mainServer = new Server(Integer.parseInt(args[0]), args[1], Integer.parseInt(args[2]));
+            mainServer = new Server(Integer.parseInt(args[0]), args[1], Integer.parseInt(args[2]), options);
             mainServer.start();
             clientHandler = mainServer.GetClientHandler();
         } else {
@@ -54,9 +102,12 @@ public class MultithreadedFileTransfer {
 
         //If the clientHandler exists
         if(clientHandler != null) {
+            //Shows how far each download has got, the handler limits how often this is called
+            clientHandler.SetDownloadProgressListener((fileName, downloadedBytes, fileSize) ->
+                    System.out.printf("Received %.2f%% of %s\n", downloadedBytes * 100.0 / fileSize, fileName));
             String userInput = null;
             Scanner takeInput = new Scanner(System.in);
-            //The user input event loop that searches for four keywords: exit, search, list, and download
+            //The user input event loop that searches for ten keywords: exit, search, list, stats, metrics, limit, uploads, swarm, resume, and download
             System.out.println("Enter \"search: {keyword}\" to search for a file");
             while(!Objects.equals(userInput, "exit")) {
                 System.out.print("> ");
@@ -64,9 +115,16 @@ public class MultithreadedFileTransfer {
                 if(userInput.toLowerCase().startsWith("search: ")) {
                     //Searching for a file
                     String searchTerm = userInput.toLowerCase().replace("search: ", "");
-                    clientHandler.AddServerMessageToQueue(Integer.valueOf(-4).byteValue(), searchTerm);
+                    ClientHandler handler = clientHandler;
+                    SearchHandle search = handler.Search(searchTerm);
                     System.out.println("Searching for " + searchTerm + " across the network...");
                     System.out.println("Enter \"list\" when you want to view the results of your search");
+                    //Tells the user about results as they arrive, nothing is printed once a newer search has begun
+                    search.OnResult(result -> {
+                        if(search == handler.GetLastSearch()) {
+                            System.out.printf("%d matching files found on %s:%d\n", result.files.length, result.address, result.port);
+                        }
+                    });
                 } else if(userInput.equalsIgnoreCase("list")) {
                     //Listing the last search results
                     ArrayList<SearchResults> searchResults = clientHandler.GetSearchResults();
@@ -80,6 +138,76 @@ public class MultithreadedFileTransfer {
                     }
                     System.out.println("Download a file by typing download: PeerDownloadID:FileID");
                     System.out.println("e.g. \"download: 0:1\" downloads file with ID 1 from peer with download ID 0");
+                    System.out.println("Download a file from every peer that has it by typing swarm: PeerDownloadID:FileID");
+                } else if(userInput.equalsIgnoreCase("stats")) {
+                    //Displays the state of the message dispatcher
+                    System.out.printf("Dispatcher queue depth: %d\n", clientHandler.GetQueueDepth());
+                    System.out.printf("Messages dispatched: %d (average wait %.3f ms, max wait %.3f ms)\n", clientHandler.GetDispatchStats().GetDispatchedCount(), clientHandler.GetDispatchStats().GetAverageLatencyMillis(), clientHandler.GetDispatchStats().GetMaxLatencyMillis());
+                    System.out.printf("Duplicate searches suppressed: %d\n", clientHandler.GetDispatchStats().GetSuppressedDuplicateCount());
+                } else if(userInput.equalsIgnoreCase("metrics")) {
+                    //Displays every counter and histogram of this peer
+                    for(Map.Entry<String, Number> metric : clientHandler.GetMetrics().Snapshot().entrySet()) {
+                        System.out.printf("%-40s %s\n", metric.getKey(), metric.getValue());
+                    }
+                } else if(userInput.equalsIgnoreCase("limit")) {
+                    //Displays the limits on file data
+                    BandwidthShaper shaper = clientHandler.GetBandwidthShaper();
+                    System.out.printf("upload %d, download %d, peer %d, transfer %d KiB/s (0 is no limit)\n", shaper.GetUploadLimit() / 1024, shaper.GetDownloadLimit() / 1024, shaper.GetPeerLimit() / 1024, shaper.GetTransferLimit() / 1024);
+                } else if(userInput.toLowerCase().startsWith("limit: ")) {
+                    //Changes one of the limits on file data, which applies to the transfers already running too
+                    String[] limitInfo = userInput.toLowerCase().replace("limit: ", "").trim().split("\\s+");
+                    BandwidthShaper shaper = clientHandler.GetBandwidthShaper();
+                    try {
+                        long bytesPerSecond = ServerOptions.ParseLimit("The limit", limitInfo.length == 2 ? limitInfo[1] : "") * 1024L;
+                        switch(limitInfo[0]) {
+                            case "upload":
+                                shaper.SetUploadLimit(bytesPerSecond);
+                                break;
+                            case "download":
+                                shaper.SetDownloadLimit(bytesPerSecond);
+                                break;
+                            case "peer":
+                                shaper.SetPeerLimit(bytesPerSecond);
+                                break;
+                            case "transfer":
+                                shaper.SetTransferLimit(bytesPerSecond);
+                                break;
+                            default:
+                                System.out.println("Enter \"limit: {upload|download|peer|transfer} {KiB per second}\"");
+                        }
+                    } catch(IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                    }
+                } else if(userInput.equalsIgnoreCase("uploads")) {
+                    //Displays how many files are being sent to peers and how many requests are waiting for a slot
+                    System.out.printf("Uploads: %d of %d slots in use, %d requests queued\n", clientHandler.GetActiveUploads(), clientHandler.GetUploadSlots(), clientHandler.GetQueuedUploads());
+                } else if(userInput.toLowerCase().startsWith("uploads: ")) {
+                    //Changes the number of upload slots
+                    try {
+                        int slots = Integer.parseInt(userInput.toLowerCase().replace("uploads: ", "").trim());
+                        if(slots > 0) {
+                            clientHandler.SetUploadSlots(slots);
+                        } else {
+                            System.out.println("The number of upload slots must be positive");
+                        }
+                    } catch(NumberFormatException e) {
+                        System.out.println("Enter \"uploads: {slots}\"");
+                    }
+                } else if(userInput.toLowerCase().startsWith("swarm: ")) {
+                    //Downloads pieces of a file from every peer in the search results that has a file with the same name
+                    String[] downloadInfo = userInput.toLowerCase().replace("swarm: ", "").split(":");
+                    try {
+                        clientHandler.StartSwarmDownload(Integer.parseInt(downloadInfo[0]), Integer.parseInt(downloadInfo[1]));
+                    } catch(IOException ignored) {
+
+                    }
+                } else if(userInput.equalsIgnoreCase("resume")) {
+                    //Continues every unfinished download found in the downloads folder
+                    try {
+                        clientHandler.ResumeDownloads();
+                    } catch(IOException ignored) {
+
+                    }
                 } else if(userInput.toLowerCase().startsWith("download: ")) {
                     //Downloads a file using a peer download id and a file id from that peer
                     String[] downloadInfo = userInput.toLowerCase().replace("download: ", "").split(":");
@@ -0,0 +1,91 @@
+package SocketThreads;
+
+/*
+ * The limits on how fast this host sends and takes file data, all in bytes per second with 0 meaning no limit. There
+ * is a limit on all uploads and one on all downloads together, a limit on the file data going each way over a single
+ * peer connection, and a limit on each file sent. A frame of file data waits until every limit it falls under allows
+ * it. Only file data is counted, control frames such as searches and forwarding information never wait on a limit, so
+ * the mesh keeps answering however much data is being moved.
+ *
+ * The limits can be changed at any time and apply from the next frame of every running transfer.
+ */
+public class BandwidthShaper {
+    private volatile long uploadLimit = 0;
+    private volatile long downloadLimit = 0;
+    private volatile long peerLimit = 0;
+    private volatile long transferLimit = 0;
+    private final RateLimiter uploads = new RateLimiter(() -> uploadLimit);
+    private final RateLimiter downloads = new RateLimiter(() -> downloadLimit);
+
+    public void SetUploadLimit(long bytesPerSecond) {
+        uploadLimit = bytesPerSecond;
+    }
+
+    public void SetDownloadLimit(long bytesPerSecond) {
+        downloadLimit = bytesPerSecond;
+    }
+
+    //Sets the limit on each peer connection, uploads and downloads over it are limited separately
+    public void SetPeerLimit(long bytesPerSecond) {
+        peerLimit = bytesPerSecond;
+    }
+
+    public void SetTransferLimit(long bytesPerSecond) {
+        transferLimit = bytesPerSecond;
+    }
+
+    public long GetUploadLimit() {
+        return uploadLimit;
+    }
+
+    public long GetDownloadLimit() {
+        return downloadLimit;
+    }
+
+    public long GetPeerLimit() {
+        return peerLimit;
+    }
+
+    public long GetTransferLimit() {
+        return transferLimit;
+    }
+
+    //A bucket for the data going one way over a single peer connection
+    RateLimiter NewPeerLimiter() {
+        return new RateLimiter(() -> peerLimit);
+    }
+
+    //A bucket for a single file being sent
+    RateLimiter NewTransferLimiter() {
+        return new RateLimiter(() -> transferLimit);
+    }
+
+    //How long an upload frame has to wait for the limits it falls under, 0 if it can be sent now
+    long UploadDelayNanos(RateLimiter peer, RateLimiter transfer) {
+        return Math.max(uploads.DelayNanos(), Math.max(peer.DelayNanos(), transfer.DelayNanos()));
+    }
+
+    //Takes an upload frame that has been sent from the limits it falls under
+    void TakeUpload(RateLimiter peer, RateLimiter transfer, int count) {
+        uploads.Take(count);
+        peer.Take(count);
+        transfer.Take(count);
+    }
+
+    //Takes a download frame that has been received, returns how long the connection should stop reading for
+    long TakeDownload(RateLimiter peer, int count) {
+        return Math.max(downloads.Take(count), peer.Take(count));
+    }
+
+    //The largest frame worth sending under the tightest limit on an upload, a quarter of a second of data at that limit
+    //so limited transfers send small frames often rather than a large frame followed by a long wait
+    int UploadFrameLimit() {
+        long tightest = Long.MAX_VALUE;
+        for(long limit : new long[] {uploadLimit, peerLimit, transferLimit}) {
+            if(limit > 0) {
+                tightest = Math.min(tightest, limit);
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, tightest / 4);
+    }
+}
@@ -0,0 +1,77 @@
+package SocketThreads;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A pool of direct buffers in power of two size classes from 4 KiB to 4 MiB. Inbound file chunks are read into a
+ * buffer from the pool, written to disk straight from it and then returned, so a download no longer allocates and
+ * copies a fresh array for every chunk. Direct buffers are used so that neither the socket read nor the file write has
+ * to copy the data through a temporary buffer of its own.
+ *
+ * Each size class keeps at most RETAINED_BYTES_PER_CLASS worth of free buffers, anything returned past that is left
+ * to the garbage collector. Requests larger than the biggest class get a buffer of their own that is never pooled.
+ */
+public class BufferPool {
+    private static final int SMALLEST_CLASS_SHIFT = 12;
+    private static final int LARGEST_CLASS_SHIFT = 22;
+    private static final int RETAINED_BYTES_PER_CLASS = 8 * 1024 * 1024;
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> freeBuffers;
+    private final AtomicInteger[] freeCounts;
+
+    public BufferPool() {
+        int classCount = LARGEST_CLASS_SHIFT - SMALLEST_CLASS_SHIFT + 1;
+        ArrayList<ConcurrentLinkedQueue<ByteBuffer>> classes = new ArrayList<>(classCount);
+        freeCounts = new AtomicInteger[classCount];
+        for(int i = 0; i < classCount; i++) {
+            classes.add(new ConcurrentLinkedQueue<>());
+            freeCounts[i] = new AtomicInteger();
+        }
+        freeBuffers = List.copyOf(classes);
+    }
+
+    //Returns a buffer with at least size bytes of capacity, its position is 0 and its limit is size
+    public ByteBuffer Acquire(int size) {
+        int sizeClass = SizeClass(size);
+        if(sizeClass < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = freeBuffers.get(sizeClass).poll();
+        if(buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + SMALLEST_CLASS_SHIFT));
+        } else {
+            freeCounts[sizeClass].decrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    //Hands a buffer back once nothing refers to it or to any view of it anymore
+    public void Release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = SizeClass(capacity);
+        //Only buffers that were handed out by this pool go back into it
+        if(sizeClass < 0 || !buffer.isDirect() || capacity != 1 << (sizeClass + SMALLEST_CLASS_SHIFT)) {
+            return;
+        }
+        if(freeCounts[sizeClass].incrementAndGet() * (long) capacity > RETAINED_BYTES_PER_CLASS) {
+            freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        freeBuffers.get(sizeClass).offer(buffer);
+    }
+
+    //The index of the smallest class that holds size bytes, or -1 when it is larger than every class
+    private static int SizeClass(int size) {
+        if(size > 1 << LARGEST_CLASS_SHIFT) {
+            return -1;
+        }
+        int shift = size <= 1 << SMALLEST_CLASS_SHIFT ? SMALLEST_CLASS_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - SMALLEST_CLASS_SHIFT;
+    }
+}
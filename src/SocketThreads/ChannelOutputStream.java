@@ -0,0 +1,75 @@
+package SocketThreads;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+//An output stream over a non-blocking socket channel. When the socket's send buffer is full the writing thread waits on
+//a selector of its own until the socket becomes writable again, so callers can keep writing as if the socket blocked
+class ChannelOutputStream extends OutputStream {
+    private final SocketChannel channel;
+    private Selector writeSelector = null;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        Write(ByteBuffer.wrap(new byte[] { (byte) b }));
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Write(ByteBuffer.wrap(b, off, len));
+    }
+
+    //Writes the whole buffer, waiting whenever the socket cannot take any more data
+    void Write(ByteBuffer buffer) throws IOException {
+        lock.lock();
+        try {
+            while(buffer.hasRemaining()) {
+                if(channel.write(buffer) == 0) {
+                    AwaitWritable();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void AwaitWritable() throws IOException {
+        lock.lock();
+        try {
+            if(!channel.isOpen()) {
+                throw new IOException("Socket closed");
+            }
+            if(writeSelector == null) {
+                writeSelector = Selector.open();
+                channel.register(writeSelector, SelectionKey.OP_WRITE);
+            }
+            writeSelector.select(1000);
+            writeSelector.selectedKeys().clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if(writeSelector != null) {
+                writeSelector.close();
+            }
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package SocketThreads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+/*
+ * Compresses the file data sent to peers that said during the handshake that they can take compressed chunks. Files
+ * whose extension says they are already compressed are never tried, and any other file is tried on a SAMPLE_SIZE
+ * sample from the start of its range first, so only data that actually shrinks costs any compression. A frame that
+ * still does not shrink by MIN_SAVING is sent as it is.
+ *
+ * The deflating is done on a pool with a thread per processor rather than on the transfer pumps, so however many
+ * peers are being sent files at once they never take more than the machine's processors between them. Every pool
+ * thread keeps a Deflater of its own at the fastest level, which compresses logs, CSV and JSON several times over at
+ * hundreds of megabytes a second.
+ */
+class ChunkCompressor {
+    //The share of a frame that compressing it has to save for the compressed frame to be sent
+    private static final double MIN_SAVING = 0.1;
+    //How much of a file is compressed to find out whether the rest of it is worth compressing
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    //Files that are compressed already and would only cost processor time
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar",
+            "jar", "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "aac", "ogg", "flac", "mp4", "mkv", "mov", "avi",
+            "webm", "pdf", "docx", "xlsx", "pptx", "apk");
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "chunk-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    //The output buffer of each pool thread, grown to the largest frame it has compressed
+    private final ThreadLocal<byte[]> outputs = ThreadLocal.withInitial(() -> new byte[0]);
+
+    //Whether a shared file might be worth compressing going by its name alone
+    static boolean MayCompress(String fileName) {
+        int extensionIndex = fileName.lastIndexOf('.');
+        return extensionIndex < 0 || !COMPRESSED_EXTENSIONS.contains(fileName.substring(extensionIndex + 1).toLowerCase(Locale.ROOT));
+    }
+
+    //Compresses a sample from position in the file, completes with whether it shrank enough to compress the rest
+    CompletableFuture<Boolean> Probe(FileChannel file, long position, long end) {
+        return Submit(() -> {
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, end - position));
+            try {
+                while(sample.hasRemaining()) {
+                    if(file.read(sample, position + sample.position()) <= 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            return sample.position() > 0 && Deflate(sample.array(), sample.position()) != null;
+        }, false);
+    }
+
+    //Compresses the first count bytes of data, completes with the compressed bytes or with null when they do not save
+    //enough. The caller must not touch data until the future completes
+    CompletableFuture<byte[]> Compress(byte[] data, int count) {
+        return Submit(() -> Deflate(data, count), null);
+    }
+
+    //Runs a task on the pool, once the host is shutting down the task is skipped and the fallback is used instead
+    private <T> CompletableFuture<T> Submit(Supplier<T> task, T fallback) {
+        try {
+            return CompletableFuture.supplyAsync(task, pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(fallback);
+        }
+    }
+
+    private byte[] Deflate(byte[] data, int count) {
+        Deflater deflater = deflaters.get();
+        int limit = (int) (count * (1 - MIN_SAVING));
+        byte[] output = outputs.get();
+        if(output.length < limit) {
+            output = new byte[limit];
+            outputs.set(output);
+        }
+        deflater.reset();
+        deflater.setInput(data, 0, count);
+        deflater.finish();
+        //Deflating stops as soon as the output reaches the limit, data that does not shrink is given up on early
+        int length = 0;
+        while(!deflater.finished() && length < limit) {
+            length += deflater.deflate(output, length, limit - length);
+        }
+        return deflater.finished() ? Arrays.copyOf(output, length) : null;
+    }
+
+    void Close() {
+        pool.shutdown();
+    }
+}
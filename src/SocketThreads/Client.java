@@ -1,11 +1,18 @@
 package SocketThreads;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 //A class containing all the information about a peer (permanent or data transfer)
 public class Client {
@@ -16,20 +23,49 @@ public class Client {
     public InetSocketAddress thisClientAddress = null;
     public InetSocketAddress nextClientAddress = null;
     public UUID clientId;
-    //Information on the threads of this peer
-    private final ClientRequest clientRequest;
+    //Whether this host opened the connection, the peer that opened a data transfer connection is the one that closes it
+    //once it is idle
+    public boolean openedByThisHost = false;
+    //Whether both ends said during the handshake that they take compressed file chunks
+    public boolean compressChunks = false;
     public final ClientHandler clientHandler;
-    //The output stream for this peer
-    private final DataOutputStream dataOut;
+    //Every frame sent to this peer goes through its writer, which writes them one at a time and in order
+    private final ConnectionWriter writer;
+    //Takes turns sending the files this peer has requested over the connection
+    private final TransferScheduler transferScheduler;
+    //The host's metrics, which count the frames sent to and received from this peer
+    private final NodeMetrics metrics;
+    //Inflates the compressed chunks from this peer, only used by the thread reading from it
+    private Inflater inflater = null;
+    //Limits the file data read from this peer, and when reading may carry on once a download limit has been reached,
+    //both only used by the thread reading from it
+    private final RateLimiter downloadLimiter;
+    private long readPausedUntil = 0;
+    //When a frame was last sent or received, from System.nanoTime
+    private volatile long lastActive = System.nanoTime();
+    //Whether the peer sent the leave notice itself, otherwise one is queued for it when the connection ends
+    private boolean receivedTerminationByte = false;
+    //A frame for the dispatcher or a file chunk the selector engine could not hand over without waiting, the engine
+    //stops reading from this peer until DeliverHeld has handed it over. Only used by the thread reading from this peer
+    private byte heldIndicator;
+    private byte[] heldMessage = null;
+    private ByteBuffer heldChunk = null;
 
-    //Constructor accepts primary socket info and the clientHandler info of this peer and initializes the
-    //Request management thread and the output stream
+    //Constructor accepts primary socket info and the clientHandler info of this peer and initializes the writer
     public Client(Socket accepted, ClientHandler clientHandler, boolean isPrimarySocket) throws IOException {
         clientSocket = accepted;
         this.isPrimarySocket = isPrimarySocket;
         this.clientHandler = clientHandler;
-        clientRequest = new ClientRequest(this);
-        dataOut = new DataOutputStream(clientSocket.getOutputStream());
+        //The writer already gathers frames into as few writes as it can, so small control frames are sent at once
+        //rather than held back by Nagle's algorithm
+        clientSocket.setTcpNoDelay(true);
+        if(clientHandler.GetSocketBufferSize() > 0) {
+            clientSocket.setSendBufferSize(clientHandler.GetSocketBufferSize());
+        }
+        writer = new ConnectionWriter(clientSocket, clientHandler.GetConnectionWriterPool());
+        transferScheduler = new TransferScheduler(this, clientHandler.GetTransferPool(), clientHandler.GetChunkCompressor(), clientHandler.GetBandwidthShaper(), clientHandler.GetShapingTimer());
+        downloadLimiter = clientHandler.GetBandwidthShaper().NewPeerLimiter();
+        metrics = clientHandler.GetMetrics();
     }
 
     //Adding a message to the clientHandler's message queue
@@ -38,98 +74,360 @@ public class Client {
     }
 
     //Sending a message to this peer from the host
+    //The frame is queued on the connection's writer, so frames sent from different threads cannot interleave
     public void Send(byte indicator, byte[] message) {
-        try {
-            //Write the indicator byte
-            dataOut.writeByte(indicator);
-            //Write length of the message information
-            dataOut.writeInt(message.length);
-            //Write the actual message
-            dataOut.write(message);
-        } catch (IOException e) {
-        }
+        lastActive = System.nanoTime();
+        metrics.RecordFrameOut(indicator, message.length);
+        writer.Send(indicator, message);
     }
 
     //A method for sending a file chunk from this peer
     public void SendFileChunk(byte[] requestId, byte[] data, int count) throws IOException {
-        //Write the indicator byte (since it is a file chunk, always 11)
-        dataOut.writeByte(11);
-        //Write the size of the data that is being sent
-        dataOut.writeInt(16 + count);
-        //Copy the requestId and data into a byte array together
-        byte[] fullData = new byte[16 + count];
-        System.arraycopy(requestId, 0, fullData, 0, 16);
-        System.arraycopy(data, 0, fullData, 16, count);
-        //Write the data
-        dataOut.write(fullData);
+        lastActive = System.nanoTime();
+        metrics.RecordFrameOut((byte) 11, requestId.length + count);
+        writer.SendFileChunk(requestId, data, count);
+    }
+
+    //A method for sending a region of a file from this peer without copying it through the heap, this waits until the
+    //region has been sent
+    public void SendFileRegion(byte[] requestId, FileChannel file, long position, int count) throws IOException {
+        lastActive = System.nanoTime();
+        metrics.RecordFrameOut((byte) 11, requestId.length + count);
+        writer.SendFileRegion(requestId, file, position, count);
+    }
+
+    //Sends a file chunk that was compressed from count bytes
+    void SendCompressedChunk(byte[] requestId, int count, byte[] compressed) throws IOException {
+        lastActive = System.nanoTime();
+        metrics.RecordFrameOut((byte) 16, 20 + compressed.length);
+        metrics.RecordCompressedChunk(count, compressed.length);
+        writer.SendCompressedChunk(ByteBuffer.allocate(20).put(requestId, 0, 16).putInt(count).array(), compressed);
+    }
+
+    //Queues a range of an open file to be sent to this peer for a request, the file is closed and onDone is run once it
+    //has been sent or the connection has closed. The data is compressed if the peer takes compressed chunks and the file
+    //is worth compressing
+    void SendFile(byte[] requestId, FileChannel file, long position, long end, boolean zeroCopy, boolean mayCompress, Runnable onDone) {
+        transferScheduler.Submit(requestId, file, position, end, zeroCopy, mayCompress && compressChunks, onDone);
+    }
+
+    //Stops sending the file of a request this peer has cancelled
+    boolean CancelFile(byte[] requestId) {
+        return transferScheduler.Cancel(requestId);
+    }
+
+    //Whether frames can still be sent to this peer
+    boolean CanSend() {
+        return !writer.HasFailed();
+    }
+
+    //Whether files requested by this peer are still being sent to it
+    boolean IsSending() {
+        return transferScheduler.IsBusy();
     }
 
-    //Start the request thread
-    public void StartThreads() {
-        clientRequest.start();
+    void MarkActive() {
+        lastActive = System.nanoTime();
     }
 
-    //Close the data output stream
+    //How long it has been since a frame was last sent or received
+    long IdleMillis(long now) {
+        return (now - lastActive) / 1_000_000L;
+    }
+
+    //Handles a single frame read from this peer, this is shared by the blocking ClientRequest thread and the selector
+    //engine's event loops. Unless wait is set a frame that cannot be handed over at once is held and false is returned,
+    //the reader then stops reading from this peer until DeliverHeld succeeds
+    boolean ReceiveFrame(byte indicator, byte[] message, boolean wait) throws IOException {
+        lastActive = System.nanoTime();
+        //File chunks are counted by ReceiveFileChunk and ReceiveCompressedChunk, which the readers also call directly
+        if(indicator != (byte) 11 && indicator != (byte) 16) {
+            metrics.RecordFrameIn(indicator, message.length);
+        }
+        if(indicator == Integer.valueOf(7).byteValue()) {
+            //If the indicator is a 7 then label that the termination byte was sent, so we do not need to
+            //invoke it manually
+            receivedTerminationByte = true;
+        }
+        if(indicator != (byte) -6 && indicator != (byte) -7 && indicator != (byte) -8 && indicator != (byte) 11 && indicator != (byte) 16) {
+            //If the indicator is not -6, -7, -8, 11 or 16 which indicate requesting or cancelling a file or receiving
+            //file data chunks then add them to the received queue.
+            //We cannot submit file requests or file data chunks to the ClientHandler thread since both of these
+            //can BLOCK, a file request until the file's manifest has been built and a chunk until it has been
+            //staged for the disk.
+            //The solution is to launch the RequestUpload and ReceiveFileChunk methods from inside of the reading
+            //thread. RequestUpload only hands the request to the upload queue, which opens the file on an upload
+            //worker once it has a slot, so the reading thread is free for the next frame at once.
+            if(wait) {
+                AddToReceivedQueue(indicator, message);
+            } else if(!clientHandler.OfferMessageToQueue(clientId, indicator, message)) {
+                heldIndicator = indicator;
+                heldMessage = message;
+                return false;
+            }
+        } else if(indicator == (byte) -6) {
+            //Get the request ID, the offset to resume from and the file name requested and pass them to the
+            //RequestUpload method in the ClientHandler. The request ID is the only part copied out since it is sent
+            //back with every response
+            byte[] requestIdAsBytes = Arrays.copyOf(message, 16);
+            long offset = ByteBuffer.wrap(message, 16, 8).getLong();
+            String fileName = new String(message, 24, message.length - 24);
+
+            clientHandler.RequestUpload(this, requestIdAsBytes, fileName, offset, Long.MAX_VALUE, true);
+        } else if(indicator == (byte) -7) {
+            //Get the request ID, the offset and length of the requested range, whether the manifest is wanted and
+            //the file name and pass them to the RequestUpload method in the ClientHandler
+            byte[] requestIdAsBytes = Arrays.copyOf(message, 16);
+            ByteBuffer range = ByteBuffer.wrap(message, 16, 17);
+            long offset = range.getLong();
+            long length = range.getLong();
+            boolean includeManifest = range.get() == 1;
+            String fileName = new String(message, 33, message.length - 33);
+
+            clientHandler.RequestUpload(this, requestIdAsBytes, fileName, offset, length, includeManifest);
+        } else if(indicator == (byte) -8) {
+            //A cancel is handled right away so that as little as possible of the unwanted data is sent
+            if(message.length >= 16) {
+                clientHandler.CancelUpload(this, Arrays.copyOf(message, 16));
+            }
+        } else if(indicator == (byte) 11) {
+            TakeDownload(message.length);
+            return ReceiveFileChunk(ByteBuffer.wrap(message), wait);
+        } else if(indicator == (byte) 16) {
+            TakeDownload(message.length);
+            return ReceiveCompressedChunk(ByteBuffer.wrap(message), wait);
+        }
+        return true;
+    }
+
+    //Whether a frame is held until it can be handed over
+    boolean IsHolding() {
+        return heldMessage != null || heldChunk != null;
+    }
+
+    //Tries again to hand over the frame that is held, returns true once nothing is held any more
+    boolean DeliverHeld() {
+        if(heldMessage != null) {
+            if(!clientHandler.OfferMessageToQueue(clientId, heldIndicator, heldMessage)) {
+                return false;
+            }
+            heldMessage = null;
+        }
+        if(heldChunk != null) {
+            if(!DeliverFileChunk(heldChunk, false)) {
+                return false;
+            }
+            clientHandler.GetBufferPool().Release(heldChunk);
+            heldChunk = null;
+        }
+        return true;
+    }
+
+    //Handles a 16 frame whose message fills the buffer from its position to its limit, the request ID and the length of
+    //the data are followed by the data compressed with Deflater. The data is inflated into a pooled buffer behind the
+    //request ID and handled like an 11 frame. A frame that cannot be inflated to its length fails its download rather
+    //than the connection, the frame has been read in full so the frames after it are still read in step
+    boolean ReceiveCompressedChunk(ByteBuffer message, boolean wait) {
+        lastActive = System.nanoTime();
+        metrics.RecordFrameIn((byte) 16, message.remaining());
+        int start = message.position();
+        if(message.remaining() < 20) {
+            //Too short to even name its request, so it is dropped
+            return true;
+        }
+        UUID requestId = new UUID(message.getLong(start), message.getLong(start + 8));
+        int length = message.getInt(start + 16);
+        if(length < 0 || length > TransferScheduler.MAX_FRAME_SIZE) {
+            clientHandler.FailDownload(clientId, requestId);
+            return true;
+        }
+        if(inflater == null) {
+            inflater = new Inflater();
+        }
+        BufferPool bufferPool = clientHandler.GetBufferPool();
+        ByteBuffer frame = bufferPool.Acquire(16 + length);
+        boolean held = false;
+        try {
+            frame.putLong(requestId.getMostSignificantBits()).putLong(requestId.getLeastSignificantBits());
+            inflater.reset();
+            message.position(start + 20);
+            inflater.setInput(message);
+            while(frame.hasRemaining() && !inflater.finished()) {
+                if(inflater.inflate(frame) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            if(frame.hasRemaining() || !inflater.finished()) {
+                clientHandler.FailDownload(clientId, requestId);
+                return true;
+            }
+            frame.flip();
+            if(!DeliverFileChunk(frame, wait)) {
+                heldChunk = frame;
+                held = true;
+            }
+            return !held;
+        } catch (DataFormatException e) {
+            clientHandler.FailDownload(clientId, requestId);
+            return true;
+        } finally {
+            if(!held) {
+                bufferPool.Release(frame);
+            }
+        }
+    }
+
+    //Handles an 11 frame whose message fills the buffer from its position to its limit. The request ID and the file
+    //data are read through views of the buffer rather than copied out of it, and the buffer can be reused as soon as
+    //this returns true since the data has been staged by then. Unless wait is set a chunk that cannot be staged at once
+    //is held and false is returned, the buffer then belongs to this peer which returns it to the pool once it is staged
+    boolean ReceiveFileChunk(ByteBuffer frame, boolean wait) {
+        lastActive = System.nanoTime();
+        metrics.RecordFrameIn((byte) 11, frame.remaining());
+        if(DeliverFileChunk(frame, wait)) {
+            return true;
+        }
+        heldChunk = frame;
+        return false;
+    }
+
+    //Counts file data read from this peer against the download limits, reading stops for a while once they are reached
+    //so the peer is slowed down by the connection filling up. The readers count the data of 11 frames as it is read
+    //from the socket rather than once the whole frame is in, since a frame can be megabytes long
+    void TakeDownload(int count) {
+        long delay = clientHandler.GetBandwidthShaper().TakeDownload(downloadLimiter, count);
+        if(delay > 0) {
+            readPausedUntil = System.nanoTime() + delay;
+        }
+    }
+
+    //How long the reader should wait before reading from this peer again, 0 if it can read now
+    long ReadPauseNanos() {
+        return Math.max(0, readPausedUntil - System.nanoTime());
+    }
+
+    private boolean DeliverFileChunk(ByteBuffer frame, boolean wait) {
+        int start = frame.position();
+        long mostSignificantBits = frame.getLong(start);
+        long leastSignificantBits = frame.getLong(start + 8);
+        frame.position(start + 16);
+        if(clientHandler.ReceiveFileChunk(clientId, new UUID(mostSignificantBits, leastSignificantBits), frame, wait)) {
+            return true;
+        }
+        //The request ID is written back in front of the data still to be staged, over data that has been staged
+        //already, so the rest of the chunk is delivered later like a frame of its own
+        int rest = frame.position() - 16;
+        frame.putLong(rest, mostSignificantBits).putLong(rest + 8, leastSignificantBits).position(rest);
+        return false;
+    }
+
+    //Called once the connection to this peer has ended. If the termination byte was not sent by the peer then it is
+    //queued manually now so the host removes the peer
+    void ConnectionEnded() {
+        metrics.RecordConnectionClosed();
+        //A held frame still comes before the leave notice, a held chunk is dropped with the rest of the download
+        if(heldMessage != null) {
+            AddToReceivedQueue(heldIndicator, heldMessage);
+            heldMessage = null;
+        }
+        if(heldChunk != null) {
+            clientHandler.GetBufferPool().Release(heldChunk);
+            heldChunk = null;
+        }
+        if(inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        if(!receivedTerminationByte) {
+            AddToReceivedQueue(Integer.valueOf(7).byteValue(), "Client exiting".getBytes());
+        }
+    }
+
+    //Start reading from this peer, either on its own request thread or on one of the selector engine's event loops
+    public void StartThreads() throws IOException {
+        SelectorEngine selectorEngine = clientHandler.GetSelectorEngine();
+        if(selectorEngine == null) {
+            clientHandler.GetPeerThreads().Start("client-request", new ClientRequest(this));
+            return;
+        }
+        //The socket is switched to non-blocking mode, so writes from now on go through a stream that waits for the
+        //socket to become writable instead of the socket's own stream
+        clientSocket.getChannel().configureBlocking(false);
+        writer.UseChannelOutput(new ChannelOutputStream(clientSocket.getChannel()));
+        selectorEngine.Register(this);
+    }
+
+    //Sends whatever is still queued for this peer and closes the output stream
     public void Close() throws IOException {
-        dataOut.close();
+        transferScheduler.Close();
+        writer.Close();
     }
 }
 
-//The data input stream thread that reads client requests to this host
-class ClientRequest extends Thread {
+//The data input stream task that reads client requests to this host, run on a platform or virtual thread of its own
+class ClientRequest implements Runnable {
     private final Client parent;
     private final DataInputStream dataIn;
+    //The socket's channel, file chunks are read from it straight into pooled buffers. This is safe to mix with the
+    //data input stream since that stream does not buffer anything ahead of what it has been asked for
+    private final SocketChannel channel;
+    private final BufferPool bufferPool;
 
     //Set the Client as the parent and initialize the data input stream from the parent's socket
     public ClientRequest(Client parent) throws IOException {
         this.parent = parent;
         dataIn = new DataInputStream(parent.clientSocket.getInputStream());
+        channel = parent.clientSocket.getChannel();
+        bufferPool = parent.clientHandler.GetBufferPool();
     }
 
     //The input management thread
     public void run() {
-        boolean receivedTerminationByte = false;
         //Checks that the peer is still connected
         while(parent.clientSocket.isConnected() && !parent.clientSocket.isClosed()) {
+            //Stop reading while the file data already read is over a download limit
+            long pause = parent.ReadPauseNanos();
+            if(pause > 0) {
+                LockSupport.parkNanos(pause);
+                continue;
+            }
             try {
                 //Wait for an indicator byte
                 byte indicator = dataIn.readByte();
                 //When indicator is received read the message length
                 int dataLength = dataIn.readInt();
+                boolean compressed = indicator == (byte) 16 && dataLength >= 20;
+                if((indicator == (byte) 11 && dataLength >= 16 || compressed) && channel != null) {
+                    //File chunks, compressed or not, are read into a pooled buffer and written to disk from it, then
+                    //the buffer is returned so the next chunk can use it
+                    ByteBuffer frame = bufferPool.Acquire(dataLength);
+                    try {
+                        while(frame.hasRemaining()) {
+                            int read = channel.read(frame);
+                            if(read < 0) {
+                                throw new EOFException();
+                            }
+                            parent.TakeDownload(read);
+                            long chunkPause = parent.ReadPauseNanos();
+                            if(chunkPause > 0) {
+                                LockSupport.parkNanos(chunkPause);
+                            }
+                        }
+                        frame.flip();
+                        if(compressed) {
+                            parent.ReceiveCompressedChunk(frame, true);
+                        } else {
+                            parent.ReceiveFileChunk(frame, true);
+                        }
+                    } finally {
+                        bufferPool.Release(frame);
+                    }
+                    continue;
+                }
                 //Create byte array of that length and read the data up until that length
                 byte[] message = new byte[dataLength];
                 dataIn.readFully(message, 0, dataLength);
-                if(indicator == Integer.valueOf(7).byteValue()) {
-                    //If the indicator is a 7 then label that the termination byte was sent, so we do not need to
-                    //invoke it manually
-                    receivedTerminationByte = true;
-                }
-                if(indicator != (byte) -6 && indicator != (byte) 11) {
-                    //If the indicator is not -6 or 11 which indicate requesting a file or receiving file data chunks
-                    //then add them to the received queue.
-                    //We cannot submit file requests or file data chunks to the ClientHandler thread since both of these
-                    //are BLOCKING calls which require the host to spend a long time processing them.
-                    //The solution is to launch the SendFile and ReceiveFileChunk methods from inside of this thread
-                    //since it is only handling file transmission at the moment anyway.
-                    parent.AddToReceivedQueue(indicator, message);
-                } else if(indicator == (byte) -6) {
-                    //Get the request ID and the file name requested and pass them to the SendFile method in the ClientHandler
-                    byte[] requestIdAsBytes = new byte[16];
-                    System.arraycopy(message, 0, requestIdAsBytes, 0, 16);
-                    byte[] fileNameAsBytes = new byte[dataLength - 16];
-                    System.arraycopy(message, 16, fileNameAsBytes, 0, fileNameAsBytes.length);
-
-                    parent.clientHandler.SendFile(parent, requestIdAsBytes, fileNameAsBytes);
-                } else if(indicator == (byte) 11) {
-                    //Get the request ID and the file data chunks from the request and submit that information
-                    //to the ReceiveFileChunk method in the ClientHandler
-                    byte[] requestIdAsBytes = new byte[16];
-                    System.arraycopy(message, 0, requestIdAsBytes, 0, 16);
-                    byte[] fileData = new byte[message.length - 16];
-                    System.arraycopy(message, 16, fileData, 0, fileData.length);
-
-                    parent.clientHandler.ReceiveFileChunk(requestIdAsBytes, fileData);
-                }
+                parent.ReceiveFrame(indicator, message, true);
             } catch (IOException e) {
                 try {
                     //If there is an IOException and dataIn.read() == -1 then it means that the client has disconnected
@@ -143,15 +441,7 @@ class ClientRequest extends Thread {
             }
         }
         //If the termination byte was not sent by the client then send it manually now
-        //If it was sent then close the dataInputStream
-        if(!receivedTerminationByte) {
-            parent.AddToReceivedQueue(Integer.valueOf(7).byteValue(), "Client exiting".getBytes());
-            try {
-                dataIn.close();
-            } catch (IOException ignored) {
-
-            }
-        }
+        parent.ConnectionEnded();
         try {
             dataIn.close();
         } catch (IOException ignored) {
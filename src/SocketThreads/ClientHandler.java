@@ -1,35 +1,62 @@
 package SocketThreads;
 
+import IOThreads.DownloadJournal;
+import IOThreads.DownloadSink;
 import IOThreads.FileListUpdater;
+import IOThreads.FileManifest;
+import IOThreads.ManifestCache;
 
 import java.io.*;
 import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
  * Request and response codes
  * if indicator >= 0 then it is a response to a request or a notice
  * if indicator < 0 then it is a request
  *
- * if indicator = (-4, -5) then it is a file search request
- *   -4 -> propagate the search to your peers and append your ID to the request so that it can be sent back to the
- *         original searcher
- *       This request has another indicator value of i8 size denoting the length of the propagation history this value
- *       should be secondIndicator minimum = 16, and maximum = 112. secondIndicator = 96 then do not propagate the
- *       request anymore, search your files for the search term and return the results as an
- *       indicator -5 to the requester, removing 16 from the secondIndicator and the last 16 bytes from the list
- *   -5 -> propagation is returning with search data, send to the peer ID that is next in the list
- *       This request has another indicator value of i8 size denoting the length of the propagation history this value
- *       should be secondIndicator = minimum 16, and maximum = 112. Get the last 16 bytes from the propagation history
- *       and search your clientId's to find one that matches. If you do then send the results to them removing the last
- *       16 bytes from the propagation history and delimiting secondIndicator by 16
+ * if indicator = (-4, -5) then it is a file search request, both are encoded by SearchCodec which describes the format
+ *   -4 -> propagate the search to your peers and remember which peer it came from so that the results can be sent back
+ *         to the original searcher
+ *       The request carries the query ID that the original searcher gave the search. A peer that has already seen
+ *       the query ID drops the request without searching or propagating it, since it is a copy that took another path.
+ *       The request also carries the number of peers that forwarded it, once that reaches MAX_SEARCH_HOPS the request
+ *       is no longer propagated. A peer with matching files returns them with their sizes and Merkle roots as a -5 to
+ *       the peer that it received the request from
+ *   -5 -> propagation is returning with search data, send it to the peer that the search with its query ID came from
+ *       The original searcher instead adds the results to the search with that query ID if it is still collecting
+ *       results, replies to searches that have been forgotten are dropped
  * if indicator = -6 then it is a file download request
- *   The following 16 bytes denote a requestId and all other bytes are the filename
+ *   The following 16 bytes denote a requestId, then 8 bytes denote the offset to start sending the file from so that
+ *   interrupted downloads can be resumed, and all other bytes are the filename
+ * if indicator = -7 then it is a ranged file download request used to download pieces of a file from several peers
+ *   The following 16 bytes denote a requestId, then 8 bytes of offset and 8 bytes of length of the range, then a
+ *   flags byte which is 1 when the file manifest should be included in the response, and all other bytes are the
+ *   filename. It is answered exactly like a -6 request, the 9 response carries the size of the whole file and the 11
+ *   responses carry the data of the range only
+ * if indicator = -8 then the requester no longer wants the data of a file download request, the following 16 bytes
+ *   denote the requestId. The data still to be sent for it is dropped and no 12 response is sent, a request still
+ *   waiting for an upload slot is taken out of the queue
  * if indicator = -128 then it is the end of initial transaction containing node information and intentions
  *
  * if indicator = 0 then it is a response containing the node ID
@@ -44,9 +71,14 @@ import java.util.*;
  * if indicator = 7 then it is a notice that the current node is leaving the system and should be disconnected
  *   if the sender of this message is the primary node then the node must create a new primary node and send notice
  *   to all of its peers of the change
+ * if indicator = 8 then the file download request is waiting for an upload slot, this is followed by 16 bytes denoting
+ *   the requestId and 4 bytes of the request's place in the queue counting from 1. The 9 response follows once the
+ *   request has a slot
  * if indicator = (9, 10) then this response is in relation to a file download request
- *   9 -> File request can be completed and is accompanied by 16 bytes denoting the requestId and also sends the file
- *        size, followed by a number of responses labeled with an 11 indicator until the file is streamed
+ *   9 -> File request can be completed and is accompanied by 16 bytes denoting the requestId and 8 bytes of file
+ *        size, followed by the file manifest (piece size, piece count, Merkle root and the SHA-256 hash of every piece)
+ *        for -6 requests and flagged -7 requests. This is followed by a number of responses labeled with an 11
+ *        indicator until the file is streamed
  *   10 -> The file request could not be completed due to a number of reasons this is followed by 16 bytes denoting
  *         the requestId so that the host can terminate the request
  * if indicator = 11 then this response contains parts of a file requested
@@ -55,13 +87,21 @@ import java.util.*;
  *         the requestId
  * if indicator = 13 then it is a notice that all data has been received
  * if indicator = 14 then it is a notice of the address and port number
+ * if indicator = 15 then the node takes compressed file chunks, nothing follows it so a node that does not know it
+ *   skips it during the handshake
+ * if indicator = 16 then this response contains a compressed part of a file requested, it is only sent to nodes that
+ *   sent a 15 during the handshake
+ *   The following 16 bytes denote the requestId and 4 bytes the length of the file data, all other bytes are the file
+ *   data compressed with Deflater
  */
 
 //A structure containing messages to be sent to peers, containing the peerID, the indicator byte, and the actual message
+//The time the message was created is kept so that the dispatcher can measure how long it waited in the queue
 class ClientMessage {
     public UUID clientId;
     public byte indicatorByte;
     public byte[] message;
+    public final long queuedAt = System.nanoTime();
     public ClientMessage(UUID clientId, byte indicatorByte, String message) {
         this.clientId = clientId;
         this.indicatorByte = indicatorByte;
@@ -85,13 +125,30 @@ class ServerMessage {
     }
 }
 
-//File Request information structure containing the file name, the file size, how much data has been received so far, and a
-//OutputStream meant to write data to a file
+//File Request information structure containing the file name, the file size, how far into the file data has been
+//received so far, the channel the data is written to, the journal that lets the download be resumed, and the peer
+//that is sending the file
 class FileRequest {
     public String fileName;
     public long fileSize;
     public long receivedData = 0;
-    public OutputStream fileOut = null;
+    public FileChannel fileOut = null;
+    //Writes the received data to fileOut on the download I/O thread
+    public DownloadSink sink = null;
+    public DownloadJournal journal = null;
+    public UUID sourceId = null;
+    //The end of the data recorded in the journal when it was last saved
+    public long checkpointedData = 0;
+    //The peer's address so that corrupt pieces can be fetched from it again
+    public String sourceAddress = null;
+    public int sourcePort = 0;
+    //The manifest sent by the peer, the checks of the pieces written so far and the pieces that failed them
+    public FileManifest manifest = null;
+    public int nextPieceToVerify = 0;
+    //Times the download for the node metrics
+    public TransferTimer timer = null;
+    public final ArrayList<CompletableFuture<Boolean>> verifications = new ArrayList<>();
+    public final Set<Integer> corruptPieces = ConcurrentHashMap.newKeySet();
     public FileRequest(String fileName) {
         this.fileName = fileName;
     }
@@ -107,35 +164,97 @@ class ClientInfo {
     }
 }
 
-//A small utilities class that converts peerIDs to bytes and back to UUIDs
-class UUIDUtils {
-    public static UUID AsUUID(byte[] bytes) {
-        ByteBuffer bb = ByteBuffer.wrap(bytes);
-        long firstLong = bb.getLong();
-        long secondLong = bb.getLong();
-        return new UUID(firstLong, secondLong);
-    }
-
-    public static byte[] AsBytes(UUID uuid) {
-        ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-        bb.putLong(uuid.getMostSignificantBits());
-        bb.putLong(uuid.getLeastSignificantBits());
-        return bb.array();
-    }
-}
-
 public class ClientHandler extends Thread {
-    //This contains the permanent clients list or clients which are constantly connected to this host
-    private final ArrayList<Client> permanentClients = new ArrayList<>();
-    //This contains the data transfer clients list or clients which are temporary and are transferring from or to
-    //this host
-    private final ArrayList<Client> dataTransferClients = new ArrayList<>();
-    //This is a list containing the messages that are queued and getting ready to be sent to other peers
-    private final ArrayList<ClientMessage> queuedMessages = new ArrayList<>();
-    //This is a list containing the information relating to the previous search request from this host
-    private final ArrayList<SearchResults> searchResults = new ArrayList<>();
+    //This contains the permanent clients or clients which are constantly connected to this host
+    //Both registries are looked up by peer ID without locking and iterated from a snapshot, since peers are added by
+    //the accepting threads while the dispatcher and the readers look them up and go through them
+    private final PeerRegistry permanentClients = new PeerRegistry();
+    //This contains the data transfer clients or clients which are temporary and are transferring from or to this host
+    private final PeerRegistry dataTransferClients = new PeerRegistry();
+    //Keeps data transfer connections open between transfers and closes them once they have been idle for a while
+    private final DataConnectionPool dataConnectionPool = new DataConnectionPool(this, dataTransferClients);
+    //The maximum number of messages that can wait for the dispatcher before the readers stop reading
+    private static final int QUEUE_CAPACITY = 4096;
+    //This is a bounded queue containing the messages that are queued and getting ready to be processed by this host.
+    //Reader threads block when it is full and the selector engine stops reading from the peer whose frame did not fit,
+    //which pushes back on the peers that are flooding this host
+    private final BlockingQueue<ClientMessage> queuedMessages = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    //Queue wait times and throughput of the dispatcher
+    private final DispatchStats dispatchStats = new DispatchStats();
+    //The counters and histograms of this host, exported over JMX and to the snapshot file
+    private final NodeMetrics metrics = new NodeMetrics(dispatchStats, queuedMessages::size, permanentClients, dataTransferClients);
+    //Whether file data is sent straight from the file to the socket instead of being copied through the heap
+    private volatile boolean zeroCopyEnabled = true;
+    //The send and receive buffer size of peer sockets, 0 leaves them to the operating system
+    private volatile int socketBufferSize = 0;
+    //Whether this host offers to take compressed file chunks during handshakes, and the pool that compresses the
+    //chunks it sends
+    private volatile boolean compressionEnabled = true;
+    private final ChunkCompressor chunkCompressor = new ChunkCompressor();
+    //The event loops that read from peers when the selector engine is in use, null when every peer has its own thread
+    private volatile SelectorEngine selectorEngine = null;
+    //The buffers that inbound file chunks are read into
+    private final BufferPool bufferPool = new BufferPool();
+    //Creates the reader threads of peers, as platform or virtual threads
+    private volatile PeerThreads peerThreads = new PeerThreads(false);
+    //Runs the drain tasks of the connection writers, a thread is only busy while a connection has frames to write
+    private volatile ExecutorService connectionWriterPool = Executors.newCachedThreadPool(peerThreads.Factory("connection-writer"));
+    //Runs the transfer schedulers that send requested files, a thread is only busy while a peer has files to be sent
+    private volatile ExecutorService transferPool = Executors.newCachedThreadPool(peerThreads.Factory("transfer-scheduler"));
+    //The slots that file requests from peers need to be served and the queue they wait in, and the threads that open
+    //the requested files
+    private volatile UploadQueue uploadQueue = new UploadQueue(UploadQueue.DEFAULT_SLOTS, false);
+    private volatile ExecutorService uploadWorkers = Executors.newCachedThreadPool(peerThreads.Factory("upload-worker"));
+    //The limits on the rate of file data, and the timer that starts a transfer scheduler again once a limit lets it
+    private final BandwidthShaper bandwidthShaper = new BandwidthShaper();
+    private final ScheduledExecutorService shapingTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bandwidth-shaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //How much data a single peer download writes before it saves its journal
+    private static final long JOURNAL_CHECKPOINT_BYTES = 8L * 1024 * 1024;
+    //The thread that writes the data of single peer downloads to their files
+    private final ExecutorService downloadWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "download-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //Whether finished downloads are forced to the disk before they are reported as finished
+    private volatile boolean syncDownloads = false;
+    //How often the progress of a download is reported
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+    private final ProgressReporter progressReporter = new ProgressReporter(PROGRESS_INTERVAL_MILLIS);
+    //The piece hashes of shared files and the threads that hash them and check downloaded pieces
+    private final ManifestCache manifestCache = new ManifestCache();
+    //The index of the shared files in the uploads directory that searches are answered from
+    private final FileListUpdater uploadsIndex;
+    //The directory downloaded files are written to
+    private final File downloadsDirectory;
+    //Reused by the dispatcher for the matches of every search it answers
+    private final ArrayList<String> searchMatches = new ArrayList<>();
+    //Encodes the replies to the searches the dispatcher answers
+    private final SearchCodec searchCodec = new SearchCodec();
+    //How many peers a search passes through before it is no longer propagated
+    private static final int MAX_SEARCH_HOPS = 16;
+    //How many search IDs are remembered and for how long, this only has to outlast a search's trip through the network
+    private static final int SEEN_QUERIES_CAPACITY = 16384;
+    private static final long SEEN_QUERIES_TTL_MILLIS = 2 * 60 * 1000;
+    //The IDs of searches that have already been handled by this host
+    private final SeenQueryCache seenQueries = new SeenQueryCache(SEEN_QUERIES_CAPACITY, SEEN_QUERIES_TTL_MILLIS);
+    //How many searches started from this host collect results at the same time, and how many files each one keeps
+    private static final int MAX_ACTIVE_SEARCHES = 16;
+    private static final int MAX_SEARCH_RESULT_FILES = 1000;
+    //The searches started from this host that are still collecting results mapped by query ID, oldest first
+    private final LinkedHashMap<UUID, SearchHandle> activeSearches = new LinkedHashMap<>();
+    //The search most recently started from the command line, which the listing and download commands refer to
+    private volatile SearchHandle lastSearch = null;
     //This is a HashMap containing the current File Requests originating from this host
-    private final HashMap<UUID, FileRequest> fileRequests = new HashMap<>();
+    private final ConcurrentHashMap<UUID, FileRequest> fileRequests = new ConcurrentHashMap<>();
+    //The ranged piece requests of swarm downloads mapped to the download they belong to
+    private final ConcurrentHashMap<UUID, SwarmDownload> pieceRequests = new ConcurrentHashMap<>();
+    //Swarm downloads that are still running, these are told when a peer disconnects
+    private final CopyOnWriteArrayList<SwarmDownload> activeSwarms = new CopyOnWriteArrayList<>();
     //This is the peerID of the current host
     private final UUID serverId;
     //This host's server socket information
@@ -145,12 +264,46 @@ public class ClientHandler extends Thread {
     //This host's port
     private final int port;
 
-    //constructor which initializes some immediately necessary information like ID, server socket, address, and port
+    //constructor which initializes some immediately necessary information like ID, server socket, address, and port,
+    //the shared files are in the uploads directory and downloads are saved to the downloads directory, both in the
+    //working directory
     public ClientHandler(UUID serverId, ServerSocket serverSocket, String address, int port) throws IOException {
+        this(serverId, serverSocket, address, port, new File("uploads"), new File("downloads"));
+    }
+
+    //constructor for a host that shares and saves files in directories of its own, so several hosts can run in one
+    //process
+    public ClientHandler(UUID serverId, ServerSocket serverSocket, String address, int port, File uploadsDirectory, File downloadsDirectory) throws IOException {
         this.serverId = serverId;
         this.serverSocket = serverSocket;
         this.address = address;
         this.port = port;
+        this.downloadsDirectory = new File(downloadsDirectory.getCanonicalPath().replace("\\", "/"));
+        //Index the shared files once and keep the index up to date from then on, this also starts hashing the shared
+        //files so their manifests are ready before they are requested
+        uploadsIndex = new FileListUpdater(new File(uploadsDirectory.getCanonicalPath().replace("\\", "/")), manifestCache);
+        uploadsIndex.start();
+        metrics.Register(serverId);
+    }
+
+    //Stops watching the uploads directory and lets the connection writer and transfer threads end once they are idle,
+    //this is done after every peer has been removed
+    public void Shutdown() {
+        synchronized(activeSearches) {
+            for(SearchHandle search : activeSearches.values()) {
+                search.Close();
+            }
+            activeSearches.clear();
+        }
+        uploadsIndex.Close();
+        dataConnectionPool.Close();
+        chunkCompressor.Close();
+        metrics.Close();
+        connectionWriterPool.shutdown();
+        transferPool.shutdown();
+        uploadWorkers.shutdown();
+        shapingTimer.shutdown();
+        downloadWriter.shutdown();
     }
 
     /*
@@ -161,6 +314,7 @@ public class ClientHandler extends Thread {
      */
     private ClientInfo InitializeConnectToClients(Socket clientSocket, boolean isPrimarySocket, boolean isPermanentConnection) throws IOException {
         Client tempClient = new Client(clientSocket, this, isPrimarySocket);
+        tempClient.openedByThisHost = true;
         boolean accepted = false;
 
         DataOutputStream dataOut = new DataOutputStream(clientSocket.getOutputStream());
@@ -185,6 +339,13 @@ public class ClientHandler extends Thread {
         dataOut.writeUTF(this.address + ":" + this.port);
         dataOut.flush();
 
+        //Tells the peer that this host takes compressed file chunks. The indicator carries nothing else so that a peer
+        //which does not know it simply skips it
+        if(compressionEnabled) {
+            dataOut.writeByte(15);
+            dataOut.flush();
+        }
+
         //Sends the termination byte since it has sent all the necessary info
         dataOut.writeByte(-127);
         dataOut.flush();
@@ -226,6 +387,10 @@ public class ClientHandler extends Thread {
                     int port1 = Integer.parseInt(addressAndPort1.split(":")[1]);
                     tempClient.thisClientAddress = new InetSocketAddress(address1, port1);
                     break;
+                //The peer takes compressed file chunks, they are sent to it if this host offered to take them too
+                case 15:
+                    tempClient.compressChunks = compressionEnabled;
+                    break;
                 //The termination byte
                 case -127:
                     done = true;
@@ -287,6 +452,7 @@ public class ClientHandler extends Thread {
                     dataOut.writeByte(14);
                     dataOut.writeUTF(address + ":" + port);
                     dataOut.flush();
+                    WriteCompressionOffer(dataOut);
                     dataOut.writeByte(-127);
                     dataOut.flush();
                     tempClient.isPrimarySocket = !hasPrimarySocket;
@@ -297,6 +463,7 @@ public class ClientHandler extends Thread {
                 case 2:
                     dataOut.writeByte(3);
                     dataOut.flush();
+                    WriteCompressionOffer(dataOut);
                     dataOut.writeByte(-127);
                     dataOut.flush();
                     break;
@@ -307,6 +474,10 @@ public class ClientHandler extends Thread {
                     int port = Integer.parseInt(addressAndPort.split(":")[1]);
                     tempClient.thisClientAddress = new InetSocketAddress(address, port);
                     break;
+                //The connecting peer takes compressed file chunks
+                case 15:
+                    tempClient.compressChunks = compressionEnabled;
+                    break;
                 //Termination byte received
                 case -127:
                     done = true;
@@ -316,18 +487,27 @@ public class ClientHandler extends Thread {
         return new ClientInfo(tempClient, isPermanent);
     }
 
+    //Tells a connecting peer that this host takes compressed file chunks, a peer that does not know the indicator skips
+    //it since nothing follows it
+    private void WriteCompressionOffer(DataOutputStream dataOut) throws IOException {
+        if(compressionEnabled) {
+            dataOut.writeByte(15);
+            dataOut.flush();
+        }
+    }
+
     //Handler function that manages connecting to other peers and adds the peer to the permanent client or data transfer
     //client list so that it can send appropriate data and requests
     public Client ConnectToClient(Socket clientSocket, boolean isPrimarySocket, boolean isPermanentConnection) throws IOException {
         ClientInfo clientInfo = InitializeConnectToClients(clientSocket, isPrimarySocket, isPermanentConnection);
         if(clientInfo != null) {
             if(clientInfo.isPermanent) {
-                permanentClients.add(clientInfo.client);
-                permanentClients.get(permanentClients.size() - 1).StartThreads();
+                permanentClients.Add(clientInfo.client);
             } else {
-                dataTransferClients.add(clientInfo.client);
-                dataTransferClients.get(dataTransferClients.size() - 1).StartThreads();
+                dataTransferClients.Add(clientInfo.client);
             }
+            metrics.RecordConnectionOpened();
+            clientInfo.client.StartThreads();
             return clientInfo.client;
         }
        return null;
@@ -339,22 +519,19 @@ public class ClientHandler extends Thread {
         ClientInfo clientInfo = InitializeAddedClients(clientSocket);
         if(clientInfo != null) {
             if(clientInfo.isPermanent) {
-                for(Client permanentClient : permanentClients) {
-                    if(permanentClient.clientId.compareTo(clientInfo.client.clientId) == 0) {
-                        SendOne(clientInfo.client.clientId, new ClientMessage(serverId, (byte) 7, "Client exiting".getBytes()));
-                        if(!clientInfo.client.clientSocket.isClosed()) {
-                            clientInfo.client.clientSocket.close();
-                            clientInfo.client.Close();
-                        }
-                        return;
-                    }
+                //A peer that is already a permanent client is told to leave on the new connection, the check and the
+                //add are one step so two connections from the same peer cannot both get in
+                if(!permanentClients.AddIfAbsent(clientInfo.client)) {
+                    clientInfo.client.Send((byte) 7, "Client exiting".getBytes());
+                    clientInfo.client.Close();
+                    clientInfo.client.clientSocket.close();
+                    return;
                 }
-                permanentClients.add(clientInfo.client);
-                permanentClients.get(permanentClients.size() - 1).StartThreads();
             } else {
-                dataTransferClients.add(clientInfo.client);
-                dataTransferClients.get(dataTransferClients.size() - 1).StartThreads();
+                dataTransferClients.Add(clientInfo.client);
             }
+            metrics.RecordConnectionAccepted();
+            clientInfo.client.StartThreads();
             if(clientInfo.client.isPrimarySocket) {
                 SendAllExcept(clientInfo.client.clientId, new ClientMessage(serverId, (byte) 5, (clientInfo.client.thisClientAddress.getAddress() + ":" + clientInfo.client.thisClientAddress.getPort()).getBytes()));
             }
@@ -363,298 +540,885 @@ public class ClientHandler extends Thread {
 
     //The function used to remove a client that has disconnected from this host by their peerID
     public void RemoveClient(UUID clientId) throws IOException {
-        for(int i = 0; i < permanentClients.size(); i++) {
-            if(permanentClients.get(i).clientId == clientId) {
-                //Closing all the connections
-                if(!permanentClients.get(i).clientSocket.isClosed()) {
-                    permanentClients.get(i).clientSocket.close();
-                    permanentClients.get(i).Close();
-                }
-                //Checking whether this peer was previously the primary peer of this host. If it was, and it does NOT
-                //have a next client address then that means that this host was its forwarding peer. This means that
-                //any new peers will simply connect to us, and we don't need to worry. If it DOES have a next client address
-                //that means that we need to connect to that new address and set it as our new forwarding address which
-                //we send to all of our connected peers excluding the new one.
-                Client newPrimaryInfo;
-                if(permanentClients.get(i).isPrimarySocket && permanentClients.get(i).nextClientAddress != null) {
-                    newPrimaryInfo = ConnectToClient(new Socket(permanentClients.get(i).nextClientAddress.getAddress(), permanentClients.get(i).nextClientAddress.getPort()), true, true);
-                    SendAllExcept(newPrimaryInfo.clientId, new ClientMessage(serverId, (byte) 5, (newPrimaryInfo.thisClientAddress.getAddress() + ":" + newPrimaryInfo.thisClientAddress.getPort()).getBytes()));
-                } else if(permanentClients.get(i).isPrimarySocket) {
-                    //If the primary socket exits without a forwarding address it means that we need to simply choose one
-                    //at random and notify all other peers
-                    if(permanentClients.size() > 1) {
-                        if(i == 0) {
-                            newPrimaryInfo = permanentClients.get(1);
-                        } else {
-                            newPrimaryInfo = permanentClients.get(0);
-                        }
-                        SendAllExcept(newPrimaryInfo.clientId, new ClientMessage(serverId, (byte) 5, (newPrimaryInfo.thisClientAddress.getAddress() + ":" + newPrimaryInfo.thisClientAddress.getPort()).getBytes()));
-                    }
-                }
-                //Finally removes the peer from the permanent clients list
-                permanentClients.remove(i);
-                break;
-            }
+        Client client = permanentClients.Get(clientId);
+        //Removing the peer from the permanent clients, if another thread already removed it there is nothing to do
+        if(client == null || !permanentClients.Remove(client)) {
+            return;
+        }
+        //Closing all the connections
+        if(!client.clientSocket.isClosed()) {
+            client.clientSocket.close();
+            client.Close();
+        }
+        //Checking whether this peer was previously the primary peer of this host. If it was, and it does NOT
+        //have a next client address then that means that this host was its forwarding peer. This means that
+        //any new peers will simply connect to us, and we don't need to worry. If it DOES have a next client address
+        //that means that we need to connect to that new address and set it as our new forwarding address which
+        //we send to all of our connected peers excluding the new one.
+        Client newPrimaryInfo = null;
+        if(client.isPrimarySocket && client.nextClientAddress != null) {
+            newPrimaryInfo = ConnectToClient(OpenSocket(client.nextClientAddress, socketBufferSize), true, true);
+        } else if(client.isPrimarySocket) {
+            //If the primary socket exits without a forwarding address it means that we need to simply choose one
+            //at random and notify all other peers
+            newPrimaryInfo = permanentClients.First();
+        }
+        if(newPrimaryInfo != null) {
+            SendAllExcept(newPrimaryInfo.clientId, new ClientMessage(serverId, (byte) 5, (newPrimaryInfo.thisClientAddress.getAddress() + ":" + newPrimaryInfo.thisClientAddress.getPort()).getBytes()));
         }
     }
 
     //Removing a client which is initiated by this host rather than a different peer
     public void RemoveClientOrigin(UUID clientId) throws IOException {
-        for(int i = 0; i < permanentClients.size(); i++) {
-            if(permanentClients.get(i).clientId == clientId) {
-                if(!permanentClients.get(i).clientSocket.isClosed()) {
-                    //Sends the disconnect notification to the peer in order to provide a cleaner exit
-                    DataOutputStream dataOut = new DataOutputStream(permanentClients.get(i).clientSocket.getOutputStream());
-                    dataOut.writeByte(7);
-                    dataOut.flush();
-                    //Closing all the connections
-                    dataOut.close();
-                    permanentClients.get(i).clientSocket.close();
-                    permanentClients.get(i).Close();
-                }
-                //Removing the peer from the list
-                permanentClients.remove(i);
-                break;
-            }
+        Client client = permanentClients.Get(clientId);
+        if(client != null) {
+            RemoveClientOrigin(client);
         }
     }
 
+    private void RemoveClientOrigin(Client client) throws IOException {
+        //Only the thread that removes the peer closes it
+        if(!permanentClients.Remove(client)) {
+            return;
+        }
+        SendLeaveNotice(client);
+    }
+
     //The peer requests removal from the host or has disconnected unexpectedly, so we remove them
     public void RemoveDataTransferClient(UUID clientId) throws IOException {
-        for(int i = 0; i < dataTransferClients.size(); i++) {
-            if(dataTransferClients.get(i).clientId == clientId) {
-                //Closing all the connections
-                if(!dataTransferClients.get(i).clientSocket.isClosed()) {
-                    dataTransferClients.get(i).clientSocket.close();
-                    permanentClients.get(i).Close();
-                }
-                //Removing the peer from the list
-                dataTransferClients.remove(i);
-                break;
-            }
+        Client client = dataTransferClients.Get(clientId);
+        if(client == null || !dataTransferClients.Remove(client)) {
+            return;
+        }
+        //Closing all the connections
+        if(!client.clientSocket.isClosed()) {
+            client.clientSocket.close();
+            client.Close();
         }
     }
 
     //The host is disconnecting itself from the peer
     public void RemoveDataTransferClientOrigin(UUID clientId) throws IOException {
-        for(int i = 0; i < dataTransferClients.size(); i++) {
-            if(dataTransferClients.get(i).clientId == clientId) {
-                if(!dataTransferClients.get(i).clientSocket.isClosed()) {
-                    //Sends the disconnect notification to the peer in order to provide a cleaner exit
-                    DataOutputStream dataOut = new DataOutputStream(dataTransferClients.get(i).clientSocket.getOutputStream());
-                    dataOut.writeByte(7);
-                    dataOut.flush();
-                    //Closing all the connections
-                    dataOut.close();
-                    dataTransferClients.get(i).clientSocket.close();
-                    permanentClients.get(i).Close();
-                }
-                //Removing from the data transfer list
-                dataTransferClients.remove(i);
-                break;
-            }
+        Client client = dataTransferClients.Get(clientId);
+        if(client != null) {
+            RemoveDataTransferClientOrigin(client);
+        }
+    }
+
+    void RemoveDataTransferClientOrigin(Client client) throws IOException {
+        if(!dataTransferClients.Remove(client)) {
+            return;
+        }
+        SendLeaveNotice(client);
+    }
+
+    //Closes a connection that this host is ending
+    private void SendLeaveNotice(Client client) throws IOException {
+        if(!client.clientSocket.isClosed()) {
+            //Sends the disconnect notification to the peer in order to provide a cleaner exit, as a whole frame
+            //through the peer's writer which sends it before the output stream is closed
+            client.Send((byte) 7, "Client exiting".getBytes());
+            //Closing all the connections
+            client.Close();
+            client.clientSocket.close();
         }
     }
 
     //Method for removing all permanent and data transfer clients, runs the origin methods since it is initiated
     //by this host
     public void RemoveAllClients() throws IOException {
-        while(!permanentClients.isEmpty()) {
-            RemoveClientOrigin(permanentClients.get(0).clientId);
+        for(Client permanentClient : permanentClients) {
+            RemoveClientOrigin(permanentClient);
         }
-        while(!dataTransferClients.isEmpty()) {
-            RemoveDataTransferClientOrigin(dataTransferClients.get(0).clientId);
+        for(Client dataTransferClient : dataTransferClients) {
+            RemoveDataTransferClientOrigin(dataTransferClient);
         }
     }
 
     //Adding a server message to the queued messages list (mainly used from the user input)
     public void AddServerMessageToQueue(byte indicatorByte, String message) {
-        queuedMessages.add(new ClientMessage(serverId, indicatorByte, message));
+        EnqueueMessage(new ClientMessage(serverId, indicatorByte, message));
     }
 
     //Adding a client message to the queued messages list
     public void AddMessageToQueue(UUID clientId, byte indicatorByte, byte[] message) {
-        queuedMessages.add(new ClientMessage(clientId, indicatorByte, message));
+        EnqueueMessage(new ClientMessage(clientId, indicatorByte, message));
+    }
+
+    //Places a message from a peer on the dispatcher queue unless the queue is full, returns false if it was not queued.
+    //The selector engine's event loops use this since they must never wait for the dispatcher
+    boolean OfferMessageToQueue(UUID clientId, byte indicatorByte, byte[] message) {
+        return queuedMessages.offer(new ClientMessage(clientId, indicatorByte, message));
+    }
+
+    //Places a message on the dispatcher queue, blocking the calling thread while the queue is full
+    private void EnqueueMessage(ClientMessage clientMessage) {
+        try {
+            queuedMessages.put(clientMessage);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //The number of messages currently waiting for the dispatcher
+    public int GetQueueDepth() {
+        return queuedMessages.size();
+    }
+
+    //The dispatcher's throughput and queue latency information
+    public DispatchStats GetDispatchStats() {
+        return dispatchStats;
+    }
+
+    //The counters and histograms of this host
+    public NodeMetrics GetMetrics() {
+        return metrics;
+    }
+
+    //Switches the file serving mode between FileChannel.transferTo and the buffered copy loop
+    public void SetZeroCopyEnabled(boolean zeroCopyEnabled) {
+        this.zeroCopyEnabled = zeroCopyEnabled;
+    }
+
+    //Sets the buffer sizes of the sockets of peers that connect from now on. The operating system's automatic tuning
+    //is usually best, a fixed size helps where its limits are too small for the bandwidth and round trip of a link
+    public void SetSocketBufferSize(int socketBufferSize) {
+        this.socketBufferSize = socketBufferSize;
+    }
+
+    int GetSocketBufferSize() {
+        return socketBufferSize;
+    }
+
+    //Sets whether peers that connect from now on are offered compressed file chunks
+    public void SetCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    ChunkCompressor GetChunkCompressor() {
+        return chunkCompressor;
+    }
+
+    //Switches reading from newly connected peers to the selector engine, peers that are already connected keep their
+    //own threads
+    public void SetSelectorEngine(SelectorEngine selectorEngine) {
+        this.selectorEngine = selectorEngine;
     }
 
-    //Retrieves the search results as a public method so that the command line can display them
+    public SelectorEngine GetSelectorEngine() {
+        return selectorEngine;
+    }
+
+    public void SetPeerThreads(PeerThreads peerThreads) {
+        this.peerThreads = peerThreads;
+        ExecutorService previousPool = connectionWriterPool;
+        connectionWriterPool = Executors.newCachedThreadPool(peerThreads.Factory("connection-writer"));
+        previousPool.shutdown();
+        ExecutorService previousTransferPool = transferPool;
+        transferPool = Executors.newCachedThreadPool(peerThreads.Factory("transfer-scheduler"));
+        previousTransferPool.shutdown();
+        ExecutorService previousUploadWorkers = uploadWorkers;
+        uploadWorkers = Executors.newCachedThreadPool(peerThreads.Factory("upload-worker"));
+        previousUploadWorkers.shutdown();
+    }
+
+    //Sets the number of upload slots and the order queued file requests are served in, this replaces the queue so it
+    //is done before any peer connects
+    public void SetUploadQueue(int slots, boolean smallestFirst) {
+        uploadQueue = new UploadQueue(slots, smallestFirst);
+    }
+
+    //Changes the number of upload slots while running, queued requests start at once in any new slots and uploads
+    //over the new number finish before their slots are taken away
+    public void SetUploadSlots(int slots) {
+        for(UploadQueue.Upload upload : uploadQueue.SetSlots(slots)) {
+            StartUpload(uploadQueue, upload);
+        }
+    }
+
+    public int GetUploadSlots() {
+        return uploadQueue.GetSlots();
+    }
+
+    public int GetActiveUploads() {
+        return uploadQueue.GetBusy();
+    }
+
+    public int GetQueuedUploads() {
+        return uploadQueue.GetQueued();
+    }
+
+    public PeerThreads GetPeerThreads() {
+        return peerThreads;
+    }
+
+    public void SetSyncDownloads(boolean syncDownloads) {
+        this.syncDownloads = syncDownloads;
+    }
+
+    //Sets the listener that is told how far every download has got, replacing any earlier listener
+    public void SetDownloadProgressListener(DownloadProgressListener listener) {
+        progressReporter.SetListener(listener);
+    }
+
+    void ReportProgress(String fileName, long downloadedBytes, long fileSize) {
+        progressReporter.Report(fileName, downloadedBytes, fileSize);
+    }
+
+    public BufferPool GetBufferPool() {
+        return bufferPool;
+    }
+
+    public ExecutorService GetConnectionWriterPool() {
+        return connectionWriterPool;
+    }
+
+    public ExecutorService GetTransferPool() {
+        return transferPool;
+    }
+
+    //The limits on file data, which can be changed while files are being sent
+    public BandwidthShaper GetBandwidthShaper() {
+        return bandwidthShaper;
+    }
+
+    ScheduledExecutorService GetShapingTimer() {
+        return shapingTimer;
+    }
+
+    //Opens a socket to another peer through a SocketChannel so that file data can be sent to it with transferTo
+    public static Socket OpenSocket(String address, int port) throws IOException {
+        return OpenSocket(new InetSocketAddress(address, port));
+    }
+
+    public static Socket OpenSocket(InetSocketAddress address) throws IOException {
+        return OpenSocket(address, 0);
+    }
+
+    //The receive buffer size has to be set before connecting for the peer to be offered a window larger than 64 KiB
+    public static Socket OpenSocket(InetSocketAddress address, int bufferSize) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            if(bufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+            }
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
+    //Starts a search of the network for a search term. The results are collected in the returned handle as they
+    //arrive, the oldest search is closed once more than MAX_ACTIVE_SEARCHES are running
+    public SearchHandle Search(String searchTerm) {
+        SearchHandle search = new SearchHandle(UUID.randomUUID(), searchTerm, MAX_SEARCH_RESULT_FILES);
+        synchronized(activeSearches) {
+            activeSearches.put(search.GetQueryId(), search);
+            if(activeSearches.size() > MAX_ACTIVE_SEARCHES) {
+                Iterator<SearchHandle> oldest = activeSearches.values().iterator();
+                oldest.next().Close();
+                oldest.remove();
+            }
+        }
+        lastSearch = search;
+        //The dispatcher sends the search out
+        EnqueueMessage(new ClientMessage(serverId, (byte) -4, SearchCodec.NewRequest(search.GetQueryId(), searchTerm)));
+        return search;
+    }
+
+    public SearchHandle GetLastSearch() {
+        return lastSearch;
+    }
+
+    //Retrieves the results of the last search as a public method so that the command line can display them
     public ArrayList<SearchResults> GetSearchResults() {
-        return searchResults;
+        SearchHandle search = lastSearch;
+        return search == null ? new ArrayList<>() : search.GetResults();
     }
 
-    //Send to all peers excluding one peer
-    private void SendAllExcept(UUID clientId, ClientMessage clientMessage) {
+    //The address of this host on the connection to a peer, which is the address that the peer can reach it on
+    private String LocalAddressOf(UUID clientId) {
+        Client permanentClient = permanentClients.Get(clientId);
+        return permanentClient == null ? address : permanentClient.clientSocket.getLocalAddress().getHostAddress();
+    }
+
+    //Send to all peers excluding one peer, returns the number of peers it was sent to
+    private int SendAllExcept(UUID clientId, ClientMessage clientMessage) {
+        int sent = 0;
         for(Client permanentClient : permanentClients) {
-            if(permanentClient.clientId.compareTo(clientId) != 0) {
+            if(!permanentClient.clientId.equals(clientId)) {
                 permanentClient.Send(clientMessage.indicatorByte, clientMessage.message);
+                sent++;
             }
         }
+        return sent;
     }
 
-    //Send to all peers with no exclusions
-    private void SendAll(ClientMessage clientMessage) {
+    //Send to all peers with no exclusions, returns the number of peers it was sent to
+    private int SendAll(ClientMessage clientMessage) {
+        int sent = 0;
         for(Client permanentClient : permanentClients) {
             permanentClient.Send(clientMessage.indicatorByte, clientMessage.message);
+            sent++;
         }
+        return sent;
     }
 
     //Send to a single peer
     private void SendOne(UUID clientId, ClientMessage clientMessage) {
-        boolean sent = false;
-        for(Client permanentClient : permanentClients) {
-            if(permanentClient.clientId.compareTo(clientId) == 0) {
-                permanentClient.Send(clientMessage.indicatorByte, clientMessage.message);
-                sent = true;
-                break;
-            }
+        Client client = permanentClients.Get(clientId);
+        //If the peer is not a permanent client then it is a data transfer client
+        if(client == null) {
+            client = dataTransferClients.Get(clientId);
         }
-        //Checks whether the message was already sent to a permanent client, meaning that the requested peer is not
-        //a data transfer client
-        if(!sent) {
-            for(Client dataTransferClient : dataTransferClients) {
-                if(dataTransferClient.clientId.compareTo(clientId) == 0) {
-                    dataTransferClient.Send(clientMessage.indicatorByte, clientMessage.message);
-                    break;
-                }
-            }
+        if(client != null) {
+            client.Send(clientMessage.indicatorByte, clientMessage.message);
         }
     }
 
     //The function to initiate a file download
     public void StartFileDownload(int searchListID, int fileId) throws IOException {
         //Gets the client information and the file information from the search results
+        ArrayList<SearchResults> searchResults = GetSearchResults();
         UUID clientId = searchResults.get(searchListID).clientId;
         String file = searchResults.get(searchListID).files[fileId];
-        //Generates a request ID
-        UUID newFileRequestId = UUID.randomUUID();
         //Gets the address and port information from the search results structure
         String address = searchResults.get(searchListID).address;
         int port = searchResults.get(searchListID).port;
 
-        //Creates a new file request
-        fileRequests.put(newFileRequestId, new FileRequest(file));
+        //An unfinished earlier download of the same file is continued rather than starting a renamed copy
+        StartFileRequest(file, clientId, address, port, DownloadJournal.Find(GetDownloadsDirectory(), file));
+    }
+
+    //Continues every unfinished download in the downloads directory that is not currently running, using the peers
+    //recorded in its journal
+    public void ResumeDownloads() throws IOException {
+        for(DownloadJournal journal : DownloadJournal.FindAll(GetDownloadsDirectory())) {
+            if(IsDownloading(journal.GetTarget())) {
+                continue;
+            }
+            List<DownloadJournal.Source> journalSources = journal.GetSources();
+            if(journalSources.size() > 1) {
+                ArrayList<SwarmSource> sources = new ArrayList<>();
+                for(DownloadJournal.Source source : journalSources) {
+                    sources.add(new SwarmSource(source.clientId, source.address, source.port));
+                }
+                SwarmDownload swarmDownload = new SwarmDownload(this, journal, sources);
+                activeSwarms.add(swarmDownload);
+                swarmDownload.Start();
+            } else if(journalSources.size() == 1) {
+                DownloadJournal.Source source = journalSources.get(0);
+                try {
+                    StartFileRequest(journal.GetRemoteFileName(), source.clientId, source.address, source.port, journal);
+                } catch (IOException e) {
+                    System.out.println("Could not reach " + source.address + ":" + source.port + " to resume " + journal.GetRemoteFileName());
+                }
+            }
+        }
+    }
+
+    //Creates the file request, continuing from the journal if one is given, and sends the request to the peer
+    private void StartFileRequest(String file, UUID clientId, String address, int port, DownloadJournal journal) throws IOException {
+        //Generates a request ID
+        UUID newFileRequestId = UUID.randomUUID();
+        FileRequest request = new FileRequest(file);
+        File target;
+        if(journal != null) {
+            target = journal.GetTarget();
+            request.receivedData = journal.GetContiguousEnd();
+            //The piece that was only partly written is checked again once it is complete
+            request.nextPieceToVerify = (int) (request.receivedData / FileManifest.PIECE_SIZE);
+            System.out.println("Resuming " + file + " from byte " + request.receivedData);
+        } else {
+            target = CreateDownloadFile(file, newFileRequestId);
+            journal = DownloadJournal.Create(target, file);
+        }
+        request.journal = journal;
+        request.timer = new TransferTimer(metrics);
+
+        //Makes sure there is a connection to the peer, the peer ID is taken from the connection since the journal may
+        //hold the ID the peer had before it restarted
+        Client connection = ConnectForTransfer(clientId, address, port);
+        if(connection == null) {
+            return;
+        }
+        request.sourceId = connection.clientId;
+        request.sourceAddress = address;
+        request.sourcePort = port;
+        journal.SetSources(List.of(new DownloadJournal.Source(connection.clientId, address, port)));
+        journal.Save();
+        request.fileOut = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        request.checkpointedData = request.receivedData;
+        request.sink = new DownloadSink(request.fileOut, downloadWriter, request.receivedData);
+        request.sink.SetWrittenListener(written -> DataWritten(request, written));
+
+        //Creates a new file request and sends the file download request indicator with the request
+        fileRequests.put(newFileRequestId, request);
+        SendFileRequest(connection.clientId, newFileRequestId, file, request.receivedData);
+    }
+
+    //Generates the message information including the requestID, the offset to start from and the file name and sends it
+    private void SendFileRequest(UUID clientId, UUID requestId, String fileName, long offset) {
+        byte[] fileNameAsBytes = fileName.getBytes();
+        ByteBuffer requestMessage = ByteBuffer.allocate(24 + fileNameAsBytes.length);
+        requestMessage.put(UUIDUtils.AsBytes(requestId));
+        requestMessage.putLong(offset);
+        requestMessage.put(fileNameAsBytes);
+        SendOne(clientId, new ClientMessage(serverId, (byte) -6, requestMessage.array()));
+    }
+
+    //Whether a single peer or swarm download is currently writing to the given file
+    private boolean IsDownloading(File target) {
+        for(FileRequest request : fileRequests.values()) {
+            if(request.journal != null && request.journal.GetTarget().equals(target)) {
+                return true;
+            }
+        }
+        for(SwarmDownload swarmDownload : activeSwarms) {
+            if(swarmDownload.GetFile().equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Called on the download I/O thread once the data of a single peer download up to written is in its file
+    private void DataWritten(FileRequest request, long written) {
+        //Pieces are checked as soon as they are complete rather than at the end of the download
+        QueueVerifications(request);
+        if(written - request.checkpointedData >= JOURNAL_CHECKPOINT_BYTES) {
+            try {
+                CheckpointDownload(request);
+            } catch (IOException ignored) {
+            }
+        }
+        progressReporter.Report(request.fileName, written, request.fileSize);
+    }
 
-        //Checks whether the peer which has the requested data is already a permanent client of this host in which
-        //case no data transfer connection is needed and all data can flow over the permanent client connection
-        boolean currentlyConnectedToPeer = false;
+    //Records the data written so far in the journal, leaving out pieces that failed their check. The data is not forced
+    //to the disk, a piece lost to a crash of the whole machine fails its check when the download is finished
+    private void CheckpointDownload(FileRequest request) throws IOException {
+        synchronized(request) {
+            long written = request.sink.GetWrittenEnd();
+            request.journal.MarkWritten(0, written);
+            for(int pieceIndex : request.corruptPieces) {
+                request.journal.MarkMissing((long) pieceIndex * FileManifest.PIECE_SIZE, (long) (pieceIndex + 1) * FileManifest.PIECE_SIZE);
+            }
+            request.journal.Save();
+            request.checkpointedData = written;
+        }
+    }
+
+    //Hands every piece that has been completely written to the hashing threads to be checked against the manifest
+    private void QueueVerifications(FileRequest request) {
+        synchronized(request) {
+            FileManifest manifest = request.manifest;
+            if(manifest == null) {
+                return;
+            }
+            long written = request.sink.GetWrittenEnd();
+            while(request.nextPieceToVerify < manifest.GetPieceCount() && Math.min((long) (request.nextPieceToVerify + 1) * manifest.GetPieceSize(), request.fileSize) <= written) {
+                int pieceIndex = request.nextPieceToVerify++;
+                request.verifications.add(manifestCache.VerifyPiece(request.fileOut, manifest, pieceIndex).thenApply(valid -> {
+                    if(!valid) {
+                        request.corruptPieces.add(pieceIndex);
+                    }
+                    return valid;
+                }));
+            }
+        }
+    }
+
+    //Once the peer has sent everything, waits for the outstanding piece checks and then completes the download or
+    //fetches the corrupt pieces again with ranged requests
+    private void FinishFileRequest(FileRequest request, UUID clientId) {
+        //Everything received has to be in the file before the last pieces can be checked, and every check has to be
+        //done before the file is closed
+        request.sink.Flush()
+                .handle((flushed, error) -> CollectVerifications(request))
+                .thenCompose(verifications -> CompletableFuture.allOf(verifications).handle((result, error) -> null))
+                .thenCompose(verified -> request.sink.Close(syncDownloads).handle((result, error) -> null))
+                .thenRun(() -> {
+                    try {
+                        //Keep the journal if the peer stopped short so the rest can be resumed later
+                        CheckpointDownload(request);
+                        if(request.sink.GetWrittenEnd() < request.fileSize) {
+                            System.out.println("The peer stopped sending " + request.fileName + " early, enter \"resume\" to continue it");
+                        } else if(request.corruptPieces.isEmpty()) {
+                            request.journal.Delete();
+                            request.timer.Finished();
+                            System.out.println("Finished downloading file");
+                            NotifyTransferFinished(clientId);
+                        } else {
+                            System.out.println(request.corruptPieces.size() + " pieces of " + request.fileName + " failed verification, downloading them again...");
+                            SwarmDownload repair = new SwarmDownload(this, request.journal, List.of(new SwarmSource(clientId, request.sourceAddress, request.sourcePort)));
+                            repair.SetManifest(request.manifest);
+                            activeSwarms.add(repair);
+                            repair.Start();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                });
+    }
+
+    //Queues the checks of the pieces completed since the last ones were queued and returns every check of the download
+    private CompletableFuture<?>[] CollectVerifications(FileRequest request) {
+        QueueVerifications(request);
+        synchronized(request) {
+            return request.verifications.toArray(new CompletableFuture<?>[0]);
+        }
+    }
+
+    //The data transfer connection for a download dropped, so the progress is saved to be resumed later
+    private void InterruptDownloads(UUID clientId) {
+        for(Map.Entry<UUID, FileRequest> entry : fileRequests.entrySet()) {
+            FileRequest request = entry.getValue();
+            if(clientId.equals(request.sourceId)) {
+                fileRequests.remove(entry.getKey());
+                request.sink.Close(false).whenComplete((result, error) -> {
+                    try {
+                        CheckpointDownload(request);
+                    } catch (IOException ignored) {
+                    }
+                });
+                System.out.println("Download of " + request.fileName + " was interrupted, enter \"resume\" to continue it");
+            }
+        }
+    }
+
+    //The function to initiate a download of one file from every peer in the search results that has a file by that name
+    public void StartSwarmDownload(int searchListID, int fileId) throws IOException {
+        ArrayList<SearchResults> searchResults = GetSearchResults();
+        String file = searchResults.get(searchListID).files[fileId];
+        ArrayList<SwarmSource> sources = new ArrayList<>();
+        for(SearchResults result : searchResults) {
+            if(Arrays.asList(result.files).contains(file)) {
+                sources.add(new SwarmSource(result.clientId, result.address, result.port));
+            }
+        }
+        //An unfinished earlier download of the same file is continued, only the missing pieces are requested
+        DownloadJournal journal = DownloadJournal.Find(GetDownloadsDirectory(), file);
+        if(journal == null) {
+            journal = DownloadJournal.Create(CreateDownloadFile(file, UUID.randomUUID()), file);
+        }
+        SwarmDownload swarmDownload = new SwarmDownload(this, journal, sources);
+        activeSwarms.add(swarmDownload);
+        swarmDownload.Start();
+    }
+
+    //Returns the connection that transfers with a peer should use. If the peer is already a permanent client of this
+    //host then no data transfer connection is needed and all data can flow over the permanent client connection,
+    //otherwise the pooled data transfer connection to the peer is used or a new one is opened
+    Client ConnectForTransfer(UUID clientId, String address, int port) throws IOException {
+        //An open data transfer connection to the peer is used again, even if its earlier transfers are over
+        Client dataTransferClient = dataConnectionPool.Acquire(clientId);
+        if(dataTransferClient != null) {
+            return dataTransferClient;
+        }
+        Client knownPermanentClient = permanentClients.Get(clientId);
+        if(knownPermanentClient != null) {
+            return knownPermanentClient;
+        }
         for(Client permanentClient : permanentClients) {
-            if(permanentClient.clientId.compareTo(clientId) == 0) {
-                currentlyConnectedToPeer = true;
+            //Peers are also matched by address since a peer that restarted comes back with a new ID
+            InetSocketAddress permanentAddress = permanentClient.thisClientAddress;
+            if(permanentAddress != null && permanentAddress.getPort() == port && permanentAddress.getHostString().equals(address)) {
+                return permanentClient;
             }
         }
+        return ConnectToClient(OpenSocket(new InetSocketAddress(address, port), socketBufferSize), false, false);
+    }
 
-        //Generates the message information including the requestID and file name
-        byte[] requestMessage = new byte[16 + file.length()];
-        byte[] requestIdAsBytes = UUIDUtils.AsBytes(newFileRequestId);
-        byte[] fileNameAsBytes = file.getBytes();
-        for(int i = 0; i < requestIdAsBytes.length; i++) {
-            requestMessage[i] = requestIdAsBytes[i];
+    //Whether a connection is sending files to its peer or any download is receiving data over it
+    boolean IsTransferringWith(Client connection) {
+        if(connection.IsSending()) {
+            return true;
+        }
+        for(FileRequest request : fileRequests.values()) {
+            if(connection.clientId.equals(request.sourceId)) {
+                return true;
+            }
+        }
+        for(SwarmDownload swarmDownload : activeSwarms) {
+            if(swarmDownload.UsesConnection(connection)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Sends a ranged file request for a piece of a swarm download
+    void SendRangeRequest(UUID clientId, UUID requestId, String fileName, long offset, long length, boolean includeManifest) {
+        byte[] fileNameAsBytes = fileName.getBytes();
+        ByteBuffer requestMessage = ByteBuffer.allocate(33 + fileNameAsBytes.length);
+        requestMessage.put(UUIDUtils.AsBytes(requestId));
+        requestMessage.putLong(offset);
+        requestMessage.putLong(length);
+        requestMessage.put((byte) (includeManifest ? 1 : 0));
+        requestMessage.put(fileNameAsBytes);
+        SendOne(clientId, new ClientMessage(serverId, (byte) -7, requestMessage.array()));
+    }
+
+    //Stops a download whose data from a peer could not be read, such as a compressed chunk that does not inflate. The
+    //request is dropped at once so none of its later chunks are written, and the peer is told to stop sending it. A
+    //piece of a swarm download is handed to another source instead
+    void FailDownload(UUID clientId, UUID requestId) {
+        SwarmDownload swarmDownload = pieceRequests.get(requestId);
+        if(swarmDownload != null) {
+            swarmDownload.PieceFailed(requestId);
+        } else if(FailFileRequest(requestId)) {
+            System.out.println("Received file data that could not be read, the download has stopped and can be resumed...");
+        }
+        SendCancelRequest(clientId, requestId);
+    }
+
+    //Removes a failed request from the file requests list, a partial file from an earlier attempt is kept along with its
+    //journal but an empty new file is removed. Returns false if the request had already ended
+    private boolean FailFileRequest(UUID requestId) {
+        FileRequest failedRequest = fileRequests.remove(requestId);
+        if(failedRequest == null) {
+            return false;
+        }
+        failedRequest.sink.Close(false).whenComplete((result, error) -> {
+            if(failedRequest.receivedData == 0) {
+                failedRequest.journal.Delete();
+                failedRequest.journal.GetTarget().delete();
+            }
+        });
+        return true;
+    }
+
+    //Tells a peer to stop sending the data of a request, a peer that does not know the -8 request just sends the rest
+    void SendCancelRequest(UUID clientId, UUID requestId) {
+        SendOne(clientId, new ClientMessage(serverId, (byte) -8, UUIDUtils.AsBytes(requestId)));
+    }
+
+    void RegisterPieceRequest(UUID requestId, SwarmDownload swarmDownload) {
+        pieceRequests.put(requestId, swarmDownload);
+    }
+
+    void ForgetPieceRequest(UUID requestId) {
+        pieceRequests.remove(requestId);
+    }
+
+    void SwarmEnded(SwarmDownload swarmDownload) {
+        activeSwarms.remove(swarmDownload);
+    }
+
+    //Checks a piece of a swarm download against its manifest on the hashing threads
+    CompletableFuture<Boolean> VerifyPiece(FileChannel fileChannel, FileManifest manifest, int pieceIndex) {
+        return manifestCache.VerifyPiece(fileChannel, manifest, pieceIndex);
+    }
+
+    //Tells a peer that everything it was sending has been received, a data transfer connection stays open afterwards
+    //for the next transfer until the data connection pool finds it idle
+    void NotifyTransferFinished(UUID clientId) {
+        SendOne(clientId, new ClientMessage(serverId, (byte) 13, "Finished downloading".getBytes()));
+    }
+
+    //The directory downloaded files are written to
+    private File GetDownloadsDirectory() {
+        return downloadsDirectory;
+    }
+
+    //Creates the file that a download is written to. If a file by that name already exists then the request ID is
+    //appended to the name in order to create a unique file name. Files shared from a subdirectory of the peer's uploads
+    //are saved directly in the downloads directory
+    private File CreateDownloadFile(String fileName, UUID requestId) throws IOException {
+        fileName = fileName.substring(fileName.lastIndexOf('/') + 1);
+        String downloadsPath = GetDownloadsDirectory().getPath() + "/";
+        File file = new File(downloadsPath + fileName);
+        if(file.exists()) {
+            int extensionIndex = fileName.lastIndexOf('.');
+            if(extensionIndex > 0) {
+                //Checks if the file has an extension or not (.pdf, .jpg, etc.) if so then append the request ID
+                //before the extension
+                fileName = fileName.substring(0, extensionIndex) + "-" + requestId + fileName.substring(extensionIndex);
+            } else {
+                //If the file does not have an extension then simply append the request ID to the end
+                fileName = fileName + "-" + requestId;
+            }
+            file = new File(downloadsPath + fileName);
+        }
+        file.createNewFile();
+        return file;
+    }
+
+    //Serves a -6 or -7 request from a peer once it has an upload slot, or queues it until it has one. This never blocks
+    //or touches the disk, so the thread reading from the peer moves on to its next frame at once
+    public void RequestUpload(Client client, byte[] requestIdAsBytes, String fileName, long offset, long length, boolean includeManifest) {
+        UploadQueue queue = uploadQueue;
+        if(!queue.IsSmallestFirst()) {
+            Admit(queue, new UploadQueue.Upload(client, requestIdAsBytes, fileName, offset, length, includeManifest, length));
+            return;
         }
-        for(int i = 0; i < fileNameAsBytes.length; i++) {
-            requestMessage[i + requestIdAsBytes.length] = fileNameAsBytes[i];
+        //Ordering the queue by size needs the size of the file, which is looked up on an upload worker
+        try {
+            uploadWorkers.execute(() -> {
+                File requestedFile = uploadsIndex.Resolve(fileName);
+                long size = requestedFile == null ? 0 : Math.min(length, Math.max(0, requestedFile.length() - offset));
+                Admit(queue, new UploadQueue.Upload(client, requestIdAsBytes, fileName, offset, length, includeManifest, size));
+            });
+        } catch (RejectedExecutionException ignored) {
+            //This host is shutting down
         }
+    }
 
-        if(currentlyConnectedToPeer) {
-            //If it is a permanent connection then simply send the file download request indicator with the request
-            SendOne(clientId, new ClientMessage(serverId, (byte) -6, requestMessage));
+    //Starts an upload if it can take a slot, otherwise queues it and tells the peer its place in the queue or that the
+    //queue is full
+    private void Admit(UploadQueue queue, UploadQueue.Upload upload) {
+        Client client = upload.client;
+        byte[] requestIdAsBytes = upload.requestId;
+        int position = queue.Offer(upload);
+        if(position == 0) {
+            StartUpload(queue, upload);
+        } else if(position < 0) {
+            //The queue is full, so the peer is told the request cannot be served and can try another peer
+            metrics.RecordUploadRejected();
+            SendOne(client.clientId, new ClientMessage(serverId, (byte) 10, requestIdAsBytes));
         } else {
-            //If it is a data transfer connection then connect to the peer then send them the file download request
-            ConnectToClient(new Socket(address, port), false, false);
-            SendOne(clientId, new ClientMessage(serverId, (byte) -6, requestMessage));
+            metrics.RecordUploadQueued();
+            SendOne(client.clientId, new ClientMessage(serverId, (byte) 8, ByteBuffer.allocate(20).put(requestIdAsBytes, 0, 16).putInt(position).array()));
+        }
+    }
+
+    //Stops an upload the peer has cancelled, whether it is still queued or already being sent. An upload that is being
+    //admitted or opening its file when the cancel arrives is sent in full and the peer drops its data
+    public void CancelUpload(Client client, byte[] requestIdAsBytes) {
+        if(!uploadQueue.Cancel(client, requestIdAsBytes)) {
+            client.CancelFile(requestIdAsBytes);
+        }
+    }
+
+    //Opens the file of an upload that has a slot on an upload worker. The slot is handed on to the next queued upload
+    //once all of the file has been sent, or as soon as the upload fails
+    private void StartUpload(UploadQueue queue, UploadQueue.Upload upload) {
+        metrics.RecordUploadStarted(System.nanoTime() - upload.queuedAt);
+        AtomicBoolean released = new AtomicBoolean(false);
+        Runnable release = () -> {
+            if(released.compareAndSet(false, true)) {
+                metrics.RecordUploadFinished();
+                UploadQueue.Upload next = queue.Release();
+                if(next != null) {
+                    StartUpload(queue, next);
+                }
+            }
+        };
+        try {
+            uploadWorkers.execute(() -> {
+                try {
+                    SendFileRange(upload.client, upload.requestId, upload.fileName, upload.offset, upload.length, upload.includeManifest, release);
+                } catch (IOException | RuntimeException e) {
+                    release.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //This host is shutting down, so the slot is not handed on
+            released.set(true);
         }
     }
 
     //The sender of a file receives this information from the above request
-    public void SendFile(Client client, byte[] requestIdAsBytes, byte[] fileNameAsBytes) throws IOException {
+    //Sends up to length bytes of a file starting at offset, this serves whole file requests (resumed from an offset or
+    //not) as well as the ranged requests used by swarm downloads. onDone is run once the range has been sent or could
+    //not be
+    public void SendFileRange(Client client, byte[] requestIdAsBytes, String fileName, long offset, long length, boolean includeManifest, Runnable onDone) throws IOException {
         //Request and file information
-        String fileName = new String(fileNameAsBytes);
-        InputStream fileIn;
-        File sendFile;
+        FileChannel fileChannel;
+        FileManifest manifest = null;
 
         try {
-            //Attempts to open the file and check if it exists, if not then it sends a failure message to the peer
-            String currentPath = new java.io.File(".").getCanonicalPath().replace("\\", "/");
-            sendFile = new File(currentPath + "/uploads/" + fileName);
-            if(!sendFile.exists()) {
+            //Attempts to find the file among the shared files and check if it exists, if not then it sends a failure
+            //message to the peer
+            File sendFile = uploadsIndex.Resolve(fileName);
+            if(sendFile == null || !sendFile.exists()) {
                 throw new IOException();
             }
-            //If file exists then initiate the File Input Stream
-            fileIn = new FileInputStream(sendFile);
-        } catch (IOException ignored) {
+            //The manifest is built on the hashing threads, usually long before the file is requested
+            if(includeManifest) {
+                manifest = manifestCache.Get(sendFile).join();
+            }
+            //If file exists then open it for reading
+            fileChannel = FileChannel.open(sendFile.toPath(), StandardOpenOption.READ);
+        } catch (IOException | RuntimeException ignored) {
             //File could not be opened or does not exist so tell the connected peer
             SendOne(client.clientId, new ClientMessage(serverId, (byte) 10, requestIdAsBytes));
+            onDone.run();
             return;
         }
 
-        //Retrieve and send the requestId and the file size so the peer knows how much data it is downloading
-        byte[] fileSize = ConvertLongToBytes(sendFile.length());
-        byte[] idAndSizeAsBytes = new byte[fileSize.length + 16];
+        //Retrieve and send the requestId and the file size so the peer knows how much data it is downloading,
+        //followed by the manifest so the peer can check the data
+        long fileLength;
+        try {
+            fileLength = fileChannel.size();
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+        byte[] fileSize = ConvertLongToBytes(fileLength);
+        byte[] encodedManifest = manifest == null ? new byte[0] : manifest.Encode();
+        byte[] idAndSizeAsBytes = new byte[fileSize.length + 16 + encodedManifest.length];
         for(int i = 0; i < requestIdAsBytes.length; i++) {
             idAndSizeAsBytes[i] = requestIdAsBytes[i];
         }
         for(int i = 0; i < fileSize.length; i++) {
             idAndSizeAsBytes[i + requestIdAsBytes.length] = fileSize[i];
         }
+        System.arraycopy(encodedManifest, 0, idAndSizeAsBytes, fileSize.length + 16, encodedManifest.length);
 
         SendOne(client.clientId, new ClientMessage(serverId, (byte) 9, idAndSizeAsBytes));
 
-        //Send the actual file data to the peer
-        int count;
-        byte[] buffer = new byte[8175];
-        while ((count = fileIn.read(buffer)) > 0)
-        {
-            client.SendFileChunk(requestIdAsBytes, buffer, count);
-        }
-
-        //Send the indicator and requestId for a completed file request upload
-        SendOne(client.clientId, new ClientMessage(serverId, (byte) 12, requestIdAsBytes));
+        //Work out where the requested range ends, clamped to the end of the file, and hand the range to the peer's
+        //transfer scheduler which sends it in turns with the other files the peer has requested and then sends the 12
+        long end = offset + Math.min(length, Math.max(0, fileLength - offset));
+        client.SendFile(requestIdAsBytes, fileChannel, offset, end, zeroCopyEnabled && client.clientSocket.getChannel() != null, ChunkCompressor.MayCompress(fileName), onDone);
     }
 
     //The method that accepts the requestId and file data chunk
-    public void ReceiveFileChunk(byte[] requestIdAsBytes, byte[] data) throws IOException {
-        //Sets the requestId and gets the file request information from it
-        UUID requestId = UUIDUtils.AsUUID(requestIdAsBytes);
+    //The data runs from the buffer's position to its limit and may be a view of a pooled buffer, so it is written out
+    //before this returns and never kept. Unless wait is set only the data that can be staged at once is taken, the
+    //buffer's position is moved past it and false is returned if any is left. A download whose file cannot be written
+    //is stopped like one whose data cannot be read, the chunk is taken so the peer's frames stay in step
+    public boolean ReceiveFileChunk(UUID clientId, UUID requestId, ByteBuffer data, boolean wait) {
+        //Pieces of swarm downloads are written to their place in the file by the download itself
+        SwarmDownload swarmDownload = pieceRequests.get(requestId);
+        if(swarmDownload != null) {
+            swarmDownload.ReceiveChunk(requestId, data);
+            return true;
+        }
         FileRequest request = fileRequests.get(requestId);
+        if(request == null) {
+            return true;
+        }
 
-        //If the file output stream has not yet been initialized
-        if(request.fileOut == null) {
-            //Set the file information
-            String filePath = new java.io.File(".").getCanonicalPath().replace("\\", "/") + "/downloads/" + request.fileName;
-            File file = new File(filePath);
-            //Check if the file exists
-            if(file.exists()) {
-                //If the file exists then append the request ID to the end of it in order to create a unique file name
-                if(request.fileName.contains(".")) {
-                    //Checks if the file has an extension or not (.pdf, .jpg, etc.) if so then append the request ID
-                    //before the extension
-                    request.fileName = request.fileName.split("\\.")[0] + request.toString() + "." + request.fileName.split("\\.")[1];
-                } else {
-                    //If the file does not have an extension then simply append the request ID to the end
-                    request.fileName = request.fileName + "-" + request.toString();
-                }
-                //Generate the new path and create the file
-                filePath = new java.io.File(".").getCanonicalPath().replace("\\", "/") + "/downloads/" + request.fileName;
-                file = new File(filePath);
-                file.createNewFile();
-            } else {
-                //The file does not currently exist so create a new one
-                file.createNewFile();
+        //Stage the data sent from the uploader for its place in the file, which is after any data from earlier attempts.
+        //The download I/O thread writes it, checks the pieces it completes and reports the progress
+        int remaining = data.remaining();
+        boolean staged;
+        try {
+            staged = request.sink.Write(request.receivedData, data, wait);
+        } catch (IOException e) {
+            if(FailFileRequest(requestId)) {
+                System.out.println("The downloaded file could not be written, the download has stopped and can be resumed...");
             }
-            //Create the file output stream
-            request.fileOut = new FileOutputStream(filePath);
+            SendCancelRequest(clientId, requestId);
+            data.position(data.limit());
+            return true;
         }
-
-        //Write the data sent from the uploader to the new file
-        request.fileOut.write(data);
-        request.receivedData += data.length;
-        System.out.printf("Received %.2f%% of the data\n", (double) ((double) request.receivedData / (double) request.fileSize) * 100.0);
+        int length = remaining - data.remaining();
+        request.timer.Received(length);
+        request.receivedData += length;
+        return staged;
     }
 
     //Generate the next peer server message which is meant to keep the structure in place in case of a disconnect from
     //this host
     private ServerMessage GeneratePrimaryConnectedSocketMessage(Client excludeClient) {
         for (Client permanentClient : permanentClients) {
-            if (permanentClient.clientId != excludeClient.clientId && permanentClient.isPrimarySocket) {
+            if (!permanentClient.clientId.equals(excludeClient.clientId) && permanentClient.isPrimarySocket) {
                 //The requesting peer is NOT this host's primary connection so send the primary connection information to
                 //them
                 return new ServerMessage(Integer.valueOf(5).byteValue(), permanentClient.thisClientAddress.getAddress() + ":" + permanentClient.thisClientAddress.getPort());
@@ -679,13 +1443,20 @@ public class ClientHandler extends Thread {
     public void run() {
         //The main event loop that handles all messages received by this host
         while(!serverSocket.isClosed()) {
-            if(!queuedMessages.isEmpty()) {
-                //Remove the pending message and grab the clientId and indicator information
-                ClientMessage clientMessage = queuedMessages.remove(0);
+            ClientMessage clientMessage;
+            try {
+                //Park until a message arrives, waking up periodically to check whether the server socket was closed
+                clientMessage = queuedMessages.poll(250, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if(clientMessage != null) {
+                dispatchStats.Record(System.nanoTime() - clientMessage.queuedAt);
+                //Grab the clientId and indicator information from the pending message
                 UUID clientId = clientMessage.clientId;
                 byte indicator = clientMessage.indicatorByte;
 
-                if(clientId != serverId) {
+                if(!clientId.equals(serverId)) {
                     switch (indicator) {
                         //This host is receiving new forwarding information from a peer
                         case 5:
@@ -693,34 +1464,37 @@ public class ClientHandler extends Thread {
                             String addressAndPort1 = new String(clientMessage.message);
                             String address1 = addressAndPort1.replace("/", "").split(":")[0];
                             int port = Integer.parseInt(addressAndPort1.split(":")[1]);
-                            for(Client permanentClient : permanentClients) {
-                                if(permanentClient.clientId.compareTo(clientId) == 0) {
-                                    permanentClient.nextClientAddress = new InetSocketAddress(address1, port);
-                                }
+                            Client forwardingClient = permanentClients.Get(clientId);
+                            if(forwardingClient != null) {
+                                forwardingClient.nextClientAddress = new InetSocketAddress(address1, port);
                             }
                             break;
                         case 7:
                             //The client is signaling a wish to disconnect from this host. Remove it from the permanent
                             //or data transfer clients depending on where it currently is
                             try {
-                                boolean removed = false;
-                                for(int i = 0; i < permanentClients.size(); i++) {
-                                    if(permanentClients.get(i).clientId.compareTo(clientId) == 0) {
-                                        RemoveClient(clientId);
-                                        removed = true;
-                                        break;
-                                    }
-                                }
-                                if(!removed) {
-                                    for(int i = 0; i < dataTransferClients.size(); i++) {
-                                        if(dataTransferClients.get(i).clientId.compareTo(clientId) == 0) {
-                                            RemoveDataTransferClient(clientId);
-                                            break;
-                                        }
-                                    }
+                                if(permanentClients.Contains(clientId)) {
+                                    RemoveClient(clientId);
+                                } else {
+                                    RemoveDataTransferClient(clientId);
                                 }
                             } catch (IOException ignored) {
 
+                            }
+                            //Any swarm downloads using this peer hand its pieces to their other sources and downloads
+                            //from this peer alone are saved so they can be resumed
+                            for(SwarmDownload swarmDownload : activeSwarms) {
+                                swarmDownload.SourceDisconnected(clientId);
+                            }
+                            InterruptDownloads(clientId);
+                            break;
+                        case 8:
+                            //The peer has queued the file download request until it has an upload slot free. A piece of
+                            //a swarm download just waits, the other sources carry on with the rest of the file
+                            UUID queuedRequestId = UUIDUtils.AsUUID(Arrays.copyOf(clientMessage.message, 16));
+                            FileRequest queuedRequest = fileRequests.get(queuedRequestId);
+                            if(queuedRequest != null && clientMessage.message.length >= 20) {
+                                System.out.println("The peer is busy, " + queuedRequest.fileName + " is number " + ByteBuffer.wrap(clientMessage.message, 16, 4).getInt() + " in its upload queue...");
                             }
                             break;
                         case 9:
@@ -730,217 +1504,181 @@ public class ClientHandler extends Thread {
                             byte[] requestIdAsBytes = new byte[16];
                             System.arraycopy(clientMessage.message, 0, requestIdAsBytes, 0, 16);
                             //Set file Size
-                            byte[] fileSize = new byte[clientMessage.message.length - 16];
+                            byte[] fileSize = new byte[8];
                             System.arraycopy(clientMessage.message, 16, fileSize, 0, fileSize.length);
+                            long fileLength = new BigInteger(fileSize).longValue();
+                            //Get the manifest that follows the file size if the peer sent one
+                            FileManifest manifest = null;
+                            if(clientMessage.message.length > 24) {
+                                try {
+                                    manifest = FileManifest.Decode(fileLength, ByteBuffer.wrap(clientMessage.message, 24, clientMessage.message.length - 24));
+                                } catch (IOException e) {
+                                    System.out.println("The peer sent an unusable manifest, the download will not be verified: " + e.getMessage());
+                                }
+                            }
                             //Get the UUID version of the request ID
                             UUID requestId = UUIDUtils.AsUUID(requestIdAsBytes);
-                            //Set the file request file size
-                            fileRequests.get(requestId).fileSize = new BigInteger(fileSize).longValue();
-                            System.out.println("Connected to peer and preparing to download " + new BigInteger(fileSize).longValue() + " bytes of data...");
+                            //A piece of a swarm download only needs the file size to schedule the remaining pieces
+                            SwarmDownload sizedSwarm = pieceRequests.get(requestId);
+                            if(sizedSwarm != null) {
+                                if(manifest != null) {
+                                    sizedSwarm.SetManifest(manifest);
+                                }
+                                sizedSwarm.SizeKnown(fileLength);
+                                break;
+                            }
+                            FileRequest sizedRequest = fileRequests.get(requestId);
+                            if(sizedRequest == null) {
+                                break;
+                            }
+                            //Set the file request file size and the manifest its pieces are checked against
+                            sizedRequest.fileSize = fileLength;
+                            sizedRequest.manifest = manifest == null || manifest.GetPieceSize() != FileManifest.PIECE_SIZE ? null : manifest;
+                            if(!sizedRequest.journal.SetFileSize(sizedRequest.fileSize)) {
+                                //The file changed on the peer since the partial download was written, so the partial
+                                //data is thrown away and the file is requested again from the start under a new request.
+                                //The peer is told to stop the old one so it does not keep sending it in the upload slot
+                                System.out.println("The file changed on the peer since it was partially downloaded, starting over...");
+                                fileRequests.remove(requestId);
+                                SendCancelRequest(clientId, requestId);
+                                sizedRequest.sink.Truncate(0);
+                                sizedRequest.sink.SetFileSize(sizedRequest.fileSize);
+                                sizedRequest.receivedData = 0;
+                                sizedRequest.checkpointedData = 0;
+                                sizedRequest.nextPieceToVerify = 0;
+                                UUID restartedRequestId = UUID.randomUUID();
+                                fileRequests.put(restartedRequestId, sizedRequest);
+                                SendFileRequest(clientId, restartedRequestId, sizedRequest.fileName, 0);
+                                break;
+                            }
+                            //The whole file is allocated before the data arrives
+                            sizedRequest.sink.SetFileSize(sizedRequest.fileSize);
+                            System.out.println("Connected to peer and preparing to download " + (sizedRequest.fileSize - sizedRequest.receivedData) + " bytes of data...");
                             break;
                         case 10:
-                            //Indication that the peer could not fulfill a file download request
-                            System.out.println("Connected to peer but could not download file...");
                             //Get the Id of the request and generate the UUID value
                             byte[] requestIdAsBytesss = new byte[16];
                             System.arraycopy(clientMessage.message, 0, requestIdAsBytesss, 0, 16);
                             UUID requestIddd = UUIDUtils.AsUUID(requestIdAsBytesss);
-                            //Remove the request from the file requests list
-                            fileRequests.remove(requestIddd);
-                            //If the client was a data transfer client then terminate the connection and remove them
-                            for(int i = 0; i < dataTransferClients.size(); i++) {
-                                if(dataTransferClients.get(i).clientId.compareTo(clientId) == 0) {
-                                    try {
-                                        RemoveDataTransferClientOrigin(clientId);
-                                    } catch (IOException ignored) {
-                                    }
-                                }
+                            //A swarm download moves the failed piece to another peer
+                            SwarmDownload failedSwarm = pieceRequests.get(requestIddd);
+                            if(failedSwarm != null) {
+                                failedSwarm.PieceFailed(requestIddd);
+                                break;
                             }
+                            //Indication that the peer could not fulfill a file download request
+                            System.out.println("Connected to peer but could not download file...");
+                            FailFileRequest(requestIddd);
+                            //A data transfer connection may be carrying other transfers, so it is left to the data
+                            //connection pool to close once it is idle
                             break;
                         case 12:
                             //A notice from the client that all file data has been uploaded
                             //This is essentially the termination indicator for the file request
-                            System.out.println("Finished downloading file");
                             //Get file request ID bytes and set the UUID from them
                             byte[] requestIdAsBytess = new byte[16];
                             System.arraycopy(clientMessage.message, 0, requestIdAsBytess, 0, 16);
                             UUID requestIdd = UUIDUtils.AsUUID(requestIdAsBytess);
-                            //Get the file request and terminate the file output stream
-                            FileRequest request = fileRequests.get(requestIdd);
-                            try {
-                                request.fileOut.close();
-                            } catch (IOException ignored) {
+                            //A finished piece lets the swarm download schedule more work for that peer
+                            SwarmDownload finishedSwarm = pieceRequests.get(requestIdd);
+                            if(finishedSwarm != null) {
+                                finishedSwarm.PieceFinished(requestIdd);
+                                break;
+                            }
+                            //Get the file request and finish it once its pieces have been checked
+                            FileRequest request = fileRequests.remove(requestIdd);
+                            if(request != null) {
+                                FinishFileRequest(request, clientId);
                             }
-                            //Remove the request from the list
-                            fileRequests.remove(requestIdd);
-                            SendOne(clientId, new ClientMessage(serverId, (byte) 13, "Finished downloading".getBytes()));
                             break;
                         case 13:
                             //Notice from the client that they have successfully received all the file data that
-                            //This host has uploaded to them, if they are a permanent client then do nothing but if they
-                            //are a data transfer client then remove them
-                            boolean isPermanent = false;
-                            for(Client permanentClient : permanentClients) {
-                                if(permanentClient.clientId.compareTo(clientId) == 0) {
-                                    isPermanent = true;
-                                    break;
-                                }
-                            }
-                            if(!isPermanent) {
-                                try {
-                                    RemoveDataTransferClientOrigin(clientId);
-                                } catch (IOException ignored) {
-
-                                }
-                            }
+                            //This host has uploaded to them. A data transfer connection is kept open so the peer can
+                            //request its next file over it, the data connection pool closes it once it is idle
                             break;
                         case -4:
-                            //Someone is searching for a file and propagated a request.
-                            //First get the size of the list of clients that this request has already propagated to
-                            //If it is 7 clients then do not search
-                            byte clientSize = clientMessage.message[0];
-                            String searchTerm = null;
-                            byte[] originalBytes = new byte[0];
-                            if(clientSize < 96) {
-                                //Retrieve the bytes of the already sent to clients
-                                originalBytes = new byte[clientSize];
-                                for(int i = 0; i < clientSize; i++) {
-                                    originalBytes[i] = clientMessage.message[i + 1];
-                                }
-
-                                //Get the search term that the user was looking for
-                                byte[] searchTermAsBytes = new byte[clientMessage.message.length - clientSize - 1];
-                                for(int i = 0; i < searchTermAsBytes.length; i++) {
-                                    searchTermAsBytes[i] = clientMessage.message[i + clientSize + 1];
-                                }
-                                searchTerm = new String(searchTermAsBytes, StandardCharsets.US_ASCII);
-
-                                //Set the new size of the client history (the previous client information as well as your
-                                //own client information)
-                                byte newSize = (byte) (clientSize + 16);
-                                byte[] firstBytes = new byte[1 + newSize + searchTermAsBytes.length];
-                                //Get your own ID as bytes and insert the previous client IDs and your own ID to the list
-                                byte[] idAsBytes = UUIDUtils.AsBytes(serverId);
-                                firstBytes[0] = newSize;
-                                for(int i = 0; i < originalBytes.length; i++) {
-                                    firstBytes[i + 1] = originalBytes[i];
-                                }
-                                for(int i = 0; i < idAsBytes.length; i++) {
-                                    firstBytes[1 + clientSize + i] = idAsBytes[i];
-                                }
-                                //Insert the search term back into the new message
-                                for(int i = 0; i < searchTermAsBytes.length; i++) {
-                                    firstBytes[1 + newSize + i] = searchTermAsBytes[i];
-                                }
-                                //Propagate the search to all peers except the peer that originally send the message to
-                                //you
-                                SendAllExcept(clientId, new ClientMessage(serverId, indicator,  firstBytes));
+                            //Someone is searching for a file and propagated a request. Requests in a format that this
+                            //host cannot read are dropped
+                            if(!SearchCodec.IsSupported(clientMessage.message)) {
+                                break;
+                            }
+                            //Copies of the same search arrive over every path through the network, only the first one
+                            //is searched for and forwarded. The peer it came from is remembered as the way back for
+                            //the replies to it
+                            if(!seenQueries.MarkSeen(SearchCodec.QueryId(clientMessage.message), permanentClients.Get(clientId))) {
+                                dispatchStats.RecordSuppressedDuplicate();
+                                break;
+                            }
+                            String searchTerm;
+                            try {
+                                searchTerm = SearchCodec.SearchTerm(clientMessage.message);
+                            } catch (IOException e) {
+                                break;
+                            }
+                            //Propagate the search to all peers except the peer that sent it to this host, until it has
+                            //passed through MAX_SEARCH_HOPS peers
+                            SearchCodec.AddHop(clientMessage.message);
+                            if(SearchCodec.Hops(clientMessage.message) < MAX_SEARCH_HOPS) {
+                                metrics.RecordSearchReceived(SendAllExcept(clientId, clientMessage));
+                            } else {
+                                metrics.RecordSearchReceived(0);
                             }
 
                             //Checking if you have a file that matches the search criteria
-                            if(searchTerm != null) {
-                                //Create a list of file matches and generate a string from them with the file names
-                                //seperated by a "/" since it is an illegal character in a file name and can be split
-                                //on that delimiter later on
-                                ArrayList<String> fileMatches = FileListUpdater.SearchForFile(searchTerm);
-                                if(!fileMatches.isEmpty() && originalBytes.length != 0) {
-                                    StringBuilder files = new StringBuilder();
-                                    for(String match : fileMatches) {
-                                        files.append(match).append("/");
-                                    }
-                                    //Adds the address and port information of this host to the message
-                                    files = new StringBuilder(files.substring(0, files.length() - 1));
-                                    String address = "127.0.0.1:" + serverSocket.getLocalPort();
-                                    //Generate a new history list excluding the previous peer that sent this message
-                                    //to the host
-                                    byte[] newBytes = new byte[originalBytes.length - 16];
-                                    for(int i = 0; i < newBytes.length; i++) {
-                                        newBytes[i] = originalBytes[i];
-                                    }
-                                    //Setting the size information of the message
-                                    byte[] allBytes = new byte[1 + newBytes.length + 1 + address.length() + 16 + files.length()];
-                                    //denotes the length of the history client section
-                                    allBytes[0] = (byte) newBytes.length;
-                                    //Adds the length of the address to the correct byte position
-                                    allBytes[1 + newBytes.length] = (byte) address.length();
-                                    //Adds on the new list of clients excluding the previous client and your own information
-                                    for(int i = 0; i < newBytes.length; i++) {
-                                        allBytes[i + 1] = newBytes[i];
-                                    }
-                                    //Adds the host address to the message so the requester knows who they can contact
-                                    //to retrieve their file
-                                    for(int i = 0; i < address.length(); i++) {
-                                        allBytes[i + newBytes.length + 2] = (byte) address.charAt(i);
-                                    }
-                                    //Adds the host ID to the message so that the requester can check whether this
-                                    //is from a currently connected peer or not
-                                    byte[] thisIdAsBytes = UUIDUtils.AsBytes(serverId);
-                                    for(int i = 0; i < 16; i++) {
-                                        allBytes[i + address.length() + newBytes.length + 2] = thisIdAsBytes[i];
+                            ArrayList<String> fileMatches = searchMatches;
+                            fileMatches.clear();
+                            uploadsIndex.SearchForFile(searchTerm, fileMatches);
+                            if(!fileMatches.isEmpty()) {
+                                metrics.RecordSearchAnswered();
+                                //Each match is sent with its size and, if it has already been hashed, its Merkle root
+                                String[] files = fileMatches.toArray(new String[0]);
+                                long[] fileSizes = new long[files.length];
+                                byte[][] fileRoots = new byte[files.length][];
+                                for(int i = 0; i < files.length; i++) {
+                                    File file = uploadsIndex.Resolve(files[i]);
+                                    fileSizes[i] = file == null ? -1 : file.length();
+                                    if(file != null) {
+                                        FileManifest fileManifest = manifestCache.Get(file).getNow(null);
+                                        fileRoots[i] = fileManifest == null ? null : fileManifest.GetRoot();
                                     }
-                                    //Adds on the file search response information
-                                    for(int i = 0; i < files.length(); i++) {
-                                        allBytes[i + address.length() + newBytes.length + 18] = (byte) files.charAt(i);
-                                    }
-                                    //Sends back to the peer that sent the host the original search message
-                                    //This is so that it can propagate back to the requester using the client history
-                                    //information embedded in the message
-                                    SendOne(clientId, new ClientMessage(serverId, (byte) -5, allBytes));
                                 }
+                                //The searcher is told to contact this host at the address the request reached it on
+                                SearchResults result = new SearchResults(LocalAddressOf(clientId), serverSocket.getLocalPort(), serverId, files, fileSizes, fileRoots);
+                                //Sends back to the peer that sent the host the original search message, which sends
+                                //it on along the path the search took
+                                SendOne(clientId, new ClientMessage(serverId, (byte) -5, searchCodec.EncodeReply(clientMessage.message, result)));
                             }
                             break;
                         case -5:
                             //This denotes a successful file search request that is getting sent back to the requester
-                            //Checks to make sure that the first byte is not 00, which would mean that this host is in
-                            //fact the original requester
-                            if(clientMessage.message[0] != 0) {
-                                //If the host is not the original requester then start processing the data
-                                //Get the original length of the peer history and create the send byte array which will
-                                //contain the response information excluding the latest history peer
-                                int originalLength = clientMessage.message[0];
-                                byte[] allBytes = new byte[clientMessage.message.length - 16];
-                                //Sets the first byte to be 16 less (length of a peer ID)
-                                allBytes[0] = (byte) (originalLength - 16);
-                                //Set the new peer history excluding the peer that you are forwarding the request to
-                                for(int i = 1; i < allBytes[0] + 1; i++) {
-                                    allBytes[i] = clientMessage.message[i];
-                                }
-                                //Sets all the rest of the message including the information for the peer that is fulfilling
-                                //the request and the file search information contained within
-                                for(int i = 0; i < allBytes.length - (1 + allBytes[0]); i++) {
-                                    allBytes[i + allBytes[0] + 1] = clientMessage.message[i + originalLength + 1];
-                                }
-                                //Retrieves the ID of the peer that you should be forwarding the message to as bytes
-                                //and creates a UUID from those bytes
-                                byte[] sendToUUIDAsBytes = new byte[16];
-                                for(int i = 0; i < 16; i++) {
-                                    sendToUUIDAsBytes[i] = clientMessage.message[1 + allBytes[0] + i];
+                            if(!SearchCodec.IsSupported(clientMessage.message)) {
+                                break;
+                            }
+                            UUID resultQueryId = SearchCodec.QueryId(clientMessage.message);
+                            Client upstream = seenQueries.Upstream(resultQueryId);
+                            if(upstream != null) {
+                                //If the host is not the original requester then the reply is sent unchanged to the
+                                //peer that the search came from, unless that peer has since left
+                                if(!upstream.clientSocket.isClosed()) {
+                                    upstream.Send((byte) -5, clientMessage.message);
                                 }
-                                UUID sendToUUID = UUIDUtils.AsUUID(sendToUUIDAsBytes);
-                                //Forwards the message to the next peer on the history list
-                                SendOne(sendToUUID, new ClientMessage(serverId, (byte) -5, allBytes));
                             } else {
-                                //If this peer is the original requester of the file search then get the address
-                                //and port information of the fulfiller from the bytes
-                                byte[] addressAndPort = new byte[clientMessage.message[1]];
-                                for(int i = 0; i < addressAndPort.length; i++) {
-                                    addressAndPort[i] = clientMessage.message[i + 2];
-                                }
-                                //Get the peer ID of the client that is fulfilling this request
-                                byte[] peerOriginatorAsBytes = new byte[16];
-                                for(int i = 0; i < 16; i++) {
-                                    peerOriginatorAsBytes[i] = clientMessage.message[i + 2 + addressAndPort.length];
+                                //If this peer is the original requester then the results are added to the search
+                                //with the reply's query ID, unless it has been closed
+                                SearchHandle search;
+                                synchronized(activeSearches) {
+                                    search = activeSearches.get(resultQueryId);
                                 }
-                                //Get the file list that matches the search criteria
-                                byte[] fileList = new byte[clientMessage.message.length - addressAndPort.length - 18];
-                                for(int i = 0; i < fileList.length; i++) {
-                                    fileList[i] = clientMessage.message[i + 18 + addressAndPort.length];
+                                if(search == null) {
+                                    break;
                                 }
-                                //Create a string from the file list and split on the "/" delimiter to get the actual list
-                                String[] allFiles = new String(fileList).split("/");
+                                try {
+                                    SearchResults reply = SearchCodec.DecodeReply(clientMessage.message);
+                                    metrics.RecordSearchReply(System.nanoTime() - search.GetStartedAt(), reply.files.length);
+                                    search.Add(reply);
+                                } catch (IOException ignored) {
 
-                                //Add all of this information to the search results
-                                searchResults.add(new SearchResults(new String(addressAndPort).split(":")[0], Integer.parseInt(new String(addressAndPort).split(":")[1]), UUIDUtils.AsUUID(peerOriginatorAsBytes), allFiles));
+                                }
                             }
                             break;
                     }
@@ -948,19 +1686,11 @@ public class ClientHandler extends Thread {
                     switch (indicator) {
                         //This means that the server is sending this message from itself, so it is the originator
                         case -4:
-                            //Clear previous search results
-                            searchResults.clear();
-                            //Generate the initial peer propagation history with the host ID
-                            byte[] firstBytes = new byte[17 + clientMessage.message.length];
-                            firstBytes[0] = Integer.valueOf(16).byteValue();
-                            byte[] idAsBytes = UUIDUtils.AsBytes(serverId);
-                            System.arraycopy(idAsBytes, 0, firstBytes, 1, idAsBytes.length);
-                            //Set the search criteria
-                            for(int i = 17; i < firstBytes.length; i++) {
-                                firstBytes[i] = clientMessage.message[i - 17];
-                            }
+                            //The message is the request built by Search. The query ID is marked as seen here, with no
+                            //upstream peer, so that copies coming back around a loop in the network are dropped
+                            seenQueries.MarkSeen(SearchCodec.QueryId(clientMessage.message), null);
                             //Propagate the search to your peers
-                            SendAll(new ClientMessage(serverId, indicator, firstBytes));
+                            metrics.RecordSearchStarted(SendAll(clientMessage));
                             break;
                     }
                 }
@@ -0,0 +1,345 @@
+package SocketThreads;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * The only code that writes to a peer's socket once its handshake is over. The dispatcher, the threads serving files
+ * and the search broadcasts all put whole frames on this connection's outbound queue, and a single drain task at a
+ * time takes them off and writes them, so frames can never be torn or interleaved no matter how many threads send.
+ *
+ * Frames are written into a coalescing buffer instead of straight to the socket. The buffer is flushed when the queue
+ * runs dry (the connection has gone idle) or when it fills up (the size threshold), so a burst of small frames such as
+ * search results leaves in a few large writes instead of a few segments per frame. A frame larger than the buffer is
+ * written straight through after whatever was buffered ahead of it.
+ *
+ * The drain task runs on a shared pool and only while there is something to write, so an idle connection costs no
+ * thread at all.
+ *
+ * Queuing a frame never waits, since the dispatcher sends to every peer in turn and one stuck peer must not hold up the
+ * rest. A peer that leaves QUEUE_CAPACITY frames waiting is not reading, and is disconnected rather than dropping frames
+ * from the middle of the stream. Once writing to the socket fails the socket is shut down, so the reader of the peer
+ * sees the end of the connection and the host removes the peer. A file that has been cut short since it was requested
+ * only fails the transfer that is sending it.
+ */
+class ConnectionWriter {
+    //The amount of frame data collected before it is written to the socket even though more frames are waiting
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+    //The number of frames that can wait before the peer is considered stuck and disconnected
+    private static final int QUEUE_CAPACITY = 1024;
+    //How long closing the connection waits for the frames ahead of it to be written
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    //A frame waiting on the outbound queue
+    private static class Frame {
+        static final int MESSAGE = 0;
+        //A file region sent with transferTo, a barrier that the buffered frames ahead of it are flushed before
+        static final int REGION = 1;
+        //Flushes everything ahead of it and closes the stream
+        static final int CLOSE = 2;
+
+        final int kind;
+        final byte indicator;
+        //An optional part of the message that is sent in front of it, used for the requestId of file chunks so the
+        //two do not need to be copied together
+        final byte[] prefix;
+        final byte[] message;
+        FileChannel file;
+        long position;
+        int count;
+        //Completed once a file chunk, region or close frame has been written, so the sending thread can wait for it
+        final CompletableFuture<Void> written;
+
+        Frame(int kind, byte indicator, byte[] prefix, byte[] message) {
+            this(kind, indicator, prefix, message, kind != MESSAGE);
+        }
+
+        Frame(int kind, byte indicator, byte[] prefix, byte[] message, boolean awaited) {
+            this.kind = kind;
+            this.indicator = indicator;
+            this.prefix = prefix;
+            this.message = message;
+            this.written = awaited ? new CompletableFuture<>() : null;
+        }
+    }
+
+    private final LinkedBlockingQueue<Frame> outbound = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    //Whether a drain task is scheduled or running, at most one is at any time
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final Executor drainPool;
+    private final Socket socket;
+    private final SocketChannel socketChannel;
+    private volatile DataOutputStream dataOut;
+    //The stream that waits for the socket to become writable when it is in non-blocking mode
+    private volatile ChannelOutputStream channelOut = null;
+    //Whether anything has been written to the buffer since it was last flushed
+    private boolean unflushed = false;
+    //The error that ended the connection, nothing more is written once it is set
+    private volatile IOException failure = null;
+
+    ConnectionWriter(Socket socket, Executor drainPool) throws IOException {
+        this.dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FLUSH_THRESHOLD));
+        this.socket = socket;
+        this.socketChannel = socket.getChannel();
+        this.drainPool = drainPool;
+    }
+
+    //Moves the writer onto a non-blocking socket, this is done before anything is sent on the connection
+    void UseChannelOutput(ChannelOutputStream channelOut) {
+        this.channelOut = channelOut;
+        this.dataOut = new DataOutputStream(new BufferedOutputStream(channelOut, FLUSH_THRESHOLD));
+    }
+
+    //Whether the connection has failed or been closed, nothing more will be sent on it
+    boolean HasFailed() {
+        return failure != null;
+    }
+
+    //Queues a frame, returns false if the connection has already failed and the frame will never be sent
+    boolean Send(byte indicator, byte[] message) {
+        return Enqueue(new Frame(Frame.MESSAGE, indicator, null, message));
+    }
+
+    //Queues a file chunk frame and waits for it to be written, like a region. The data is copied since the caller
+    //reuses its buffer for the next chunk
+    void SendFileChunk(byte[] requestId, byte[] data, int count) throws IOException {
+        byte[] chunk = new byte[count];
+        System.arraycopy(data, 0, chunk, 0, count);
+        SendAwaited(new Frame(Frame.MESSAGE, (byte) 11, requestId, chunk, true));
+    }
+
+    //Queues a compressed file chunk frame and waits for it to be written, the header holds the request ID and the
+    //length of the data before it was compressed
+    void SendCompressedChunk(byte[] header, byte[] compressed) throws IOException {
+        SendAwaited(new Frame(Frame.MESSAGE, (byte) 16, header, compressed, true));
+    }
+
+    private void SendAwaited(Frame frame) throws IOException {
+        if(!Enqueue(frame)) {
+            throw Failure();
+        }
+        Await(frame.written, Long.MAX_VALUE);
+    }
+
+    //Queues a region of a file to be sent with transferTo and waits for it to be sent, the caller keeps the file open
+    //until then and sending the next region only once this one is out keeps the queue short
+    void SendFileRegion(byte[] requestId, FileChannel file, long position, int count) throws IOException {
+        Frame frame = new Frame(Frame.REGION, (byte) 11, requestId, null);
+        frame.file = file;
+        frame.position = position;
+        frame.count = count;
+        if(!Enqueue(frame)) {
+            throw Failure();
+        }
+        Await(frame.written, Long.MAX_VALUE);
+    }
+
+    //Writes out every frame already queued and closes the stream, if that cannot be done in time the stream is
+    //closed anyway
+    void Close() throws IOException {
+        Frame frame = new Frame(Frame.CLOSE, (byte) 0, null, null);
+        try {
+            if(Enqueue(frame)) {
+                Await(frame.written, CLOSE_TIMEOUT_MILLIS);
+                return;
+            }
+        } catch (IOException ignored) {
+
+        }
+        dataOut.close();
+    }
+
+    private boolean Enqueue(Frame frame) {
+        if(failure != null) {
+            return false;
+        }
+        if(!outbound.offer(frame)) {
+            Fail(new IOException("The peer is not reading the frames sent to it"));
+            return false;
+        }
+        if(draining.compareAndSet(false, true)) {
+            try {
+                drainPool.execute(this::Drain);
+            } catch (RejectedExecutionException e) {
+                //The host is shutting down and its writer threads are gone. The drain role is never given back, so
+                //the failure is what stops later frames from being queued with nobody to write them
+                failure = new IOException("The connection writer has stopped", e);
+                Discard();
+                return false;
+            }
+        }
+        //The connection may have failed while the frame was being queued, in which case nobody will drain it
+        if(failure != null) {
+            Discard();
+            return false;
+        }
+        return true;
+    }
+
+    //Writes frames until the queue is empty, then flushes and gives up the drain role. A frame queued right after the
+    //queue was found empty takes the role back so that it is not left behind
+    private void Drain() {
+        try {
+            while(true) {
+                Frame frame = outbound.poll();
+                if(frame == null) {
+                    //The connection is idle so whatever is buffered goes out now
+                    if(unflushed) {
+                        dataOut.flush();
+                        unflushed = false;
+                    }
+                    draining.set(false);
+                    if(outbound.isEmpty() || !draining.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                Write(frame);
+            }
+        } catch (IOException e) {
+            draining.set(false);
+            Fail(e);
+        }
+    }
+
+    //Ends a connection that cannot be written to any more. The socket is shut down rather than closed so that the
+    //reader of the peer sees the end of the stream, the peer is then removed and closed like any other
+    private void Fail(IOException e) {
+        failure = e;
+        Discard();
+        try {
+            socket.shutdownInput();
+        } catch (IOException ignored) {
+
+        }
+        try {
+            socket.shutdownOutput();
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    private void Write(Frame frame) throws IOException {
+        switch(frame.kind) {
+            case Frame.MESSAGE:
+                int prefixLength = frame.prefix == null ? 0 : frame.prefix.length;
+                try {
+                    dataOut.writeByte(frame.indicator);
+                    dataOut.writeInt(prefixLength + frame.message.length);
+                    if(frame.prefix != null) {
+                        dataOut.write(frame.prefix);
+                    }
+                    dataOut.write(frame.message);
+                } catch (IOException e) {
+                    if(frame.written != null) {
+                        frame.written.completeExceptionally(e);
+                    }
+                    throw e;
+                }
+                unflushed = true;
+                if(frame.written != null) {
+                    frame.written.complete(null);
+                }
+                break;
+            case Frame.REGION:
+                //A file cut short since the transfer started fails only that transfer, nothing of the frame has been
+                //written yet so the connection carries on
+                if(!RegionAvailable(frame)) {
+                    frame.written.completeExceptionally(new IOException("File ended before the requested region was sent"));
+                    break;
+                }
+                //Everything ahead of the region has to reach the socket before the region is transferred past the buffer
+                dataOut.flush();
+                unflushed = false;
+                try {
+                    WriteFileRegion(frame.prefix, frame.file, frame.position, frame.count);
+                } catch (IOException e) {
+                    frame.written.completeExceptionally(e);
+                    throw e;
+                }
+                frame.written.complete(null);
+                break;
+            case Frame.CLOSE:
+                dataOut.close();
+                unflushed = false;
+                frame.written.complete(null);
+                //Nothing queued after the close can be written
+                failure = new IOException("Connection closed");
+                break;
+        }
+    }
+
+    private static boolean RegionAvailable(Frame frame) {
+        try {
+            return frame.file.size() >= frame.position + frame.count;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    //The frame header and requestId are written once and then the file data is transferred straight to the socket
+    //channel, so this can only be used when the socket was opened through a SocketChannel
+    private void WriteFileRegion(byte[] requestId, FileChannel file, long position, int count) throws IOException {
+        //Write the indicator byte, the size of the data that is being sent and the requestId as a single header
+        ByteBuffer header = ByteBuffer.allocate(21);
+        header.put((byte) 11);
+        header.putInt(16 + count);
+        header.put(requestId, 0, 16);
+        header.flip();
+        if(channelOut != null) {
+            channelOut.Write(header);
+        } else {
+            while(header.hasRemaining()) {
+                socketChannel.write(header);
+            }
+        }
+        //Transfer the file data, transferTo may send less than requested so keep going until the region is sent
+        long sent = 0;
+        while(sent < count) {
+            long transferred = file.transferTo(position + sent, count - sent, socketChannel);
+            if(transferred == 0 && channelOut != null && position + sent < file.size()) {
+                //A non-blocking socket whose send buffer is full, wait for it to drain
+                channelOut.AwaitWritable();
+                continue;
+            }
+            if(transferred <= 0) {
+                throw new IOException("File ended before the requested region was sent");
+            }
+            sent += transferred;
+        }
+    }
+
+    //Drops every queued frame after the connection failed, releasing any thread waiting for one of them
+    private void Discard() {
+        Frame frame;
+        while((frame = outbound.poll()) != null) {
+            if(frame.written != null) {
+                frame.written.completeExceptionally(Failure());
+            }
+        }
+    }
+
+    private IOException Failure() {
+        return failure == null ? new IOException("Connection closed") : failure;
+    }
+
+    private static void Await(CompletableFuture<Void> written, long timeoutMillis) throws IOException {
+        try {
+            written.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending", e);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out while sending", e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package SocketThreads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps data transfer connections open once their transfers are over, so that the next file requested from the same
+ * peer goes over a warm connection instead of a new socket, a new handshake and TCP slow start all over again. The pool
+ * is keyed by peer ID and holds at most one connection per peer, every transfer with the peer is multiplexed over it.
+ *
+ * A connection is idle while no download uses it and nothing is being sent on it. The peer that opened a connection
+ * closes it once it has been idle for IDLE_TIMEOUT_MILLIS, and the peer that accepted it only closes it after twice as
+ * long in case the other peer never does, so the two never race to close a connection that is about to be reused.
+ * Beyond MAX_IDLE_CONNECTIONS idle connections, the ones idle the longest are closed first.
+ */
+class DataConnectionPool {
+    //How long a connection opened by this host is kept with nothing to transfer
+    static final long IDLE_TIMEOUT_MILLIS = 30_000;
+    //How long a connection opened by the peer is kept with nothing to transfer
+    private static final long ACCEPTED_IDLE_TIMEOUT_MILLIS = 2 * IDLE_TIMEOUT_MILLIS;
+    //The most idle connections kept open at once
+    static final int MAX_IDLE_CONNECTIONS = 16;
+    //How often the connections are checked, a connection used within the last check is never closed for the cap
+    private static final long CHECK_INTERVAL_MILLIS = 5000;
+
+    private final ClientHandler handler;
+    private final PeerRegistry connections;
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "data-connection-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    DataConnectionPool(ClientHandler handler, PeerRegistry connections) {
+        this.handler = handler;
+        this.connections = connections;
+        reaper.scheduleWithFixedDelay(this::CloseIdle, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    //Returns the open data transfer connection to a peer for another transfer, or null if one has to be opened
+    Client Acquire(UUID clientId) {
+        Client connection = connections.Get(clientId);
+        if(connection == null || connection.clientSocket.isClosed()) {
+            return null;
+        }
+        //Counts as used now so the reaper leaves it alone until the transfer has started
+        connection.MarkActive();
+        return connection;
+    }
+
+    void Close() {
+        reaper.shutdownNow();
+    }
+
+    //Closes the connections that have been idle too long, then the longest idle ones above the cap
+    private void CloseIdle() {
+        long now = System.nanoTime();
+        ArrayList<Client> idleConnections = new ArrayList<>();
+        for(Client connection : connections) {
+            if(handler.IsTransferringWith(connection)) {
+                continue;
+            }
+            long idleMillis = connection.IdleMillis(now);
+            long timeout = connection.openedByThisHost ? IDLE_TIMEOUT_MILLIS : ACCEPTED_IDLE_TIMEOUT_MILLIS;
+            if(idleMillis >= timeout) {
+                Close(connection);
+            } else if(idleMillis >= CHECK_INTERVAL_MILLIS) {
+                idleConnections.add(connection);
+            }
+        }
+        if(idleConnections.size() > MAX_IDLE_CONNECTIONS) {
+            idleConnections.sort(Comparator.comparingLong(connection -> -connection.IdleMillis(now)));
+            for(Client connection : idleConnections.subList(0, idleConnections.size() - MAX_IDLE_CONNECTIONS)) {
+                Close(connection);
+            }
+        }
+    }
+
+    private void Close(Client connection) {
+        try {
+            handler.RemoveDataTransferClientOrigin(connection);
+        } catch (IOException | RuntimeException ignored) {
+
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package SocketThreads;
+
+import java.util.concurrent.atomic.LongAdder;
+
+//Counters describing the work done by the message dispatcher, these are written by the dispatcher thread and read by
+//the command line and the node metrics so they are kept in striped counters
+public class DispatchStats {
+    private final LongAdder suppressedDuplicates = new LongAdder();
+    //The time each message spent waiting in the queue, in microseconds
+    private final Histogram latencyMicros = new Histogram();
+
+    //Records a single dispatched message and the time it spent waiting in the queue
+    public void Record(long latencyNanos) {
+        latencyMicros.Record(latencyNanos / 1000);
+    }
+
+    //Records a copy of a search that was dropped since this host had already handled the search
+    public void RecordSuppressedDuplicate() {
+        suppressedDuplicates.increment();
+    }
+
+    public long GetDispatchedCount() {
+        return latencyMicros.GetCount();
+    }
+
+    public double GetAverageLatencyMillis() {
+        return latencyMicros.GetMean() / 1000.0;
+    }
+
+    public double GetMaxLatencyMillis() {
+        return latencyMicros.GetMax() / 1000.0;
+    }
+
+    public Histogram GetLatencyHistogram() {
+        return latencyMicros;
+    }
+
+    public long GetSuppressedDuplicateCount() {
+        return suppressedDuplicates.sum();
+    }
+}
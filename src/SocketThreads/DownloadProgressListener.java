@@ -0,0 +1,8 @@
+package SocketThreads;
+
+//Told how far the downloads of this host have got, see ClientHandler.SetDownloadProgressListener
+public interface DownloadProgressListener {
+    //The bytes of a file that are in the downloaded file so far out of its size, called at most once per reporting
+    //interval for each download and always once the download has all of its data
+    void Progress(String fileName, long downloadedBytes, long fileSize);
+}
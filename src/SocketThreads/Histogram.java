@@ -0,0 +1,87 @@
+package SocketThreads;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A histogram of non-negative values that any number of threads record into at once without locking or allocating.
+ * Values below SUB_BUCKETS are counted exactly, every power of two above that is split into SUB_BUCKETS buckets of
+ * equal width, so a percentile read from it is at most an eighth above the true value. The largest value recorded is
+ * kept exactly.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //The exact buckets below SUB_BUCKETS and then SUB_BUCKETS buckets for each power of two up to 2^62
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    //Counts a value, negative values are counted as 0
+    public void Record(long value) {
+        value = Math.max(0, value);
+        buckets[BucketOf(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long GetCount() {
+        long count = 0;
+        for(LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public double GetMean() {
+        long count = GetCount();
+        return count == 0 ? 0.0 : sum.sum() / (double) count;
+    }
+
+    public long GetMax() {
+        return max.get();
+    }
+
+    //The value that the given percentage of the recorded values are at or below, as the top of its bucket
+    public long GetPercentile(double percentage) {
+        long count = GetCount();
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentage / 100.0 * count));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i].sum();
+            if(seen >= rank) {
+                return Math.min(UpperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int BucketOf(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        //The bits below the highest one that are dropped, the next SUB_BUCKET_BITS bits pick the bucket
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long UpperBoundOf(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long step = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((step + 1) << shift) - 1;
+    }
+}
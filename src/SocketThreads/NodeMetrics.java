@@ -0,0 +1,382 @@
+package SocketThreads;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/*
+ * The counters and histograms of a host: the frames and bytes sent and received for every indicator, the dispatcher's
+ * queue, the searches this host started, forwarded and answered, the downloads and uploads it ran and its connections.
+ * Everything is recorded into striped counters and the lock free Histogram from whichever thread does the work, without
+ * allocating, so recording is cheap enough to leave on all the time.
+ *
+ * The figures are read as a snapshot of names and values. The same snapshot is exported over JMX as the read only
+ * attributes of SocketThreads:type=NodeMetrics,node=<peer ID>, and can be written to a file every few seconds as a JSON
+ * object that replaces the previous one. The per indicator attributes only appear once a frame of that indicator has
+ * been seen.
+ */
+public class NodeMetrics implements DynamicMBean {
+    //A gap this long between two chunks of a download counts as a stall
+    static final long STALL_NANOS = 500_000_000L;
+
+    private final LongAdder[] framesIn = NewCounters(256);
+    private final LongAdder[] bytesIn = NewCounters(256);
+    private final LongAdder[] framesOut = NewCounters(256);
+    private final LongAdder[] bytesOut = NewCounters(256);
+
+    private final DispatchStats dispatchStats;
+    private final IntSupplier queueDepth;
+
+    private final LongAdder searchesStarted = new LongAdder();
+    private final LongAdder searchesReceived = new LongAdder();
+    private final LongAdder searchesAnswered = new LongAdder();
+    //How many peers every search started or forwarded by this host was sent to
+    private final Histogram searchFanOut = new Histogram();
+    private final LongAdder searchReplies = new LongAdder();
+    private final LongAdder searchHits = new LongAdder();
+    //The time from starting a search to each of its replies, in microseconds
+    private final Histogram searchRoundTripMicros = new Histogram();
+
+    private final LongAdder downloadsStarted = new LongAdder();
+    private final LongAdder downloadsFinished = new LongAdder();
+    private final LongAdder downloadedBytes = new LongAdder();
+    private final Histogram timeToFirstByteMicros = new Histogram();
+    private final Histogram downloadKiBPerSecond = new Histogram();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder stallMillis = new LongAdder();
+    //The file chunks sent compressed, with their size before and after
+    private final LongAdder compressedChunks = new LongAdder();
+    private final LongAdder compressedRawBytes = new LongAdder();
+    private final LongAdder compressedWireBytes = new LongAdder();
+    //The file requests this host served, the ones that waited for an upload slot and the ones turned away since the
+    //upload queue was full
+    private final LongAdder uploadsStarted = new LongAdder();
+    private final LongAdder uploadsFinished = new LongAdder();
+    private final LongAdder uploadsQueued = new LongAdder();
+    private final LongAdder uploadsRejected = new LongAdder();
+    //The time requests waited for an upload slot, in microseconds
+    private final Histogram uploadQueueWaitMicros = new Histogram();
+
+    private final PeerRegistry permanentClients;
+    private final PeerRegistry dataTransferClients;
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+
+    private ObjectName registeredName = null;
+    private ScheduledExecutorService snapshotWriter = null;
+
+    NodeMetrics(DispatchStats dispatchStats, IntSupplier queueDepth, PeerRegistry permanentClients, PeerRegistry dataTransferClients) {
+        this.dispatchStats = dispatchStats;
+        this.queueDepth = queueDepth;
+        this.permanentClients = permanentClients;
+        this.dataTransferClients = dataTransferClients;
+    }
+
+    private static LongAdder[] NewCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for(int i = 0; i < count; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    //The length is that of the frame's message, the 5 bytes of indicator and length in front of it are added here
+    void RecordFrameIn(byte indicator, int length) {
+        framesIn[indicator & 0xFF].increment();
+        bytesIn[indicator & 0xFF].add(length + 5);
+    }
+
+    void RecordFrameOut(byte indicator, int length) {
+        framesOut[indicator & 0xFF].increment();
+        bytesOut[indicator & 0xFF].add(length + 5);
+    }
+
+    void RecordSearchStarted(int fanOut) {
+        searchesStarted.increment();
+        searchFanOut.Record(fanOut);
+    }
+
+    //A search from another peer seen for the first time, and the number of peers it was passed on to
+    void RecordSearchReceived(int fanOut) {
+        searchesReceived.increment();
+        searchFanOut.Record(fanOut);
+    }
+
+    void RecordSearchAnswered() {
+        searchesAnswered.increment();
+    }
+
+    //A reply to a search started by this host
+    void RecordSearchReply(long roundTripNanos, int files) {
+        searchReplies.increment();
+        searchHits.add(files);
+        searchRoundTripMicros.Record(roundTripNanos / 1000);
+    }
+
+    void RecordDownloadStarted() {
+        downloadsStarted.increment();
+    }
+
+    void RecordDownloadedBytes(int length) {
+        downloadedBytes.add(length);
+    }
+
+    void RecordTimeToFirstByte(long nanos) {
+        timeToFirstByteMicros.Record(nanos / 1000);
+    }
+
+    void RecordStall(long nanos) {
+        stalls.increment();
+        stallMillis.add(nanos / 1_000_000);
+    }
+
+    void RecordDownloadFinished(long bytes, long nanos) {
+        downloadsFinished.increment();
+        if(nanos > 0) {
+            downloadKiBPerSecond.Record((long) (bytes / 1024.0 / (nanos / 1e9)));
+        }
+    }
+
+    void RecordCompressedChunk(int rawBytes, int wireBytes) {
+        compressedChunks.increment();
+        compressedRawBytes.add(rawBytes);
+        compressedWireBytes.add(wireBytes);
+    }
+
+    void RecordUploadStarted(long queueWaitNanos) {
+        uploadsStarted.increment();
+        uploadQueueWaitMicros.Record(queueWaitNanos / 1000);
+    }
+
+    void RecordUploadFinished() {
+        uploadsFinished.increment();
+    }
+
+    void RecordUploadQueued() {
+        uploadsQueued.increment();
+    }
+
+    void RecordUploadRejected() {
+        uploadsRejected.increment();
+    }
+
+    void RecordConnectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void RecordConnectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    void RecordConnectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    //The current value of every metric by name, in a fixed order
+    public Map<String, Number> Snapshot() {
+        LinkedHashMap<String, Number> snapshot = new LinkedHashMap<>();
+        long[] totals = new long[4];
+        for(int i = 0; i < 256; i++) {
+            totals[0] += framesIn[i].sum();
+            totals[1] += bytesIn[i].sum();
+            totals[2] += framesOut[i].sum();
+            totals[3] += bytesOut[i].sum();
+        }
+        snapshot.put("frames.in", totals[0]);
+        snapshot.put("bytes.in", totals[1]);
+        snapshot.put("frames.out", totals[2]);
+        snapshot.put("bytes.out", totals[3]);
+        //Indicators are signed bytes on the wire and are named that way
+        for(int indicator = -128; indicator < 128; indicator++) {
+            int i = indicator & 0xFF;
+            if(framesIn[i].sum() > 0) {
+                snapshot.put("frames.in." + indicator, framesIn[i].sum());
+                snapshot.put("bytes.in." + indicator, bytesIn[i].sum());
+            }
+            if(framesOut[i].sum() > 0) {
+                snapshot.put("frames.out." + indicator, framesOut[i].sum());
+                snapshot.put("bytes.out." + indicator, bytesOut[i].sum());
+            }
+        }
+
+        snapshot.put("dispatcher.queueDepth", queueDepth.getAsInt());
+        snapshot.put("dispatcher.dispatched", dispatchStats.GetDispatchedCount());
+        PutMillis(snapshot, "dispatcher.waitMillis", dispatchStats.GetLatencyHistogram());
+        snapshot.put("dispatcher.duplicatesSuppressed", dispatchStats.GetSuppressedDuplicateCount());
+
+        snapshot.put("search.started", searchesStarted.sum());
+        snapshot.put("search.received", searchesReceived.sum());
+        snapshot.put("search.answered", searchesAnswered.sum());
+        snapshot.put("search.fanOut.mean", searchFanOut.GetMean());
+        snapshot.put("search.fanOut.max", searchFanOut.GetMax());
+        snapshot.put("search.replies", searchReplies.sum());
+        snapshot.put("search.hits", searchHits.sum());
+        PutMillis(snapshot, "search.roundTripMillis", searchRoundTripMicros);
+
+        snapshot.put("download.started", downloadsStarted.sum());
+        snapshot.put("download.finished", downloadsFinished.sum());
+        snapshot.put("download.bytes", downloadedBytes.sum());
+        PutMillis(snapshot, "download.timeToFirstByteMillis", timeToFirstByteMicros);
+        snapshot.put("download.kibPerSecond.p10", downloadKiBPerSecond.GetPercentile(10));
+        snapshot.put("download.kibPerSecond.p50", downloadKiBPerSecond.GetPercentile(50));
+        snapshot.put("download.kibPerSecond.p90", downloadKiBPerSecond.GetPercentile(90));
+        snapshot.put("download.stalls", stalls.sum());
+        snapshot.put("download.stallMillis", stallMillis.sum());
+        snapshot.put("compression.chunks", compressedChunks.sum());
+        snapshot.put("compression.rawBytes", compressedRawBytes.sum());
+        snapshot.put("compression.wireBytes", compressedWireBytes.sum());
+        snapshot.put("upload.started", uploadsStarted.sum());
+        snapshot.put("upload.finished", uploadsFinished.sum());
+        snapshot.put("upload.queued", uploadsQueued.sum());
+        snapshot.put("upload.rejected", uploadsRejected.sum());
+        PutMillis(snapshot, "upload.queueWaitMillis", uploadQueueWaitMicros);
+
+        snapshot.put("connections.permanent", permanentClients.Size());
+        snapshot.put("connections.dataTransfer", dataTransferClients.Size());
+        snapshot.put("connections.opened", connectionsOpened.sum());
+        snapshot.put("connections.accepted", connectionsAccepted.sum());
+        snapshot.put("connections.closed", connectionsClosed.sum());
+        return snapshot;
+    }
+
+    //Adds the mean, percentiles and maximum of a histogram of microseconds as milliseconds
+    private static void PutMillis(Map<String, Number> snapshot, String name, Histogram micros) {
+        snapshot.put(name + ".mean", micros.GetMean() / 1000.0);
+        snapshot.put(name + ".p50", micros.GetPercentile(50) / 1000.0);
+        snapshot.put(name + ".p90", micros.GetPercentile(90) / 1000.0);
+        snapshot.put(name + ".p99", micros.GetPercentile(99) / 1000.0);
+        snapshot.put(name + ".max", micros.GetMax() / 1000.0);
+    }
+
+    //Registers the metrics with the platform MBean server under the host's peer ID, a failure only loses the export
+    void Register(UUID serverId) {
+        try {
+            ObjectName name = new ObjectName("SocketThreads:type=NodeMetrics,node=" + serverId);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            System.out.println("Could not export the metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    //Writes a snapshot to the file every interval, replacing the previous one so a reader never sees half a snapshot
+    public synchronized void StartSnapshots(File file, long intervalMillis) {
+        if(snapshotWriter != null) {
+            snapshotWriter.shutdownNow();
+        }
+        snapshotWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotWriter.scheduleWithFixedDelay(() -> {
+            try {
+                WriteSnapshot(file);
+            } catch (IOException e) {
+                System.out.println("Could not write the metrics to " + file + ": " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void WriteSnapshot(File file) throws IOException {
+        File absolute = file.getAbsoluteFile();
+        File temporary = new File(absolute.getParentFile(), absolute.getName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("{\n    \"timestamp\" : " + System.currentTimeMillis());
+            for(Map.Entry<String, Number> entry : Snapshot().entrySet()) {
+                writer.write(",\n    \"" + entry.getKey() + "\" : " + entry.getValue());
+            }
+            writer.write("\n}\n");
+        }
+        Files.move(temporary.toPath(), absolute.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //Stops writing snapshots and removes the JMX export
+    synchronized void Close() {
+        if(snapshotWriter != null) {
+            snapshotWriter.shutdownNow();
+            snapshotWriter = null;
+        }
+        if(registeredName != null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.unregisterMBean(registeredName);
+            } catch (JMException ignored) {
+
+            }
+            registeredName = null;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = Snapshot().get(attribute);
+        if(value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> snapshot = Snapshot();
+        AttributeList list = new AttributeList();
+        for(String attribute : attributes) {
+            Number value = snapshot.get(attribute);
+            if(value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    //Every attribute is read only
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> snapshot = Snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for(Map.Entry<String, Number> entry : snapshot.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false);
+        }
+        return new MBeanInfo(NodeMetrics.class.getName(), "Counters and histograms of a peer", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,93 @@
+package SocketThreads;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The connected peers of one kind (permanent or data transfer) keyed by their peer ID. Peers are added by the accepting
+ * and connecting threads and removed by the dispatcher and by this host shutting down, while every thread looks them
+ * up, so lookups go through a ConcurrentHashMap and never lock.
+ *
+ * Broadcasts iterate an array snapshot of the peers in the order they connected, which is replaced whenever a peer is
+ * added or removed, so iterating never locks and never sees a half made change. Changes are rare next to lookups and
+ * broadcasts so they simply lock the registry.
+ *
+ * Two connections can share a peer ID, for example when two peers open data transfer connections to each other at the
+ * same time. Both are in the snapshot and the ID is looked up to one of them, to the other once the first is removed.
+ */
+class PeerRegistry implements Iterable<Client> {
+    private final ConcurrentHashMap<UUID, Client> peersById = new ConcurrentHashMap<>();
+    private volatile Client[] snapshot = new Client[0];
+
+    //Returns the peer with an ID, or null if no peer with that ID is connected
+    Client Get(UUID clientId) {
+        return peersById.get(clientId);
+    }
+
+    boolean Contains(UUID clientId) {
+        return peersById.containsKey(clientId);
+    }
+
+    //The peer that has been connected the longest, or null if there are none
+    Client First() {
+        Client[] peers = snapshot;
+        return peers.length == 0 ? null : peers[0];
+    }
+
+    int Size() {
+        return snapshot.length;
+    }
+
+    synchronized void Add(Client client) {
+        peersById.put(client.clientId, client);
+        Client[] peers = Arrays.copyOf(snapshot, snapshot.length + 1);
+        peers[peers.length - 1] = client;
+        snapshot = peers;
+    }
+
+    //Adds a peer unless a peer with the same ID is already connected, returns whether it was added
+    synchronized boolean AddIfAbsent(Client client) {
+        if(peersById.containsKey(client.clientId)) {
+            return false;
+        }
+        Add(client);
+        return true;
+    }
+
+    //Removes a connection, returns false if it had already been removed
+    synchronized boolean Remove(Client client) {
+        Client[] peers = snapshot;
+        int index = -1;
+        for(int i = 0; i < peers.length; i++) {
+            if(peers[i] == client) {
+                index = i;
+                break;
+            }
+        }
+        if(index < 0) {
+            return false;
+        }
+        Client[] remaining = new Client[peers.length - 1];
+        System.arraycopy(peers, 0, remaining, 0, index);
+        System.arraycopy(peers, index + 1, remaining, index, remaining.length - index);
+        snapshot = remaining;
+        //Another connection with the same ID takes over the ID
+        if(peersById.remove(client.clientId, client)) {
+            for(Client peer : remaining) {
+                if(peer.clientId.equals(client.clientId)) {
+                    peersById.put(peer.clientId, peer);
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    //Iterates the peers connected when iteration started
+    @Override
+    public Iterator<Client> iterator() {
+        return Arrays.asList(snapshot).iterator();
+    }
+}
@@ -0,0 +1,80 @@
+package SocketThreads;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Creates the threads that spend their lives blocked on peers: the accept loop, the handshakes, the ClientRequest
+ * readers and the threads that stream files. In virtual mode these are virtual threads, which cost a few kilobytes of
+ * heap each instead of a platform thread's stack, so thousands of peers and transfers stay cheap.
+ *
+ * Virtual threads need JDK 21. They are created through reflection so that this still compiles and runs on older
+ * JDKs, where the virtual mode falls back to platform threads with a warning.
+ */
+public class PeerThreads {
+    //Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.unstarted(Runnable), or null before JDK 21
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderUnstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException ignored) {
+
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    private final boolean virtual;
+
+    public PeerThreads(boolean virtual) {
+        if(virtual && !IsVirtualSupported()) {
+            System.out.println("Virtual threads need Java 21 or newer, using platform threads instead");
+            virtual = false;
+        }
+        this.virtual = virtual;
+    }
+
+    public static boolean IsVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    public boolean IsVirtual() {
+        return virtual;
+    }
+
+    //Creates a thread for a task without starting it
+    public Thread NewThread(String name, Runnable task) {
+        if(virtual) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not create a virtual thread", e);
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    public Thread Start(String name, Runnable task) {
+        Thread thread = NewThread(name, task);
+        thread.start();
+        return thread;
+    }
+
+    //A thread factory for executors, the threads are numbered after the prefix
+    public ThreadFactory Factory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> NewThread(prefix + "-" + count.getAndIncrement(), runnable);
+    }
+}
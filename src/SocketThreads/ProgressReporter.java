@@ -0,0 +1,40 @@
+package SocketThreads;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+//Passes the progress of downloads on to the progress listener, at most once per interval for each download so that a
+//fast download does not spend its time reporting. Progress is reported from the I/O, hashing and reader threads
+class ProgressReporter {
+    private final long intervalNanos;
+    private volatile DownloadProgressListener listener = null;
+    //When each download in progress was last reported
+    private final ConcurrentHashMap<String, Long> lastReports = new ConcurrentHashMap<>();
+
+    ProgressReporter(long intervalMillis) {
+        this.intervalNanos = intervalMillis * 1_000_000L;
+    }
+
+    void SetListener(DownloadProgressListener listener) {
+        this.listener = listener;
+    }
+
+    void Report(String fileName, long downloadedBytes, long fileSize) {
+        DownloadProgressListener currentListener = listener;
+        if(currentListener == null || fileSize <= 0) {
+            return;
+        }
+        //The final report is never skipped
+        if(downloadedBytes >= fileSize) {
+            lastReports.remove(fileName);
+            currentListener.Progress(fileName, downloadedBytes, fileSize);
+            return;
+        }
+        long now = System.nanoTime();
+        Long lastReport = lastReports.get(fileName);
+        if(lastReport != null && now - lastReport < intervalNanos) {
+            return;
+        }
+        lastReports.put(fileName, now);
+        currentListener.Progress(fileName, downloadedBytes, fileSize);
+    }
+}
@@ -0,0 +1,56 @@
+package SocketThreads;
+
+import java.util.function.LongSupplier;
+
+/*
+ * A token bucket that paces file data to a rate in bytes per second. The rate is read from a supplier every time the
+ * bucket is used, so a limit changed while files are being sent takes effect on the next frame, and a rate of 0 or less
+ * means no limit at all.
+ *
+ * Frames are never split to fit the bucket. A frame is sent whenever the bucket is not in debt and takes its whole size
+ * from the bucket, which may leave it in debt, and the next frame waits for the debt to be paid back. Over any stretch
+ * of time longer than a frame this sends exactly at the rate, and a frame larger than the bucket never waits forever.
+ * The bucket holds at most BURST_NANOS worth of data, so an idle connection cannot save up more than that.
+ */
+class RateLimiter {
+    //How much unused rate the bucket can hold, in time at the rate
+    private static final long BURST_NANOS = 250_000_000;
+
+    private final LongSupplier bytesPerSecond;
+    //The bytes that can be sent right away, negative while the bucket is in debt
+    private double tokens = 0;
+    private long refilledAt = System.nanoTime();
+
+    RateLimiter(LongSupplier bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    //How long until the bucket is out of debt and the next frame can be sent, 0 if it can be sent now
+    synchronized long DelayNanos() {
+        long rate = bytesPerSecond.getAsLong();
+        Refill(rate);
+        return rate <= 0 || tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+    }
+
+    //Takes count bytes that have been or are about to be sent, returns how long until the bucket is out of debt
+    synchronized long Take(long count) {
+        long rate = bytesPerSecond.getAsLong();
+        Refill(rate);
+        if(rate <= 0) {
+            return 0;
+        }
+        tokens -= count;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+    }
+
+    private void Refill(long rate) {
+        long now = System.nanoTime();
+        if(rate <= 0) {
+            //An unlimited bucket starts from empty once a limit is set
+            tokens = 0;
+        } else {
+            tokens = Math.min(rate * (BURST_NANOS / 1e9), tokens + (now - refilledAt) * (rate / 1e9));
+        }
+        refilledAt = now;
+    }
+}
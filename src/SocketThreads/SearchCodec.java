@@ -0,0 +1,199 @@
+package SocketThreads;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/*
+ * The binary encoding of search requests (-4) and search replies (-5). Every message starts with a version byte so
+ * that the format can change without older peers misreading it, messages of another version are dropped. Lengths and
+ * numbers are unsigned varints (7 bits per byte, low bits first) and names and addresses are UTF-8, so file names may
+ * contain any character.
+ *
+ *   Request: version(1) queryId(16) hops(1) termLength(varint) term
+ *   Reply:   version(1) queryId(16) responderId(16) addressLength(varint) address port(varint) hitCount(varint)
+ *            hitCount * hit
+ *   Hit:     flags(1) nameLength(varint) name [size(varint) if flags & 1] [Merkle root(32) if flags & 2]
+ *
+ * Neither message carries the path it took. Every peer remembers which neighbour a request came from and sends the
+ * replies to it back that way, so the headers stay the same size however far a search travels. The hop count is raised
+ * in place by every peer that forwards the request, so forwarding either message never copies it.
+ */
+class SearchCodec {
+    static final byte VERSION = 2;
+    //The hop count is a single unsigned byte
+    static final int MAX_HOPS = 255;
+    private static final int HAS_SIZE = 1;
+    private static final int HAS_ROOT = 2;
+    private static final int ROOT_LENGTH = 32;
+    private static final int HOPS_OFFSET = 17;
+    private static final int TERM_OFFSET = 18;
+    private static final int REPLY_RESPONDER_OFFSET = 17;
+
+    //Replies are encoded here before being copied out at their exact size, it grows to fit the largest reply
+    private ByteBuffer replyBuffer = ByteBuffer.allocate(4096);
+
+    //Whether a request or reply is in a version of the format this host can read
+    static boolean IsSupported(byte[] message) {
+        return message.length > TERM_OFFSET && message[0] == VERSION;
+    }
+
+    static UUID QueryId(byte[] message) {
+        return GetUUID(ByteBuffer.wrap(message, 1, 16));
+    }
+
+    //The number of peers that have forwarded a request
+    static int Hops(byte[] request) {
+        return request[HOPS_OFFSET] & 0xFF;
+    }
+
+    //Counts one more peer forwarding a request, the request is changed in place
+    static void AddHop(byte[] request) {
+        request[HOPS_OFFSET] = (byte) Math.min(Hops(request) + 1, MAX_HOPS);
+    }
+
+    static byte[] NewRequest(UUID queryId, String searchTerm) {
+        byte[] term = searchTerm.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer request = ByteBuffer.allocate(TERM_OFFSET + VarintLength(term.length) + term.length);
+        request.put(VERSION);
+        PutUUID(request, queryId);
+        request.put((byte) 0);
+        PutVarint(request, term.length);
+        request.put(term);
+        return request.array();
+    }
+
+    static String SearchTerm(byte[] request) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(request);
+            buffer.position(TERM_OFFSET);
+            int length = (int) GetVarint(buffer);
+            if(length > buffer.remaining()) {
+                throw new IOException("Malformed search request");
+            }
+            return new String(request, buffer.position(), length, StandardCharsets.UTF_8);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed search request", e);
+        }
+    }
+
+    //Encodes the reply of a responder to a request
+    byte[] EncodeReply(byte[] request, SearchResults result) {
+        byte[] address = result.address.getBytes(StandardCharsets.UTF_8);
+        byte[][] names = new byte[result.files.length][];
+        int size = REPLY_RESPONDER_OFFSET + 16 + 5 + address.length + 5 + 5;
+        for(int i = 0; i < names.length; i++) {
+            names[i] = result.files[i].getBytes(StandardCharsets.UTF_8);
+            size += 1 + 5 + names[i].length + 10 + ROOT_LENGTH;
+        }
+        if(replyBuffer.capacity() < size) {
+            replyBuffer = ByteBuffer.allocate(Math.max(size, replyBuffer.capacity() * 2));
+        }
+        ByteBuffer reply = replyBuffer;
+        reply.clear();
+        reply.put(request, 0, REPLY_RESPONDER_OFFSET);
+        PutUUID(reply, result.clientId);
+        PutVarint(reply, address.length);
+        reply.put(address);
+        PutVarint(reply, result.port);
+        PutVarint(reply, names.length);
+        for(int i = 0; i < names.length; i++) {
+            long fileSize = result.fileSizes == null ? -1 : result.fileSizes[i];
+            byte[] root = result.fileRoots == null ? null : result.fileRoots[i];
+            reply.put((byte) ((fileSize >= 0 ? HAS_SIZE : 0) | (root != null ? HAS_ROOT : 0)));
+            PutVarint(reply, names[i].length);
+            reply.put(names[i]);
+            if(fileSize >= 0) {
+                PutVarint(reply, fileSize);
+            }
+            if(root != null) {
+                reply.put(root, 0, ROOT_LENGTH);
+            }
+        }
+        byte[] encoded = new byte[reply.position()];
+        reply.flip();
+        reply.get(encoded);
+        return encoded;
+    }
+
+    //Decodes the responder and the hits of a reply that has reached the searcher
+    static SearchResults DecodeReply(byte[] reply) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(reply);
+            buffer.position(REPLY_RESPONDER_OFFSET);
+            UUID responderId = GetUUID(buffer);
+            String address = GetString(buffer);
+            int port = (int) GetVarint(buffer);
+            int hitCount = (int) GetVarint(buffer);
+            //Every hit takes at least two bytes, which bounds the arrays allocated for a malformed count
+            if(hitCount < 0 || hitCount > buffer.remaining() / 2) {
+                throw new IOException("Malformed search reply");
+            }
+            String[] files = new String[hitCount];
+            long[] fileSizes = new long[hitCount];
+            byte[][] fileRoots = new byte[hitCount][];
+            for(int i = 0; i < hitCount; i++) {
+                int flags = buffer.get();
+                files[i] = GetString(buffer);
+                fileSizes[i] = (flags & HAS_SIZE) != 0 ? GetVarint(buffer) : -1;
+                if((flags & HAS_ROOT) != 0) {
+                    fileRoots[i] = new byte[ROOT_LENGTH];
+                    buffer.get(fileRoots[i]);
+                }
+            }
+            return new SearchResults(address, port, responderId, files, fileSizes, fileRoots);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed search reply", e);
+        }
+    }
+
+    private static String GetString(ByteBuffer buffer) throws IOException {
+        int length = (int) GetVarint(buffer);
+        if(length < 0 || length > buffer.remaining()) {
+            throw new IOException("Malformed search reply");
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static UUID GetUUID(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static void PutUUID(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    static void PutVarint(ByteBuffer buffer, long value) {
+        while((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long GetVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int VarintLength(long value) {
+        int length = 1;
+        while((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,112 @@
+package SocketThreads;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.function.Consumer;
+
+/*
+ * A search started from this host, returned by ClientHandler.Search. The results of the search are collected here as
+ * the -5 responses carrying its query ID arrive, so any number of searches can run at the same time without one
+ * overwriting the results of another.
+ *
+ * Results can be read at any time with GetResults, or received as they arrive by subscribing to GetPublisher or with
+ * OnResult. A file offered by the same peer more than once is only kept the first time, and once the search holds
+ * maxFiles files any further results are dropped. Results are never handed to subscribers on the thread that received
+ * them, and a subscriber that falls too far behind misses results instead of holding up the dispatcher, they are still
+ * in GetResults.
+ */
+public class SearchHandle {
+    private final UUID queryId;
+    private final String searchTerm;
+    private final int maxFiles;
+    //When the search was started, from System.nanoTime
+    private final long startedAt = System.nanoTime();
+    //The results in the order they arrived, only ever appended to so that the indexes of a listing stay valid
+    private final ArrayList<SearchResults> results = new ArrayList<>();
+    //The peer ID and file name of every file already in the results
+    private final HashSet<String> seenFiles = new HashSet<>();
+    private final SubmissionPublisher<SearchResults> publisher = new SubmissionPublisher<>();
+
+    SearchHandle(UUID queryId, String searchTerm, int maxFiles) {
+        this.queryId = queryId;
+        this.searchTerm = searchTerm;
+        this.maxFiles = maxFiles;
+    }
+
+    public UUID GetQueryId() {
+        return queryId;
+    }
+
+    public String GetSearchTerm() {
+        return searchTerm;
+    }
+
+    public long GetStartedAt() {
+        return startedAt;
+    }
+
+    //A copy of the results received so far
+    public synchronized ArrayList<SearchResults> GetResults() {
+        return new ArrayList<>(results);
+    }
+
+    //Publishes every result that arrives after subscribing, completes once the search is closed
+    public Flow.Publisher<SearchResults> GetPublisher() {
+        return publisher;
+    }
+
+    //Calls the consumer with every result that arrives from now on, the returned future completes once the search
+    //is closed
+    public CompletableFuture<Void> OnResult(Consumer<SearchResults> consumer) {
+        return publisher.consume(consumer);
+    }
+
+    public boolean IsClosed() {
+        return publisher.isClosed();
+    }
+
+    //Stops collecting results, later responses to the search are dropped
+    public void Close() {
+        publisher.close();
+    }
+
+    //Adds the files of a response that are not in the results yet, returns false if nothing was added
+    synchronized boolean Add(SearchResults response) {
+        if(publisher.isClosed()) {
+            return false;
+        }
+        int fileCount = seenFiles.size();
+        //The indexes in the response of the files that are new
+        int[] newFiles = new int[response.files.length];
+        int newCount = 0;
+        for(int i = 0; i < response.files.length && fileCount + newCount < maxFiles; i++) {
+            if(seenFiles.add(response.clientId + "\0" + response.files[i])) {
+                newFiles[newCount++] = i;
+            }
+        }
+        if(newCount == 0) {
+            return false;
+        }
+        String[] files = new String[newCount];
+        long[] fileSizes = response.fileSizes == null ? null : new long[newCount];
+        byte[][] fileRoots = response.fileRoots == null ? null : new byte[newCount][];
+        for(int i = 0; i < newCount; i++) {
+            files[i] = response.files[newFiles[i]];
+            if(fileSizes != null) {
+                fileSizes[i] = response.fileSizes[newFiles[i]];
+            }
+            if(fileRoots != null) {
+                fileRoots[i] = response.fileRoots[newFiles[i]];
+            }
+        }
+        SearchResults result = new SearchResults(response.address, response.port, response.clientId, files, fileSizes, fileRoots);
+        results.add(result);
+        //A subscriber whose buffer is full does not get this result rather than making the dispatcher wait for it
+        publisher.offer(result, (subscriber, dropped) -> false);
+        return true;
+    }
+}
@@ -3,18 +3,27 @@ package SocketThreads;
 import java.util.UUID;
 
 //A simple class that holds the SearchResults information including address of fulfiller, port of fulfiller, ID of
-//fulfiller, and the files that match the search criteria that the fulfiller is in possession of
+//fulfiller, and the files that match the search criteria that the fulfiller is in possession of, along with the size
+//and Merkle root of each file when the fulfiller sent them (-1 and null otherwise)
 public class SearchResults {
     public String address;
     public int port;
     public UUID clientId;
     public String[] files;
+    public long[] fileSizes;
+    public byte[][] fileRoots;
 
     //Initialized with all the required information, which is all of it
     public SearchResults(String address, int port, UUID clientId, String[] files) {
+        this(address, port, clientId, files, null, null);
+    }
+
+    public SearchResults(String address, int port, UUID clientId, String[] files, long[] fileSizes, byte[][] fileRoots) {
         this.address = address;
         this.port = port;
         this.clientId =  clientId;
         this.files = files;
+        this.fileSizes = fileSizes;
+        this.fileRoots = fileRoots;
     }
 }
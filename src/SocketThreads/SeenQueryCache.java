@@ -0,0 +1,77 @@
+package SocketThreads;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+//Remembers the IDs of the searches this host has already handled so that copies of a search arriving over other paths
+//through the network are dropped instead of being searched for and forwarded again. It also remembers the neighbour
+//each search first came from, which is the reverse path that the replies to the search are sent back along. An ID is
+//forgotten once it has not been seen for the time to live, or when the cache is full and it is the least recently
+//seen. Only the dispatcher thread uses it
+class SeenQueryCache {
+    //When a query was last seen and the peer it first came from, null for the searches started by this host
+    private static class SeenQuery {
+        long lastSeen;
+        final Client upstream;
+
+        SeenQuery(long lastSeen, Client upstream) {
+            this.lastSeen = lastSeen;
+            this.upstream = upstream;
+        }
+    }
+
+    private final int capacity;
+    private final long timeToLiveNanos;
+    //Query IDs in order of when they were last seen, oldest first
+    private final LinkedHashMap<UUID, SeenQuery> seenQueries;
+
+    SeenQueryCache(int capacity, long timeToLiveMillis) {
+        this.capacity = capacity;
+        this.timeToLiveNanos = timeToLiveMillis * 1_000_000L;
+        this.seenQueries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, SeenQuery> eldest) {
+                return size() > SeenQueryCache.this.capacity;
+            }
+        };
+    }
+
+    //Records a query ID and the peer it came from, returns true the first time it is seen and false for every copy
+    //seen within the time to live, whose upstream peer is ignored
+    boolean MarkSeen(UUID queryId, Client upstream) {
+        SeenQuery seenQuery = Touch(queryId);
+        if(seenQuery != null) {
+            return false;
+        }
+        seenQueries.put(queryId, new SeenQuery(System.nanoTime(), upstream));
+        return true;
+    }
+
+    //Returns the peer that a query first came from, or null if it was started by this host or has been forgotten.
+    //Every reply routed this way keeps the query from expiring
+    Client Upstream(UUID queryId) {
+        SeenQuery seenQuery = Touch(queryId);
+        return seenQuery == null ? null : seenQuery.upstream;
+    }
+
+    //Looks up a query that is still remembered and marks it as seen now
+    private SeenQuery Touch(UUID queryId) {
+        long now = System.nanoTime();
+        ExpireOlderThan(now - timeToLiveNanos);
+        SeenQuery seenQuery = seenQueries.get(queryId);
+        if(seenQuery != null) {
+            seenQuery.lastSeen = now;
+        }
+        return seenQuery;
+    }
+
+    //The entries are in order of when they were last seen, so expiry stops at the first one that is still fresh
+    private void ExpireOlderThan(long cutoff) {
+        Iterator<SeenQuery> queries = seenQueries.values().iterator();
+        while(queries.hasNext() && queries.next().lastSeen - cutoff < 0) {
+            queries.remove();
+        }
+    }
+}
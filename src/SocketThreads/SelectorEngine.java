@@ -0,0 +1,305 @@
+package SocketThreads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The alternative to running a ClientRequest thread for every connected peer. Once a peer has finished the blocking
+ * handshake its socket is switched to non-blocking mode and registered with one of a small number of event loops, which
+ * each wait on a Selector for any of their sockets to become readable and decode the indicator/length/payload frames
+ * from a pooled read buffer. File chunks are collected in a pooled buffer of their own and written to disk from it.
+ *
+ * File requests (-6 and -7) are decoded here like any other frame, the upload queue opens and sends the file on
+ * threads of its own so the event loops are free for every other peer.
+ *
+ * A peer whose file data has gone over a download limit is taken out of the selection until the limit lets it be read
+ * again, rather than sleeping on the event loop, so the other peers of the loop are still read meanwhile. The same is
+ * done when a frame cannot be handed over without waiting, because the dispatcher queue is full or every staging
+ * buffer of a download is waiting for the disk: the peer holds the frame and is not read again until it has been
+ * handed over, which is tried every HELD_RETRY_NANOS. An event loop never waits on anything but its selector.
+ */
+public class SelectorEngine {
+    //The size of the read buffer that every registered peer borrows from the pool
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    //The size of an indicator byte and a message length
+    private static final int FRAME_HEADER_SIZE = 5;
+    //How often a peer holding a frame tries again to hand it over
+    private static final long HELD_RETRY_NANOS = 1_000_000;
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    //The pool that read buffers and inbound file chunks are taken from
+    private final BufferPool bufferPool;
+
+    public SelectorEngine(int eventLoopCount, BufferPool bufferPool) throws IOException {
+        this.bufferPool = bufferPool;
+        eventLoops = new EventLoop[eventLoopCount];
+        for(int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(this, "event-loop-" + i);
+            eventLoops[i].start();
+        }
+    }
+
+    //Hands a peer whose socket is already in non-blocking mode to the next event loop
+    public void Register(Client client) {
+        eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)].Register(client);
+    }
+
+    //Stops every event loop
+    public void Close() {
+        for(EventLoop eventLoop : eventLoops) {
+            eventLoop.Close();
+        }
+    }
+
+    //The read state of one registered peer, a frame may arrive over any number of reads
+    static class Connection {
+        final Client client;
+        final SocketChannel channel;
+        final ByteBuffer readBuffer;
+        byte indicator;
+        //The message of the frame currently being read, null while waiting for the next frame header
+        byte[] message = null;
+        int messageFilled = 0;
+        //The pooled buffer of the file chunk currently being read, null unless an 11 or 16 frame is being read
+        ByteBuffer chunk = null;
+        SelectionKey key = null;
+        //When a peer paused by a download limit or by a held frame can be read again, from System.nanoTime
+        long resumeAt = 0;
+
+        Connection(Client client, ByteBuffer readBuffer) {
+            this.client = client;
+            this.channel = client.clientSocket.getChannel();
+            this.readBuffer = readBuffer;
+        }
+    }
+
+    //A thread that waits on a Selector for its peers' sockets to become readable
+    static class EventLoop extends Thread {
+        private final SelectorEngine engine;
+        private final Selector selector;
+        //Peers registered from other threads, picked up by this thread the next time it wakes up
+        private final ConcurrentLinkedQueue<Client> pendingClients = new ConcurrentLinkedQueue<>();
+        //The peers that are not being read until a download limit lets them or their held frame has been handed over,
+        //soonest first, only used by this thread
+        private final PriorityQueue<Connection> pausedConnections = new PriorityQueue<>((a, b) -> Long.compare(a.resumeAt, b.resumeAt));
+        private volatile boolean running = true;
+
+        EventLoop(SelectorEngine engine, String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.engine = engine;
+            this.selector = Selector.open();
+        }
+
+        void Register(Client client) {
+            pendingClients.offer(client);
+            selector.wakeup();
+        }
+
+        void Close() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while(running) {
+                    if(pausedConnections.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, (pausedConnections.peek().resumeAt - System.nanoTime()) / 1_000_000));
+                    }
+                    ResumeConnections();
+                    Client client;
+                    while((client = pendingClients.poll()) != null) {
+                        try {
+                            Connection connection = new Connection(client, engine.bufferPool.Acquire(READ_BUFFER_SIZE));
+                            connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                        } catch (IOException e) {
+                            client.ConnectionEnded();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if(key.isReadable() && !Read(connection)) {
+                                EndConnection(key, connection);
+                            } else if(key.isValid()) {
+                                PauseConnection(connection);
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            EndConnection(key, connection);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException ignored) {
+
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+
+                }
+            }
+        }
+
+        //Reads whatever the peer has sent and dispatches every complete frame, returns false once the peer has closed
+        //the connection
+        private boolean Read(Connection connection) throws IOException {
+            ByteBuffer buffer = connection.readBuffer;
+            //The rest of a file chunk is read straight into its pooled buffer once the read buffer has been used up
+            if(connection.chunk != null && buffer.position() == 0) {
+                int read = connection.channel.read(connection.chunk);
+                if(read < 0) {
+                    return false;
+                }
+                connection.client.TakeDownload(read);
+                if(connection.chunk.hasRemaining() || !FinishChunk(connection)) {
+                    return true;
+                }
+            }
+            int read = connection.channel.read(buffer);
+            if(read < 0) {
+                return false;
+            }
+            Dispatch(connection);
+            return true;
+        }
+
+        //Dispatches every complete frame in the read buffer, stopping early once the peer holds a frame it could not
+        //hand over
+        private void Dispatch(Connection connection) throws IOException {
+            ByteBuffer buffer = connection.readBuffer;
+            buffer.flip();
+            while(true) {
+                if(connection.message == null && connection.chunk == null) {
+                    //Wait for the whole frame header before starting on the message
+                    if(buffer.remaining() < FRAME_HEADER_SIZE) {
+                        break;
+                    }
+                    connection.indicator = buffer.get();
+                    int dataLength = buffer.getInt();
+                    if(dataLength < 0) {
+                        throw new IOException("Malformed frame length " + dataLength);
+                    }
+                    if(connection.indicator == (byte) 11 && dataLength >= 16 || connection.indicator == (byte) 16 && dataLength >= 20) {
+                        connection.chunk = engine.bufferPool.Acquire(dataLength);
+                    } else {
+                        connection.message = new byte[dataLength];
+                        connection.messageFilled = 0;
+                    }
+                }
+                if(connection.chunk != null) {
+                    ByteBuffer chunk = connection.chunk;
+                    int count = Math.min(buffer.remaining(), chunk.remaining());
+                    ByteBuffer part = buffer.duplicate();
+                    part.limit(part.position() + count);
+                    chunk.put(part);
+                    buffer.position(buffer.position() + count);
+                    connection.client.TakeDownload(count);
+                    if(chunk.hasRemaining() || !FinishChunk(connection)) {
+                        break;
+                    }
+                    continue;
+                }
+                int count = Math.min(buffer.remaining(), connection.message.length - connection.messageFilled);
+                buffer.get(connection.message, connection.messageFilled, count);
+                connection.messageFilled += count;
+                if(connection.messageFilled < connection.message.length) {
+                    break;
+                }
+                byte[] message = connection.message;
+                connection.message = null;
+                if(!connection.client.ReceiveFrame(connection.indicator, message, false)) {
+                    break;
+                }
+            }
+            buffer.compact();
+        }
+
+        //Hands a complete file chunk to the peer, which stages it for the disk before returning, and returns its buffer.
+        //Returns false if the peer is holding the chunk, the buffer of an 11 frame is then returned by the peer once it
+        //is staged. A compressed chunk is held inflated in a buffer of the peer's own, so its buffer is always returned
+        private boolean FinishChunk(Connection connection) {
+            ByteBuffer chunk = connection.chunk;
+            connection.chunk = null;
+            boolean compressed = connection.indicator == (byte) 16;
+            boolean delivered = false;
+            try {
+                chunk.flip();
+                delivered = compressed ? connection.client.ReceiveCompressedChunk(chunk, false) : connection.client.ReceiveFileChunk(chunk, false);
+                return delivered;
+            } finally {
+                if(compressed || delivered || !connection.client.IsHolding()) {
+                    engine.bufferPool.Release(chunk);
+                }
+            }
+        }
+
+        //Stops selecting a peer for reading while its file data is over a download limit or it is holding a frame,
+        //returns true if it was paused
+        private boolean PauseConnection(Connection connection) {
+            long pause = connection.client.IsHolding() ? HELD_RETRY_NANOS : connection.client.ReadPauseNanos();
+            if(pause <= 0) {
+                return false;
+            }
+            connection.key.interestOps(0);
+            connection.resumeAt = System.nanoTime() + pause;
+            pausedConnections.add(connection);
+            return true;
+        }
+
+        //Selects the paused peers for reading again once their pause is over. A peer holding a frame first hands it
+        //over and dispatches the frames that were read behind it, and stays paused if it cannot
+        private void ResumeConnections() {
+            long now = System.nanoTime();
+            while(!pausedConnections.isEmpty() && pausedConnections.peek().resumeAt - now <= 0) {
+                Connection connection = pausedConnections.poll();
+                SelectionKey key = connection.key;
+                if(!key.isValid()) {
+                    continue;
+                }
+                try {
+                    if(connection.client.IsHolding()) {
+                        if(connection.client.DeliverHeld()) {
+                            Dispatch(connection);
+                        }
+                    }
+                    if(!PauseConnection(connection)) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    EndConnection(key, connection);
+                }
+            }
+        }
+
+        //Unregisters a peer whose connection has ended and returns its read buffer to the pool
+        private void EndConnection(SelectionKey key, Connection connection) {
+            key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {
+
+            }
+            engine.bufferPool.Release(connection.readBuffer);
+            if(connection.chunk != null) {
+                engine.bufferPool.Release(connection.chunk);
+            }
+            connection.client.ConnectionEnded();
+        }
+    }
+}
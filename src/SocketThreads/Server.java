@@ -1,23 +1,35 @@
 package SocketThreads;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.UUID;
 
 import SocketThreads.Client;
 
-public class Server extends Thread {
+//The accept loop of this host, run on a platform or virtual thread depending on the startup options
+public class Server implements Runnable {
     private ServerSocket serverSocket;
     private final UUID serverId = UUID.randomUUID();
     private ClientHandler handler;
+    private SelectorEngine selectorEngine = null;
+    private PeerThreads peerThreads = new PeerThreads(false);
 
     public Server(int port) {
+        this(port, new ServerOptions());
+    }
+
+    public Server(int port, ServerOptions options) {
         //Server constructor for opening a client that does not initally connect to any other
         try {
-            serverSocket = new ServerSocket(port);
-            handler = new ClientHandler(serverId, serverSocket, "127.0.0.1", port);
+            serverSocket = OpenServerSocket(port, options.socketBufferSize);
+            handler = new ClientHandler(serverId, serverSocket, "127.0.0.1", port, new File(options.uploadsDirectory), new File(options.downloadsDirectory));
+            StartEngine(options);
             handler.start();
         } catch (IOException e) {
             System.out.println("Could not open the server socket for incoming requests!");
@@ -25,31 +37,92 @@ public class Server extends Thread {
     }
 
     public Server(int port, String connect_ip, int connect_port) {
+        this(port, connect_ip, connect_port, new ServerOptions());
+    }
+
+    public Server(int port, String connect_ip, int connect_port, ServerOptions options) {
         //Server constructor that opens the client socket and initially connects to another client immediately
         try {
-            serverSocket = new ServerSocket(port);
-            handler = new ClientHandler(serverId, serverSocket, "127.0.0.1", port);
+            serverSocket = OpenServerSocket(port, options.socketBufferSize);
+            handler = new ClientHandler(serverId, serverSocket, "127.0.0.1", port, new File(options.uploadsDirectory), new File(options.downloadsDirectory));
+            StartEngine(options);
             handler.start();
-            handler.ConnectToClient(new Socket(connect_ip, connect_port), true, true);
+            handler.ConnectToClient(ClientHandler.OpenSocket(new InetSocketAddress(connect_ip, connect_port), options.socketBufferSize), true, true);
         } catch (IOException e) {
             System.out.println("Could not open the server socket for incoming requests!");
         }
     }
 
+    //Starts the event loops when peers should be read by the selector engine rather than a thread each. Connections
+    //are still accepted and their handshakes are still done by this thread before they are handed to an event loop
+    private void StartEngine(ServerOptions options) throws IOException {
+        peerThreads = new PeerThreads(options.threads == ServerOptions.Threads.VIRTUAL);
+        handler.SetPeerThreads(peerThreads);
+        handler.SetSyncDownloads(options.syncDownloads);
+        handler.SetSocketBufferSize(options.socketBufferSize);
+        handler.SetCompressionEnabled(options.compression);
+        handler.SetUploadQueue(options.uploadSlots, options.smallestUploadsFirst);
+        BandwidthShaper shaper = handler.GetBandwidthShaper();
+        shaper.SetUploadLimit(options.uploadLimit * 1024L);
+        shaper.SetDownloadLimit(options.downloadLimit * 1024L);
+        shaper.SetPeerLimit(options.peerLimit * 1024L);
+        shaper.SetTransferLimit(options.transferLimit * 1024L);
+        if(options.metricsFile != null) {
+            handler.GetMetrics().StartSnapshots(new File(options.metricsFile), options.metricsIntervalSeconds * 1000L);
+        }
+        if(options.engine == ServerOptions.Engine.NIO) {
+            selectorEngine = new SelectorEngine(options.eventLoops, handler.GetBufferPool());
+            handler.SetSelectorEngine(selectorEngine);
+        }
+    }
+
+    //Starts accepting incoming connections
+    public void start() {
+        peerThreads.Start("server-accept", this);
+    }
+
+    //The server socket is opened through a channel so that accepted sockets are backed by a SocketChannel, which
+    //allows file data to be sent with FileChannel.transferTo. The receive buffer size is set before binding so that
+    //accepted sockets start with it and can advertise a window that large from the handshake on
+    private static ServerSocket OpenServerSocket(int port, int bufferSize) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        if(bufferSize > 0) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+        }
+        serverChannel.bind(new InetSocketAddress(port));
+        return serverChannel.socket();
+    }
+
     public ClientHandler GetClientHandler() {
         return handler;
     }
 
     public void CloseServer() throws IOException {
         handler.RemoveAllClients();
+        handler.Shutdown();
         serverSocket.close();
+        if(selectorEngine != null) {
+            selectorEngine.Close();
+        }
     }
 
     //The event loop for accepting incoming connections to the server
+    //With virtual threads every handshake gets a thread of its own, so a slow peer cannot hold up the ones behind it
     public void run() {
         while(!serverSocket.isClosed()) {
             try {
-                handler.AddClient(serverSocket.accept());
+                Socket accepted = serverSocket.accept();
+                if(peerThreads.IsVirtual()) {
+                    peerThreads.Start("handshake", () -> {
+                        try {
+                            handler.AddClient(accepted);
+                        } catch (IOException e) {
+                            System.out.println("Could not accept incoming connection!");
+                        }
+                    });
+                } else {
+                    handler.AddClient(accepted);
+                }
             } catch (IOException e) {
                 System.out.println("Could not accept incoming connection!");
             }
@@ -0,0 +1,177 @@
+package SocketThreads;
+
+import java.util.List;
+
+//The startup options of a peer that are given on the command line as --name=value before or after the port arguments
+public class ServerOptions {
+    //How connected peers are read from
+    public enum Engine {
+        //Every peer gets its own ClientRequest thread blocking on its socket
+        THREAD,
+        //Peers are read by a few event loops waiting on Selectors
+        NIO
+    }
+
+    //The kind of thread that blocks on peers when the thread engine is used, and that streams files in either engine
+    public enum Threads {
+        PLATFORM,
+        //Virtual threads, needs Java 21 or newer
+        VIRTUAL
+    }
+
+    public Engine engine = Engine.THREAD;
+    public Threads threads = Threads.PLATFORM;
+    //The number of event loops used by the NIO engine
+    public int eventLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    //Whether a finished download is forced to the disk before it is reported as finished
+    public boolean syncDownloads = false;
+    //The directory of the files shared with other peers and the directory downloads are saved to
+    public String uploadsDirectory = "uploads";
+    public String downloadsDirectory = "downloads";
+    //The file a snapshot of the node metrics is written to, none is written when this is null, and how often
+    public String metricsFile = null;
+    public int metricsIntervalSeconds = 10;
+    //The send and receive buffer size of peer sockets, 0 leaves them to the operating system's automatic tuning
+    public int socketBufferSize = 0;
+    //Whether file chunks are compressed for peers that can take them
+    public boolean compression = true;
+    //The limits on file data in KiB per second, 0 is no limit. The upload and download limits are on all peers together
+    //and the peer and transfer limits are on each connection and each file sent
+    public int uploadLimit = 0;
+    public int downloadLimit = 0;
+    public int peerLimit = 0;
+    public int transferLimit = 0;
+    //The number of files sent to peers at once, and whether queued requests are served smallest first instead of in
+    //the order they arrived
+    public int uploadSlots = UploadQueue.DEFAULT_SLOTS;
+    public boolean smallestUploadsFirst = false;
+
+    //Reads every --name=value option, an unknown option or a bad value throws an IllegalArgumentException with a
+    //message that can be shown to the user
+    public static ServerOptions Parse(List<String> options) {
+        ServerOptions serverOptions = new ServerOptions();
+        for(String option : options) {
+            int separator = option.indexOf('=');
+            String name = separator < 0 ? option.substring(2) : option.substring(2, separator);
+            String value = separator < 0 ? "" : option.substring(separator + 1);
+            switch(name) {
+                case "engine":
+                    if(value.equalsIgnoreCase("thread")) {
+                        serverOptions.engine = Engine.THREAD;
+                    } else if(value.equalsIgnoreCase("nio")) {
+                        serverOptions.engine = Engine.NIO;
+                    } else {
+                        throw new IllegalArgumentException("--engine must be thread or nio");
+                    }
+                    break;
+                case "threads":
+                    if(value.equalsIgnoreCase("platform")) {
+                        serverOptions.threads = Threads.PLATFORM;
+                    } else if(value.equalsIgnoreCase("virtual")) {
+                        serverOptions.threads = Threads.VIRTUAL;
+                    } else {
+                        throw new IllegalArgumentException("--threads must be platform or virtual");
+                    }
+                    break;
+                case "event-loops":
+                    serverOptions.eventLoops = ParsePositive(name, value);
+                    break;
+                case "sync-downloads":
+                    if(value.isEmpty() || value.equalsIgnoreCase("true")) {
+                        serverOptions.syncDownloads = true;
+                    } else if(value.equalsIgnoreCase("false")) {
+                        serverOptions.syncDownloads = false;
+                    } else {
+                        throw new IllegalArgumentException("--sync-downloads must be true or false");
+                    }
+                    break;
+                case "uploads":
+                    serverOptions.uploadsDirectory = ParseDirectory(name, value);
+                    break;
+                case "downloads":
+                    serverOptions.downloadsDirectory = ParseDirectory(name, value);
+                    break;
+                case "metrics-file":
+                    if(value.isEmpty()) {
+                        throw new IllegalArgumentException("--metrics-file must be a file");
+                    }
+                    serverOptions.metricsFile = value;
+                    break;
+                case "metrics-interval":
+                    serverOptions.metricsIntervalSeconds = ParsePositive(name, value);
+                    break;
+                case "compression":
+                    if(value.equalsIgnoreCase("on")) {
+                        serverOptions.compression = true;
+                    } else if(value.equalsIgnoreCase("off")) {
+                        serverOptions.compression = false;
+                    } else {
+                        throw new IllegalArgumentException("--compression must be on or off");
+                    }
+                    break;
+                case "socket-buffer":
+                    serverOptions.socketBufferSize = ParsePositive(name, value);
+                    break;
+                case "upload-slots":
+                    serverOptions.uploadSlots = ParsePositive(name, value);
+                    break;
+                case "upload-order":
+                    if(value.equalsIgnoreCase("fifo")) {
+                        serverOptions.smallestUploadsFirst = false;
+                    } else if(value.equalsIgnoreCase("smallest")) {
+                        serverOptions.smallestUploadsFirst = true;
+                    } else {
+                        throw new IllegalArgumentException("--upload-order must be fifo or smallest");
+                    }
+                    break;
+                case "upload-limit":
+                    serverOptions.uploadLimit = ParseLimit("--" + name, value);
+                    break;
+                case "download-limit":
+                    serverOptions.downloadLimit = ParseLimit("--" + name, value);
+                    break;
+                case "peer-limit":
+                    serverOptions.peerLimit = ParseLimit("--" + name, value);
+                    break;
+                case "transfer-limit":
+                    serverOptions.transferLimit = ParseLimit("--" + name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        return serverOptions;
+    }
+
+    private static String ParseDirectory(String name, String value) {
+        if(value.isEmpty()) {
+            throw new IllegalArgumentException("--" + name + " must be a directory");
+        }
+        return value;
+    }
+
+    //Reads a limit in KiB per second, where 0 means no limit
+    public static int ParseLimit(String name, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if(parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException ignored) {
+
+        }
+        throw new IllegalArgumentException(name + " must be a number of KiB per second, 0 for no limit");
+    }
+
+    private static int ParsePositive(String name, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if(parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException ignored) {
+
+        }
+        throw new IllegalArgumentException("--" + name + " must be a positive number");
+    }
+}
@@ -0,0 +1,549 @@
+package SocketThreads;
+
+import IOThreads.DownloadJournal;
+import IOThreads.FileManifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ * A download of a single file from every peer that has it. The file is split into fixed size pieces which are
+ * requested from the sources with ranged file requests (indicator -7). Every source keeps a small number of pieces in
+ * flight and is handed a new piece whenever one finishes, so faster sources end up serving most of the file. Sources
+ * that are much slower than the fastest one are only allowed a single piece at a time, and once no pieces are left to
+ * hand out idle sources duplicate the oldest outstanding piece so that a stalled peer cannot hold up the end of the
+ * download. Data is written to the file with positional writes as it arrives so pieces can complete in any order.
+ * Every piece is checked against the manifest sent with the first response before it counts as complete, a corrupt
+ * piece is requested again on its own and a source that sends too many corrupt pieces is dropped. Verified pieces are
+ * recorded in the download's journal so a failed or interrupted swarm only fetches the pieces it is missing when it is
+ * resumed.
+ *
+ * Once one copy of a piece has arrived in full the other requests for it are cancelled and their data is dropped, and
+ * the piece is not checked until the writes already under way for it are done, so nothing is written over a piece
+ * while it is being checked or after it has been checked.
+ */
+public class SwarmDownload {
+    //Pieces line up with the pieces of the manifest so that each one can be checked on its own
+    public static final int PIECE_SIZE = FileManifest.PIECE_SIZE;
+    private static final int MAX_IN_FLIGHT_PER_SOURCE = 2;
+    //A source delivering less than this fraction of the fastest source's throughput is limited to one piece at a time
+    private static final double SLOW_SOURCE_RATIO = 0.25;
+    //The number of completed pieces between flushing the file and saving the journal
+    private static final int CHECKPOINT_PIECES = 8;
+    //A source is dropped after sending this many pieces that do not match the manifest
+    private static final int MAX_CORRUPT_PIECES_PER_SOURCE = 2;
+
+    //A ranged request for a single piece of the file sent to a single source
+    private static class PieceRequest {
+        public final UUID requestId;
+        public final int pieceIndex;
+        public final long offset;
+        public final SwarmSource source;
+        public final long startedAt = System.nanoTime();
+        public long received = 0;
+
+        public PieceRequest(UUID requestId, int pieceIndex, long offset, SwarmSource source) {
+            this.requestId = requestId;
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+            this.source = source;
+        }
+    }
+
+    private final ClientHandler handler;
+    private final String fileName;
+    private final File file;
+    private final FileChannel fileOut;
+    private final DownloadJournal journal;
+    private final List<SwarmSource> sources;
+    //Times the download for the node metrics
+    private final TransferTimer timer;
+    private final HashMap<UUID, PieceRequest> inFlight = new HashMap<>();
+    private final ArrayDeque<Integer> pendingPieces = new ArrayDeque<>();
+    //Pieces that have been received and are being checked, and received pieces still waiting for the manifest
+    private final HashSet<Integer> verifyingPieces = new HashSet<>();
+    private final ArrayList<PieceRequest> unverifiedPieces = new ArrayList<>();
+    //The number of chunks being written for each piece, and received pieces whose check waits for those writes
+    private final HashMap<Integer, Integer> activeWrites = new HashMap<>();
+    private final HashMap<Integer, PieceRequest> waitingForWrites = new HashMap<>();
+    private FileManifest manifest = null;
+    //The request that asked for the manifest, only one request at a time asks for it
+    private UUID manifestRequestId = null;
+    private boolean[] completedPieces = null;
+    private int completedCount = 0;
+    private int uncheckpointedPieces = 0;
+    private long fileSize = -1;
+    //Set once a peer has told us the size, a resumed download plans its pieces with the size from the journal before that
+    private boolean sizeConfirmed = false;
+    private boolean finished = false;
+
+    public SwarmDownload(ClientHandler handler, DownloadJournal journal, List<SwarmSource> sources) throws IOException {
+        this.handler = handler;
+        this.journal = journal;
+        this.fileName = journal.GetRemoteFileName();
+        this.file = journal.GetTarget();
+        this.sources = sources;
+        timer = new TransferTimer(handler.GetMetrics());
+        fileOut = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    //The file this download is written to
+    public File GetFile() {
+        return file;
+    }
+
+    //Connects to every source and requests the first piece, the rest of the pieces are scheduled once the file size is
+    //known from the first response. A resumed download already knows the size and schedules the missing pieces at once
+    public void Start() {
+        ArrayList<DownloadJournal.Source> journalSources = new ArrayList<>();
+        for(SwarmSource source : sources) {
+            try {
+                source.connection = handler.ConnectForTransfer(source.clientId, source.address, source.port);
+            } catch (IOException ignored) {
+            }
+            if(source.connection == null) {
+                source.failed = true;
+            } else {
+                source.clientId = source.connection.clientId;
+            }
+            journalSources.add(new DownloadJournal.Source(source.clientId, source.address, source.port));
+        }
+        journal.SetSources(journalSources);
+        SaveJournal();
+        synchronized(this) {
+            if(journal.GetFileSize() >= 0) {
+                Plan(journal.GetFileSize());
+                return;
+            }
+            for(SwarmSource source : sources) {
+                if(!source.failed) {
+                    RequestPiece(source, 0);
+                    return;
+                }
+            }
+            Fail("No peers holding the file could be reached");
+        }
+    }
+
+    //Called with the manifest from a 9 response, pieces that arrived before it are checked now
+    public synchronized void SetManifest(FileManifest manifest) {
+        if(this.manifest != null || manifest.GetPieceSize() != PIECE_SIZE) {
+            return;
+        }
+        this.manifest = manifest;
+        for(PieceRequest piece : unverifiedPieces) {
+            StartVerification(piece);
+        }
+        unverifiedPieces.clear();
+    }
+
+    //Called for the 9 response to any piece request. The first one tells us how many pieces the file has, or for a
+    //resumed download whether the file is still the one the journal was written for
+    public synchronized void SizeKnown(long size) {
+        if(sizeConfirmed || finished) {
+            return;
+        }
+        sizeConfirmed = true;
+        if(fileSize == size) {
+            return;
+        }
+        if(fileSize >= 0) {
+            //The pieces were planned for the old file and none of them has finished since this is the first response,
+            //so they are all cancelled and planned again for the new one
+            ForgetRequests();
+            for(SwarmSource source : sources) {
+                source.inFlight = 0;
+            }
+            manifestRequestId = null;
+            pendingPieces.clear();
+            completedCount = 0;
+        }
+        Plan(size);
+    }
+
+    //Works out which pieces of a file of the given size are still missing and starts requesting them
+    private void Plan(long size) {
+        fileSize = size;
+        if(!journal.SetFileSize(size)) {
+            System.out.println("The file changed on the peers since it was partially downloaded, starting over...");
+            //None of the old file is kept, the journal no longer claims any of it
+            try {
+                fileOut.truncate(0);
+            } catch (IOException e) {
+                Fail("The partial download could not be cleared");
+                return;
+            }
+        }
+        int pieceCount = (int) ((size + PIECE_SIZE - 1) / PIECE_SIZE);
+        completedPieces = new boolean[pieceCount];
+        //Pieces already in the journal are complete, and any piece that has already been requested is left alone
+        for(int i = 0; i < pieceCount; i++) {
+            if(journal.IsWritten((long) i * PIECE_SIZE, (long) i * PIECE_SIZE + PieceLength(i))) {
+                completedPieces[i] = true;
+                completedCount++;
+            } else if(RequestCount(i) == 0) {
+                pendingPieces.add(i);
+            }
+        }
+        System.out.println("Downloading " + fileName + " (" + size + " bytes) in " + (pieceCount - completedCount) + " pieces from " + LiveSourceCount() + " peers...");
+        if(completedCount == pieceCount && inFlight.isEmpty()) {
+            Finish();
+            return;
+        }
+        Schedule();
+    }
+
+    //Writes a chunk of a piece into its place in the file, the data is written before this returns and never kept
+    public void ReceiveChunk(UUID requestId, ByteBuffer data) {
+        int length = data.remaining();
+        long position;
+        int pieceIndex;
+        synchronized(this) {
+            PieceRequest piece = inFlight.get(requestId);
+            //Chunks for pieces that are complete or being checked, which may come from a duplicate request that was
+            //not cancelled in time, are dropped
+            if(piece == null || finished || verifyingPieces.contains(piece.pieceIndex) || (completedPieces != null && completedPieces[piece.pieceIndex])) {
+                return;
+            }
+            pieceIndex = piece.pieceIndex;
+            position = piece.offset + piece.received;
+            piece.received += length;
+            activeWrites.merge(pieceIndex, 1, Integer::sum);
+        }
+        timer.Received(length);
+        try {
+            while(data.hasRemaining()) {
+                position += fileOut.write(data, position);
+            }
+        } catch (IOException e) {
+            synchronized(this) {
+                Fail("Could not write to " + file.getName());
+            }
+        } finally {
+            WriteDone(pieceIndex);
+        }
+    }
+
+    //Counts a chunk of a piece as written, a check of the piece that was waiting for its writes starts once the last
+    //one is done
+    private synchronized void WriteDone(int pieceIndex) {
+        if(activeWrites.merge(pieceIndex, -1, Integer::sum) > 0) {
+            return;
+        }
+        activeWrites.remove(pieceIndex);
+        PieceRequest waiting = waitingForWrites.remove(pieceIndex);
+        if(waiting != null && !finished) {
+            VerifyPiece(waiting);
+        }
+    }
+
+    //Called for the 12 response of a piece request once all of its data has been sent
+    public synchronized void PieceFinished(UUID requestId) {
+        PieceRequest piece = RemoveRequest(requestId);
+        if(piece == null || finished || completedPieces == null) {
+            return;
+        }
+        if(completedPieces.length == 0) {
+            //An empty file has no pieces to wait for
+            Finish();
+            return;
+        }
+        if(!completedPieces[piece.pieceIndex] && !verifyingPieces.contains(piece.pieceIndex)) {
+            if(piece.received >= PieceLength(piece.pieceIndex)) {
+                //The piece only counts once it matches the manifest, and the duplicates of it still being sent are
+                //cancelled so they cannot write over it
+                verifyingPieces.add(piece.pieceIndex);
+                CancelDuplicates(piece.pieceIndex);
+                if(manifest == null) {
+                    unverifiedPieces.add(piece);
+                } else {
+                    StartVerification(piece);
+                }
+            } else {
+                //The source sent less than the piece, so it is handed to someone else
+                piece.source.failed = true;
+                Requeue(piece.pieceIndex);
+            }
+        }
+        Schedule();
+    }
+
+    //Checks a received piece once no chunk of it is being written any more
+    private void StartVerification(PieceRequest piece) {
+        if(activeWrites.containsKey(piece.pieceIndex)) {
+            waitingForWrites.put(piece.pieceIndex, piece);
+        } else {
+            VerifyPiece(piece);
+        }
+    }
+
+    //Cancels every request still in flight for a piece that has been received in full from one source
+    private void CancelDuplicates(int pieceIndex) {
+        for(PieceRequest duplicate : new ArrayList<>(inFlight.values())) {
+            if(duplicate.pieceIndex == pieceIndex) {
+                RemoveRequest(duplicate.requestId);
+                handler.SendCancelRequest(duplicate.source.clientId, duplicate.requestId);
+            }
+        }
+    }
+
+    //Checks a received piece against the manifest on the hashing threads
+    private void VerifyPiece(PieceRequest piece) {
+        handler.VerifyPiece(fileOut, manifest, piece.pieceIndex).thenAccept(valid -> PieceVerified(piece, valid));
+    }
+
+    //Called on a hashing thread once a piece has been checked
+    private synchronized void PieceVerified(PieceRequest piece, boolean valid) {
+        verifyingPieces.remove(piece.pieceIndex);
+        if(finished) {
+            return;
+        }
+        if(valid) {
+            completedPieces[piece.pieceIndex] = true;
+            completedCount++;
+            journal.MarkWritten(piece.offset, piece.offset + PieceLength(piece.pieceIndex));
+            if(++uncheckpointedPieces >= CHECKPOINT_PIECES) {
+                SaveJournal();
+            }
+            piece.source.bytesReceived += piece.received;
+            piece.source.busyNanos += System.nanoTime() - piece.startedAt;
+            handler.ReportProgress(fileName, Math.min((long) completedCount * PIECE_SIZE, fileSize), fileSize);
+        } else {
+            //Only the corrupt piece is fetched again, and a source that keeps sending corrupt data is dropped
+            System.out.println("Piece " + piece.pieceIndex + " of " + fileName + " from " + piece.source.address + ":" + piece.source.port + " failed verification, requesting it again");
+            if(++piece.source.corruptPieces >= MAX_CORRUPT_PIECES_PER_SOURCE) {
+                piece.source.failed = true;
+            }
+            Requeue(piece.pieceIndex);
+        }
+        if(completedCount == completedPieces.length) {
+            Finish();
+        } else {
+            Schedule();
+        }
+    }
+
+    //Called for the 10 response of a piece request, the source is no longer used for this download
+    public synchronized void PieceFailed(UUID requestId) {
+        PieceRequest piece = RemoveRequest(requestId);
+        if(piece == null || finished) {
+            return;
+        }
+        piece.source.failed = true;
+        Requeue(piece.pieceIndex);
+        Schedule();
+    }
+
+    //A peer has disconnected so any pieces that it was serving are handed to the other sources
+    public synchronized void SourceDisconnected(UUID clientId) {
+        if(finished) {
+            return;
+        }
+        for(PieceRequest piece : new ArrayList<>(inFlight.values())) {
+            if(piece.source.clientId.equals(clientId)) {
+                RemoveRequest(piece.requestId);
+                Requeue(piece.pieceIndex);
+            }
+        }
+        for(SwarmSource source : sources) {
+            if(source.clientId.equals(clientId)) {
+                source.failed = true;
+            }
+        }
+        Schedule();
+    }
+
+    //Hands out pending pieces to every source with spare capacity, fastest sources first
+    private void Schedule() {
+        if(completedPieces == null || finished) {
+            return;
+        }
+        ArrayList<SwarmSource> bySpeed = new ArrayList<>(sources);
+        bySpeed.sort((a, b) -> Double.compare(b.GetThroughput(), a.GetThroughput()));
+        double fastest = bySpeed.get(0).GetThroughput();
+
+        boolean assigned = true;
+        while(assigned) {
+            assigned = false;
+            for(SwarmSource source : bySpeed) {
+                int limit = source.GetThroughput() < fastest * SLOW_SOURCE_RATIO ? 1 : MAX_IN_FLIGHT_PER_SOURCE;
+                if(source.failed || source.inFlight >= limit) {
+                    continue;
+                }
+                Integer next = pendingPieces.poll();
+                if(next == null) {
+                    next = EndgamePiece(source);
+                }
+                if(next != null) {
+                    RequestPiece(source, next);
+                    assigned = true;
+                }
+            }
+        }
+
+        //If the request carrying the manifest was lost and every other piece is already out, received pieces would
+        //wait for the manifest forever, so one of them is requested again to get it
+        if(manifest == null && manifestRequestId == null && !unverifiedPieces.isEmpty()) {
+            for(SwarmSource source : bySpeed) {
+                if(!source.failed) {
+                    RequestPiece(source, unverifiedPieces.get(0).pieceIndex);
+                    break;
+                }
+            }
+        }
+
+        if(LiveSourceCount() == 0) {
+            Fail("Every peer holding the file failed or disconnected");
+        }
+    }
+
+    //Finds the oldest outstanding piece held by another source that nobody else is already duplicating
+    private Integer EndgamePiece(SwarmSource source) {
+        PieceRequest oldest = null;
+        for(PieceRequest piece : inFlight.values()) {
+            if(piece.source != source && RequestCount(piece.pieceIndex) == 1 && (oldest == null || piece.startedAt < oldest.startedAt)) {
+                oldest = piece;
+            }
+        }
+        return oldest == null ? null : oldest.pieceIndex;
+    }
+
+    //Sends a ranged request for a piece to a source
+    private void RequestPiece(SwarmSource source, int pieceIndex) {
+        UUID requestId = UUID.randomUUID();
+        long offset = (long) pieceIndex * PIECE_SIZE;
+        inFlight.put(requestId, new PieceRequest(requestId, pieceIndex, offset, source));
+        source.inFlight++;
+        //The first request asks for the manifest, later ones only ask again if that request was lost
+        boolean includeManifest = manifest == null && manifestRequestId == null;
+        if(includeManifest) {
+            manifestRequestId = requestId;
+        }
+        handler.RegisterPieceRequest(requestId, this);
+        handler.SendRangeRequest(source.clientId, requestId, fileName, offset, PIECE_SIZE, includeManifest);
+    }
+
+    private PieceRequest RemoveRequest(UUID requestId) {
+        PieceRequest piece = inFlight.remove(requestId);
+        handler.ForgetPieceRequest(requestId);
+        if(requestId.equals(manifestRequestId)) {
+            manifestRequestId = null;
+        }
+        if(piece != null) {
+            piece.source.inFlight--;
+        }
+        return piece;
+    }
+
+    //Puts a piece back on the pending list unless it is complete or still being fetched from another source
+    private void Requeue(int pieceIndex) {
+        if(completedPieces != null && !completedPieces[pieceIndex] && !verifyingPieces.contains(pieceIndex) && RequestCount(pieceIndex) == 0) {
+            pendingPieces.addFirst(pieceIndex);
+        } else if(completedPieces == null && RequestCount(pieceIndex) == 0) {
+            //The file size is still unknown so the first piece is retried on the next working source
+            for(SwarmSource source : sources) {
+                if(!source.failed) {
+                    RequestPiece(source, pieceIndex);
+                    return;
+                }
+            }
+        }
+    }
+
+    private int RequestCount(int pieceIndex) {
+        int count = 0;
+        for(PieceRequest piece : inFlight.values()) {
+            if(piece.pieceIndex == pieceIndex) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long PieceLength(int pieceIndex) {
+        return Math.min(PIECE_SIZE, fileSize - (long) pieceIndex * PIECE_SIZE);
+    }
+
+    private int LiveSourceCount() {
+        int count = 0;
+        for(SwarmSource source : sources) {
+            if(!source.failed) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //Closes the file and tells the sources that the transfer is over so that data transfer connections are released
+    private void Finish() {
+        finished = true;
+        ForgetRequests();
+        CloseFile();
+        journal.Delete();
+        ReleaseSources();
+        timer.Finished();
+        System.out.println("Finished downloading " + file.getName() + " from " + sources.size() + " peers");
+    }
+
+    private void Fail(String reason) {
+        if(finished) {
+            return;
+        }
+        finished = true;
+        ForgetRequests();
+        SaveJournal();
+        CloseFile();
+        ReleaseSources();
+        System.out.println("Download of " + fileName + " failed: " + reason + ", enter \"resume\" to continue it");
+    }
+
+    //Cancels the requests still in flight once the download has ended, so their sources stop sending and their data is
+    //dropped as it arrives
+    private void ForgetRequests() {
+        for(PieceRequest piece : inFlight.values()) {
+            handler.ForgetPieceRequest(piece.requestId);
+            handler.SendCancelRequest(piece.source.clientId, piece.requestId);
+        }
+        inFlight.clear();
+    }
+
+    //Flushes the completed pieces to disk before the journal claims them
+    private void SaveJournal() {
+        try {
+            fileOut.force(false);
+            journal.Save();
+        } catch (IOException ignored) {
+        }
+        uncheckpointedPieces = 0;
+    }
+
+    private void CloseFile() {
+        try {
+            fileOut.close();
+        } catch (IOException ignored) {
+        }
+        handler.SwarmEnded(this);
+    }
+
+    //Whether pieces are requested over a connection
+    boolean UsesConnection(Client connection) {
+        for(SwarmSource source : sources) {
+            if(source.connection == connection) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ReleaseSources() {
+        for(SwarmSource source : sources) {
+            if(source.connection != null) {
+                handler.NotifyTransferFinished(source.clientId);
+            }
+        }
+    }
+}
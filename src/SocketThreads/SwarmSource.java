@@ -0,0 +1,31 @@
+package SocketThreads;
+
+import java.util.UUID;
+
+//A peer that returned the requested file in a search and can serve pieces of it
+class SwarmSource {
+    //The peer ID is replaced with the one from the connection since journals may hold IDs from before a peer restarted
+    public UUID clientId;
+    public final String address;
+    public final int port;
+    //The connection the piece requests are sent over, either a permanent or a data transfer connection
+    public Client connection = null;
+    public boolean failed = false;
+    public int inFlight = 0;
+    //The amount of data received and the time spent receiving it for the pieces this source has completed
+    public long bytesReceived = 0;
+    public long busyNanos = 0;
+    //The number of pieces from this source that did not match the manifest
+    public int corruptPieces = 0;
+
+    public SwarmSource(UUID clientId, String address, int port) {
+        this.clientId = clientId;
+        this.address = address;
+        this.port = port;
+    }
+
+    //The rate in bytes per second at which this source has delivered completed pieces
+    public double GetThroughput() {
+        return busyNanos == 0 ? 0.0 : bytesReceived * 1_000_000_000.0 / busyNanos;
+    }
+}
@@ -0,0 +1,354 @@
+package SocketThreads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Sends the file data of every request a peer has made over one connection. Each request is a transfer, and the
+ * transfers take turns in deficit round robin order: every turn a transfer is given a frame's worth of bytes to spend
+ * and sends frames while it can pay for them, then goes to the back of the line. A small file therefore finishes after
+ * a few turns instead of waiting behind a large one, and all the transfers to a peer share its connection evenly.
+ *
+ * The frames are sent one at a time by a pump task that waits for each frame to be written before sending the next,
+ * so at most one frame of file data is ever queued on the connection and control frames sent while transfers run only
+ * wait behind that one frame. The pump runs on a shared pool and only while there is a transfer to send, like the
+ * connection writer's drain task.
+ *
+ * The size of the frames follows the speed of the connection. The time each frame takes to be written gives the rate
+ * the connection is taking data at, and the frames are sized so that one takes about TARGET_FRAME_NANOS at that rate:
+ * on a slow link they shrink to MIN_FRAME_SIZE so a control frame never waits long behind one, and on a fast link they
+ * grow to MAX_FRAME_SIZE so the cost of every frame and write call is spread over megabytes of data. Frame sizes are
+ * powers of two less the request ID, so that every frame fills one buffer of the receiving peer's pool exactly.
+ *
+ * When the peer takes compressed chunks and the file looks compressible, each frame is read into the heap and deflated
+ * on the chunk compressor's pool before it is sent as a 16 frame, compressed data cannot be sent with transferTo.
+ *
+ * Every frame waits for the bandwidth shaper's upload limits: the limit on all uploads, the one on this connection and
+ * the one on the transfer. A transfer that has to wait goes back to the front of the line and the pump stops, and the
+ * shaping timer starts it again once the wait is over, so a limited connection does not hold a pool thread while it
+ * waits. Frames are kept to a quarter of a second at the tightest limit so the data goes out evenly.
+ */
+class TransferScheduler {
+    //The least and the most file data sent in a single frame, and the amount sent in the first frames of a connection
+    static final int MIN_FRAME_SIZE = 16 * 1024 - 16;
+    static final int MAX_FRAME_SIZE = 4 * 1024 * 1024 - 16;
+    static final int INITIAL_FRAME_SIZE = 256 * 1024 - 16;
+    //How long writing a frame should take at the rate the connection is taking data
+    private static final long TARGET_FRAME_NANOS = 5_000_000;
+
+    //The part of a file still to be sent for a request
+    private static class Transfer {
+        final byte[] requestId;
+        final FileChannel file;
+        final long end;
+        final boolean zeroCopy;
+        final RateLimiter limiter;
+        //Run once the transfer has ended, however it ended
+        final Runnable onDone;
+        long position;
+        //Whether the frames are compressed, null until a sample of the file has been tried
+        Boolean compress;
+        //The bytes this transfer may still send before its turn ends
+        long deficit = 0;
+        //Whether the transfer's turn was cut short by a limit, the turn carries on with its budget once it can
+        boolean throttled = false;
+        //Set once the peer no longer wants the data, the pump drops the transfer after the frame it is sending
+        volatile boolean cancelled = false;
+
+        Transfer(byte[] requestId, FileChannel file, long position, long end, boolean zeroCopy, boolean mayCompress, RateLimiter limiter, Runnable onDone) {
+            this.requestId = requestId;
+            this.file = file;
+            this.position = position;
+            this.end = end;
+            this.zeroCopy = zeroCopy;
+            this.compress = mayCompress ? null : false;
+            this.limiter = limiter;
+            this.onDone = onDone;
+        }
+    }
+
+    private final Client client;
+    private final Executor pumpPool;
+    private final ChunkCompressor compressor;
+    private final BandwidthShaper shaper;
+    private final ScheduledExecutorService shapingTimer;
+    //The upload limit of this connection
+    private final RateLimiter peerLimiter;
+    //The transfers waiting for their turn, guarded by this
+    private final ArrayDeque<Transfer> transfers = new ArrayDeque<>();
+    //Whether a pump task is scheduled or running and the transfer whose turn it is, guarded by this
+    private boolean pumping = false;
+    private Transfer current = null;
+    private boolean closed = false;
+    //The heap buffer file data is read into when it is not sent with transferTo, only used by the pump
+    private byte[] copyBuffer = null;
+    //The amount of file data sent in a frame and a transfer's budget for a turn, only used by the pump
+    private int frameSize = INITIAL_FRAME_SIZE;
+    //The smoothed rate frames have been written at in bytes per second, 0 until the first frame is written
+    private double bytesPerSecond = 0;
+    //How long the last transfer whose turn was cut short has to wait for a limit, only used by the pump
+    private long throttleNanos = 0;
+
+    TransferScheduler(Client client, Executor pumpPool, ChunkCompressor compressor, BandwidthShaper shaper, ScheduledExecutorService shapingTimer) {
+        this.client = client;
+        this.pumpPool = pumpPool;
+        this.compressor = compressor;
+        this.shaper = shaper;
+        this.shapingTimer = shapingTimer;
+        this.peerLimiter = shaper.NewPeerLimiter();
+    }
+
+    //Queues the range of a file from position to end to be sent for a request, the file is closed once the range has
+    //been sent and then onDone is run. The 12 frame that completes the request is sent after the last of its data. The
+    //frames are compressed if mayCompress is set and a sample of the file shrinks
+    void Submit(byte[] requestId, FileChannel file, long position, long end, boolean zeroCopy, boolean mayCompress, Runnable onDone) {
+        Transfer transfer = new Transfer(requestId, file, position, end, zeroCopy, mayCompress, shaper.NewTransferLimiter(), onDone);
+        synchronized(this) {
+            if(!closed) {
+                transfers.add(transfer);
+                if(pumping) {
+                    return;
+                }
+                pumping = true;
+                try {
+                    pumpPool.execute(this::Pump);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    //This host is shutting down
+                    transfers.remove(transfer);
+                    pumping = false;
+                }
+            }
+        }
+        CloseFile(transfer);
+    }
+
+    //Whether any transfer is still being sent
+    synchronized boolean IsBusy() {
+        return pumping;
+    }
+
+    //Drops the transfer of a request the peer has cancelled without sending the 12 frame, returns false if no transfer
+    //of that request is running. A transfer whose turn it is stops after the frame being sent
+    boolean Cancel(byte[] requestId) {
+        Transfer cancelled = null;
+        synchronized(this) {
+            for(Transfer transfer : transfers) {
+                if(Arrays.equals(transfer.requestId, requestId)) {
+                    cancelled = transfer;
+                    break;
+                }
+            }
+            if(cancelled == null) {
+                if(current != null && Arrays.equals(current.requestId, requestId)) {
+                    current.cancelled = true;
+                    return true;
+                }
+                return false;
+            }
+            transfers.remove(cancelled);
+        }
+        CloseFile(cancelled);
+        return true;
+    }
+
+    //Drops every transfer that has not finished, called once the connection is closed
+    void Close() {
+        ArrayDeque<Transfer> dropped;
+        synchronized(this) {
+            closed = true;
+            dropped = new ArrayDeque<>(transfers);
+            transfers.clear();
+        }
+        for(Transfer transfer : dropped) {
+            CloseFile(transfer);
+        }
+    }
+
+    //Gives every transfer its turn until there are none left
+    private void Pump() {
+        while(true) {
+            Transfer transfer;
+            synchronized(this) {
+                transfer = transfers.poll();
+                current = transfer;
+                if(transfer == null) {
+                    pumping = false;
+                    return;
+                }
+            }
+            boolean finished;
+            throttleNanos = 0;
+            try {
+                finished = Turn(transfer);
+            } catch (IOException e) {
+                CloseFile(transfer);
+                if(client.CanSend()) {
+                    //Only this transfer failed since its file could not be read, the peer is told and the other
+                    //transfers carry on
+                    client.Send((byte) 10, transfer.requestId);
+                } else {
+                    //The connection has failed, so none of the transfers can be sent
+                    Close();
+                }
+                continue;
+            }
+            if(transfer.cancelled) {
+                CloseFile(transfer);
+                continue;
+            }
+            if(finished) {
+                //Send the indicator and requestId for a completed file request upload
+                client.Send((byte) 12, transfer.requestId);
+                CloseFile(transfer);
+                continue;
+            }
+            boolean waiting = false;
+            synchronized(this) {
+                if(!closed && throttleNanos == 0) {
+                    transfers.add(transfer);
+                    continue;
+                }
+                if(!closed) {
+                    //The transfer waits at the front of the line, and the pump stays marked as running while it waits
+                    //so new transfers do not start another one
+                    transfers.addFirst(transfer);
+                    waiting = true;
+                }
+            }
+            if(waiting) {
+                ResumeAfter(throttleNanos);
+                return;
+            }
+            CloseFile(transfer);
+        }
+    }
+
+    //Starts the pump again once a limit lets the next frame be sent
+    private void ResumeAfter(long delayNanos) {
+        try {
+            shapingTimer.schedule(() -> {
+                try {
+                    pumpPool.execute(this::Pump);
+                } catch (RejectedExecutionException e) {
+                    Abandon();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            Abandon();
+        }
+    }
+
+    //Drops every transfer since this host is shutting down and the pump cannot be started again
+    private void Abandon() {
+        synchronized(this) {
+            pumping = false;
+        }
+        Close();
+    }
+
+    //Sends the frames a transfer can pay for this turn, returns true once all of its data has been sent
+    private boolean Turn(Transfer transfer) throws IOException {
+        if(transfer.compress == null) {
+            transfer.compress = transfer.position < transfer.end && compressor.Probe(transfer.file, transfer.position, transfer.end).join();
+        }
+        if(transfer.throttled) {
+            transfer.throttled = false;
+        } else {
+            transfer.deficit += frameSize;
+        }
+        while(transfer.position < transfer.end && !transfer.cancelled) {
+            int count = (int) Math.min(ShapedFrameSize(), transfer.end - transfer.position);
+            if(count > transfer.deficit) {
+                return false;
+            }
+            throttleNanos = shaper.UploadDelayNanos(peerLimiter, transfer.limiter);
+            if(throttleNanos > 0) {
+                transfer.throttled = true;
+                return false;
+            }
+            long sendStart;
+            //The bytes the frame takes on the wire, which is less than count when it is compressed
+            int sent = count;
+            if(transfer.zeroCopy && !transfer.compress) {
+                //The socket is backed by a channel, so the file data is handed to the kernel with transferTo without
+                //passing through the heap. The file may be shorter than it was when the request was made, the peer
+                //gets what there is
+                count = (int) Math.min(count, transfer.file.size() - transfer.position);
+                if(count <= 0) {
+                    return true;
+                }
+                sendStart = System.nanoTime();
+                client.SendFileRegion(transfer.requestId, transfer.file, transfer.position, count);
+            } else {
+                if(copyBuffer == null || copyBuffer.length < count) {
+                    copyBuffer = new byte[frameSize];
+                }
+                ByteBuffer readBuffer = ByteBuffer.wrap(copyBuffer, 0, count);
+                while(readBuffer.hasRemaining()) {
+                    if(transfer.file.read(readBuffer, transfer.position + readBuffer.position()) <= 0) {
+                        break;
+                    }
+                }
+                count = readBuffer.position();
+                if(count == 0) {
+                    //The file is shorter than it was when the request was made, the peer gets what there is
+                    return true;
+                }
+                byte[] compressed = transfer.compress ? compressor.Compress(copyBuffer, count).join() : null;
+                sendStart = System.nanoTime();
+                sent = count;
+                if(compressed != null) {
+                    sent = compressed.length;
+                    client.SendCompressedChunk(transfer.requestId, count, compressed);
+                } else {
+                    //A frame that did not shrink means the rest of the file probably will not either
+                    transfer.compress = false;
+                    client.SendFileChunk(transfer.requestId, copyBuffer, count);
+                }
+            }
+            Resize(count, System.nanoTime() - sendStart);
+            shaper.TakeUpload(peerLimiter, transfer.limiter, sent);
+            transfer.position += count;
+            transfer.deficit -= count;
+        }
+        transfer.deficit = 0;
+        return true;
+    }
+
+    //Folds the time a frame took to be written into the rate of the connection and sizes the next frames from it. A
+    //write only takes long once the socket's send buffer is full, until then the rate is high and the frames grow
+    private void Resize(int count, long nanos) {
+        double rate = count * 1e9 / Math.max(1, nanos);
+        bytesPerSecond = bytesPerSecond == 0 ? rate : bytesPerSecond * 0.75 + rate * 0.25;
+        long target = (long) (bytesPerSecond * TARGET_FRAME_NANOS / 1e9) + 16;
+        //The largest power of two that fits the target, within the limits
+        long frame = Long.highestOneBit(Math.max(target, MIN_FRAME_SIZE + 16));
+        frameSize = (int) Math.min(MAX_FRAME_SIZE + 16, frame) - 16;
+    }
+
+    //The frame size cut down to the shaper's frame limit, still a power of two less the request ID
+    private int ShapedFrameSize() {
+        int limit = shaper.UploadFrameLimit();
+        if(limit >= frameSize) {
+            return frameSize;
+        }
+        return Math.max(MIN_FRAME_SIZE + 16, Integer.highestOneBit(limit + 16)) - 16;
+    }
+
+    private static void CloseFile(Transfer transfer) {
+        try {
+            transfer.file.close();
+        } catch (IOException ignored) {
+
+        }
+        transfer.onDone.run();
+    }
+}
@@ -0,0 +1,34 @@
+package SocketThreads;
+
+//Times a download for the node metrics: the time to its first byte, the gaps in its data and its throughput. The data
+//of a swarm download arrives from several readers at once, so the calls are synchronized
+class TransferTimer {
+    private final NodeMetrics metrics;
+    private final long startedAt = System.nanoTime();
+    private long firstDataAt = 0;
+    private long lastDataAt = 0;
+    private long bytes = 0;
+
+    TransferTimer(NodeMetrics metrics) {
+        this.metrics = metrics;
+        metrics.RecordDownloadStarted();
+    }
+
+    synchronized void Received(int length) {
+        long now = System.nanoTime();
+        if(firstDataAt == 0) {
+            firstDataAt = now;
+            metrics.RecordTimeToFirstByte(now - startedAt);
+        } else if(now - lastDataAt >= NodeMetrics.STALL_NANOS) {
+            metrics.RecordStall(now - lastDataAt);
+        }
+        lastDataAt = now;
+        bytes += length;
+        metrics.RecordDownloadedBytes(length);
+    }
+
+    //The throughput is taken over the time from the request to the last byte
+    synchronized void Finished() {
+        metrics.RecordDownloadFinished(bytes, (lastDataAt == 0 ? System.nanoTime() : lastDataAt) - startedAt);
+    }
+}
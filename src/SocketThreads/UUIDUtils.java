@@ -0,0 +1,21 @@
+package SocketThreads;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+//A small utilities class that converts peerIDs to bytes and back to UUIDs
+class UUIDUtils {
+    public static UUID AsUUID(byte[] bytes) {
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        long firstLong = bb.getLong();
+        long secondLong = bb.getLong();
+        return new UUID(firstLong, secondLong);
+    }
+
+    public static byte[] AsBytes(UUID uuid) {
+        ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
+        bb.putLong(uuid.getMostSignificantBits());
+        bb.putLong(uuid.getLeastSignificantBits());
+        return bb.array();
+    }
+}
@@ -0,0 +1,143 @@
+package SocketThreads;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+/*
+ * Admission control for the files this host sends. Every -6 and -7 request needs an upload slot, which it holds from
+ * the moment its file is opened until the last of its data has been sent or its connection has closed. While every slot
+ * is taken requests wait in the queue, either in the order they arrived or smallest first, which gets the most
+ * requesters their files soonest, and the requester is told its place in the queue with an 8 response. Once the queue
+ * holds MAX_QUEUED requests further requests are turned down with a 10, so a flood of requests costs this host a
+ * bounded amount of memory and the requesters can go to other peers.
+ *
+ * This only decides which requests run, the ClientHandler starts them and sends the responses.
+ */
+class UploadQueue {
+    //The number of files sent at once unless the host is configured otherwise, and the most requests that can wait
+    static final int DEFAULT_SLOTS = 8;
+    static final int MAX_QUEUED = 1024;
+
+    //A file request waiting for or holding a slot
+    static class Upload {
+        final Client client;
+        final byte[] requestId;
+        final String fileName;
+        final long offset;
+        final long length;
+        final boolean includeManifest;
+        //The number of bytes requested, used to order the queue when the smallest requests go first
+        final long size;
+        final long queuedAt = System.nanoTime();
+        long sequence;
+
+        Upload(Client client, byte[] requestId, String fileName, long offset, long length, boolean includeManifest, long size) {
+            this.client = client;
+            this.requestId = requestId;
+            this.fileName = fileName;
+            this.offset = offset;
+            this.length = length;
+            this.includeManifest = includeManifest;
+            this.size = size;
+        }
+    }
+
+    private final boolean smallestFirst;
+    private final Comparator<Upload> order;
+    private final Queue<Upload> waiting;
+    private int slots;
+    private int busy = 0;
+    private long nextSequence = 0;
+
+    UploadQueue(int slots, boolean smallestFirst) {
+        this.slots = slots;
+        this.smallestFirst = smallestFirst;
+        order = Comparator.comparingLong((Upload upload) -> smallestFirst ? upload.size : 0).thenComparingLong(upload -> upload.sequence);
+        waiting = smallestFirst ? new PriorityQueue<>(order) : new ArrayDeque<>();
+    }
+
+    //Takes a slot for an upload if one is free and returns 0, otherwise queues it and returns its place in the queue
+    //counting from 1, or returns -1 when the queue is full
+    synchronized int Offer(Upload upload) {
+        if(busy < slots) {
+            busy++;
+            return 0;
+        }
+        if(waiting.size() >= MAX_QUEUED) {
+            return -1;
+        }
+        upload.sequence = nextSequence++;
+        waiting.add(upload);
+        if(!smallestFirst) {
+            return waiting.size();
+        }
+        int position = 1;
+        for(Upload queued : waiting) {
+            if(order.compare(queued, upload) < 0) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    //Frees the slot of an upload that has ended and returns the queued upload that takes it over, or null if nothing is
+    //waiting or the number of slots has been cut below the number in use. Uploads whose requester has gone since they
+    //were queued are dropped
+    synchronized Upload Release() {
+        Upload next = busy > slots ? null : NextWaiting();
+        if(next == null) {
+            busy--;
+        }
+        return next;
+    }
+
+    //Changes the number of slots and returns the queued uploads that can start in the new slots
+    synchronized ArrayList<Upload> SetSlots(int slots) {
+        this.slots = slots;
+        ArrayList<Upload> started = new ArrayList<>();
+        while(busy < slots) {
+            Upload next = NextWaiting();
+            if(next == null) {
+                break;
+            }
+            busy++;
+            started.add(next);
+        }
+        return started;
+    }
+
+    //Takes a queued upload out of the queue once its requester has cancelled it, returns false if it is not queued
+    synchronized boolean Cancel(Client client, byte[] requestId) {
+        return waiting.removeIf(upload -> upload.client == client && Arrays.equals(upload.requestId, requestId));
+    }
+
+    boolean IsSmallestFirst() {
+        return smallestFirst;
+    }
+
+    synchronized int GetSlots() {
+        return slots;
+    }
+
+    synchronized int GetBusy() {
+        return busy;
+    }
+
+    synchronized int GetQueued() {
+        return waiting.size();
+    }
+
+    private Upload NextWaiting() {
+        Upload next;
+        while((next = waiting.poll()) != null) {
+            if(!next.client.clientSocket.isClosed()) {
+                return next;
+            }
+        }
+        return null;
+    }
+}